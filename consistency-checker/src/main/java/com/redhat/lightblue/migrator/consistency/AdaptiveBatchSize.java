@@ -0,0 +1,158 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Batch size for requests to lightblue that adapts to how the requests
+ * perform. Batches that come back quickly with small payloads grow the batch
+ * size, batches that are slow or large shrink it in proportion to how far they
+ * overshot, and failed batches (typically hystrix timeouts) halve it. The batch
+ * size always stays within the configured bounds.
+ *
+ * Instances are shared by all jobs of a configuration, see
+ * {@link #forConfiguration(MigrationConfiguration, String)}.
+ */
+public class AdaptiveBatchSize {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSize.class);
+
+    private static final ConcurrentMap<String, AdaptiveBatchSize> BATCH_SIZES = new ConcurrentHashMap<>();
+
+    /**
+     * Batches that take less than this fraction of the targets let the batch
+     * size grow.
+     */
+    private static final double GROWTH_THRESHOLD = 0.5;
+
+    /**
+     * Factor the batch size grows by after a fast batch.
+     */
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetMilliseconds;
+    private final long targetBytes;
+
+    private volatile int batchSize;
+
+    public AdaptiveBatchSize(int initialBatchSize, int minBatchSize, int maxBatchSize, long targetMilliseconds, long targetBytes) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.targetMilliseconds = targetMilliseconds;
+        this.targetBytes = targetBytes;
+        this.batchSize = bound(initialBatchSize);
+    }
+
+    /**
+     * Returns the batch size of the given kind of request for a configuration.
+     * Configurations without a maxBatchSize above their minBatchSize get a fixed
+     * batch size of {@link MigrationJob#BATCH_SIZE}.
+     *
+     * @param configuration the migration configuration
+     * @param kind the kind of request, ie "lookup" or "save"
+     */
+    public static AdaptiveBatchSize forConfiguration(MigrationConfiguration configuration, String kind) {
+        int min = configuration.getMinBatchSize();
+        int max = configuration.getMaxBatchSize();
+        if (max <= min || max < 1) {
+            return new AdaptiveBatchSize(MigrationJob.BATCH_SIZE, MigrationJob.BATCH_SIZE, MigrationJob.BATCH_SIZE, 0, 0);
+        }
+
+        String key = configuration.getConfigurationName() + "|" + kind;
+        while (true) {
+            AdaptiveBatchSize batchSize = BATCH_SIZES.get(key);
+            if (batchSize != null && batchSize.hasBounds(min, max, configuration.getTargetBatchMilliseconds(), configuration.getTargetBatchBytes())) {
+                return batchSize;
+            }
+            AdaptiveBatchSize created = new AdaptiveBatchSize(MigrationJob.BATCH_SIZE, min, max, configuration.getTargetBatchMilliseconds(), configuration.getTargetBatchBytes());
+            // only one of the jobs racing to create or replace it wins, the others use its instance
+            if (batchSize == null ? BATCH_SIZES.putIfAbsent(key, created) == null : BATCH_SIZES.replace(key, batchSize, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Roughly estimates the serialized size of a batch of documents from its
+     * first document.
+     */
+    public static long estimateBytes(Collection<JsonNode> documents) {
+        if (documents.isEmpty()) {
+            return 0;
+        }
+        return (long) documents.iterator().next().toString().length() * documents.size();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Adjusts the batch size after a successful request.
+     *
+     * @param size number of documents in the batch
+     * @param elapsedMilliseconds how long the request took
+     * @param payloadBytes approximate size of the documents sent or received
+     */
+    public synchronized void recordSuccess(int size, long elapsedMilliseconds, long payloadBytes) {
+        if (minBatchSize == maxBatchSize || size <= 0) {
+            return;
+        }
+        double timeRatio = targetMilliseconds > 0 ? (double) elapsedMilliseconds / targetMilliseconds : 0;
+        double byteRatio = targetBytes > 0 ? (double) payloadBytes / targetBytes : 0;
+        double ratio = Math.max(timeRatio, byteRatio);
+
+        int newBatchSize = batchSize;
+        if (ratio > 1) {
+            // shrink to what would have hit the target, but never below half
+            newBatchSize = (int) Math.max(size / ratio, size / 2.0);
+        } else if (ratio < GROWTH_THRESHOLD && size >= batchSize) {
+            // only full sized batches say anything about a bigger batch size
+            newBatchSize = (int) Math.max(batchSize * GROWTH_FACTOR, batchSize + 1);
+        }
+        setBatchSize(newBatchSize);
+    }
+
+    /**
+     * Halves the batch size after a failed request.
+     */
+    public synchronized void recordFailure(int size) {
+        if (minBatchSize == maxBatchSize) {
+            return;
+        }
+        setBatchSize(Math.min(batchSize, size) / 2);
+    }
+
+    private void setBatchSize(int newBatchSize) {
+        newBatchSize = bound(newBatchSize);
+        if (newBatchSize != batchSize) {
+            LOGGER.debug("Batch size changed from {} to {}", batchSize, newBatchSize);
+            batchSize = newBatchSize;
+        }
+    }
+
+    private int bound(int size) {
+        return Math.min(maxBatchSize, Math.max(minBatchSize, size));
+    }
+
+    private boolean hasBounds(int min, int max, long targetMilliseconds, long targetBytes) {
+        return minBatchSize == Math.max(1, min) && maxBatchSize == max
+                && this.targetMilliseconds == targetMilliseconds && this.targetBytes == targetBytes;
+    }
+}
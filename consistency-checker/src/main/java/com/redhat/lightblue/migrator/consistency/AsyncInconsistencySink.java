@@ -0,0 +1,91 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands reports to another sink on a writer thread of its own, through a
+ * bounded queue. Reporting never blocks: when the queue is full because the
+ * other sink can't keep up, the report is dropped and counted instead.
+ */
+public class AsyncInconsistencySink implements InconsistencySink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncInconsistencySink.class);
+
+    // tells the writer thread to stop once everything before it is written
+    private static final InconsistencyReport END = new InconsistencyReport();
+
+    private final InconsistencySink delegate;
+    private final BlockingQueue<InconsistencyReport> queue;
+    private final Thread writer;
+    private final AtomicInteger droppedCount = new AtomicInteger();
+
+    /**
+     * @param delegate the sink the reports are written to
+     * @param queueDepth number of reports waiting to be written before
+     * reports are dropped
+     * @param name name of the writer thread
+     */
+    public AsyncInconsistencySink(final InconsistencySink delegate, int queueDepth, String name) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InconsistencyReport report;
+                    while ((report = queue.take()) != END) {
+                        try {
+                            delegate.report(report);
+                        } catch (IOException | RuntimeException e) {
+                            LOGGER.warn("Unable to write " + report, e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void report(InconsistencyReport report) {
+        if (!queue.offer(report)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of reports dropped because the queue was full
+     */
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Waits for the reports in the queue to be written and closes the other
+     * sink.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        } finally {
+            delegate.close();
+        }
+        if (droppedCount.get() > 0) {
+            LOGGER.warn("Dropped {} inconsistency reports written by {}", droppedCount.get(), writer.getName());
+        }
+    }
+}
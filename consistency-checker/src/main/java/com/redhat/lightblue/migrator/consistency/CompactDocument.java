@@ -0,0 +1,436 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A document encoded into a byte array straight from the tokens of a lightblue
+ * response, without building a {@link JsonNode} tree. Field names are shared
+ * by all documents of a response, so a compact document takes a fraction of
+ * the memory of the tree and can still be compared field by field, see
+ * {@link MigrationJob#getCompactInconsistentPaths(JsonNode, CompactDocument)}.
+ *
+ * Values are addressed by their position in the encoding, the document itself
+ * being at {@link #ROOT}. Objects and arrays are prefixed with the position
+ * following them so they can be skipped without being read.
+ */
+public final class CompactDocument {
+
+    /**
+     * Position of the document in its encoding.
+     */
+    public static final int ROOT = 0;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.withExactBigDecimals(false);
+
+    private static final byte OBJECT = 1;
+    private static final byte ARRAY = 2;
+    private static final byte STRING = 3;
+    private static final byte INTEGER = 4;
+    private static final byte DECIMAL = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte NULL = 8;
+
+    /**
+     * Size of a container's header: tag, end position and element count.
+     */
+    private static final int CONTAINER_HEADER = 9;
+
+    private final byte[] data;
+    private final FieldNames names;
+
+    private CompactDocument(byte[] data, FieldNames names) {
+        this.data = data;
+        this.names = names;
+    }
+
+    /**
+     * Encodes the documents in the "processed" array of a lightblue response.
+     *
+     * @param responseText the text of the response
+     * @return the documents in the order of the response
+     */
+    public static List<CompactDocument> parseProcessed(String responseText) throws IOException {
+        List<CompactDocument> documents = new ArrayList<>();
+        FieldNames names = new FieldNames();
+        try (JsonParser parser = JSON_FACTORY.createParser(responseText)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in response " + responseText);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("processed".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        documents.add(encode(parser, names));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Encodes the value the parser is positioned on.
+     */
+    static CompactDocument encode(JsonParser parser, FieldNames names) throws IOException {
+        Buffer buffer = new Buffer();
+        encodeValue(parser, names, buffer);
+        return new CompactDocument(buffer.toByteArray(), names);
+    }
+
+    private static void encodeValue(JsonParser parser, FieldNames names, Buffer buffer) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT: {
+                int header = buffer.startContainer(OBJECT);
+                int count = 0;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    buffer.writeInt(names.indexOf(parser.getCurrentName()));
+                    parser.nextToken();
+                    encodeValue(parser, names, buffer);
+                    count++;
+                }
+                buffer.endContainer(header, count);
+                break;
+            }
+            case START_ARRAY: {
+                int header = buffer.startContainer(ARRAY);
+                int count = 0;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    encodeValue(parser, names, buffer);
+                    count++;
+                }
+                buffer.endContainer(header, count);
+                break;
+            }
+            case VALUE_STRING:
+                buffer.writeText(STRING, parser.getText());
+                break;
+            case VALUE_NUMBER_INT:
+                // same text as the IntNode, LongNode or BigIntegerNode jackson would build
+                buffer.writeText(INTEGER, parser.getNumberValue().toString());
+                break;
+            case VALUE_NUMBER_FLOAT:
+                // same text as the DoubleNode jackson would build
+                buffer.writeText(DECIMAL, Double.toString(parser.getDoubleValue()));
+                break;
+            case VALUE_TRUE:
+                buffer.write(TRUE);
+                break;
+            case VALUE_FALSE:
+                buffer.write(FALSE);
+                break;
+            case VALUE_NULL:
+                buffer.write(NULL);
+                break;
+            default:
+                throw new IOException("Unsupported token " + parser.getCurrentToken());
+        }
+    }
+
+    /**
+     * @return the number of bytes the document takes
+     */
+    public int getEncodedSize() {
+        return data.length;
+    }
+
+    public JsonNodeType getNodeType(int position) {
+        switch (data[position]) {
+            case OBJECT:
+                return JsonNodeType.OBJECT;
+            case ARRAY:
+                return JsonNodeType.ARRAY;
+            case STRING:
+                return JsonNodeType.STRING;
+            case INTEGER:
+            case DECIMAL:
+                return JsonNodeType.NUMBER;
+            case TRUE:
+            case FALSE:
+                return JsonNodeType.BOOLEAN;
+            default:
+                return JsonNodeType.NULL;
+        }
+    }
+
+    /**
+     * @return the number of fields of an object or elements of an array
+     */
+    public int size(int position) {
+        return isContainer(position) ? readInt(position + 5) : 0;
+    }
+
+    /**
+     * @return the position of the first element of an array
+     */
+    public int firstElement(int position) {
+        return position + CONTAINER_HEADER;
+    }
+
+    /**
+     * @return the position following the value at the given position, ie the
+     * next element of an array
+     */
+    public int next(int position) {
+        switch (data[position]) {
+            case OBJECT:
+            case ARRAY:
+                return readInt(position + 1);
+            case STRING:
+            case INTEGER:
+            case DECIMAL:
+                return position + 5 + readInt(position + 1);
+            default:
+                return position + 1;
+        }
+    }
+
+    /**
+     * @return the position of the value of a field of an object, or -1 if the
+     * object doesn't have the field
+     */
+    public int field(int position, String name) {
+        int index = names.find(name);
+        if (index < 0 || data[position] != OBJECT) {
+            return -1;
+        }
+        int end = readInt(position + 1);
+        int entry = position + CONTAINER_HEADER;
+        while (entry < end) {
+            if (readInt(entry) == index) {
+                return entry + 4;
+            }
+            entry = next(entry + 4);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the text of the value as {@link JsonNode#asText()} returns it
+     */
+    public String asText(int position) {
+        switch (data[position]) {
+            case STRING:
+            case INTEGER:
+            case DECIMAL:
+                return new String(data, position + 5, readInt(position + 1), UTF8);
+            case TRUE:
+                return "true";
+            case FALSE:
+                return "false";
+            case NULL:
+                return "null";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * @return the value at the given position as a tree
+     */
+    public JsonNode toJsonNode(int position) {
+        switch (data[position]) {
+            case OBJECT: {
+                ObjectNode node = NODE_FACTORY.objectNode();
+                int end = readInt(position + 1);
+                int entry = position + CONTAINER_HEADER;
+                while (entry < end) {
+                    node.put(names.get(readInt(entry)), toJsonNode(entry + 4));
+                    entry = next(entry + 4);
+                }
+                return node;
+            }
+            case ARRAY: {
+                ArrayNode node = NODE_FACTORY.arrayNode();
+                int end = readInt(position + 1);
+                for (int element = position + CONTAINER_HEADER; element < end; element = next(element)) {
+                    node.add(toJsonNode(element));
+                }
+                return node;
+            }
+            case STRING:
+                return NODE_FACTORY.textNode(asText(position));
+            case INTEGER: {
+                BigInteger value = new BigInteger(asText(position));
+                if (value.bitLength() < 32) {
+                    return NODE_FACTORY.numberNode(value.intValue());
+                } else if (value.bitLength() < 64) {
+                    return NODE_FACTORY.numberNode(value.longValue());
+                }
+                return NODE_FACTORY.numberNode(value);
+            }
+            case DECIMAL:
+                return NODE_FACTORY.numberNode(Double.parseDouble(asText(position)));
+            case TRUE:
+                return NODE_FACTORY.booleanNode(true);
+            case FALSE:
+                return NODE_FACTORY.booleanNode(false);
+            default:
+                return NODE_FACTORY.nullNode();
+        }
+    }
+
+    /**
+     * @return the document as a tree
+     */
+    public JsonNode toJsonNode() {
+        return toJsonNode(ROOT);
+    }
+
+    /**
+     * Finds the first value of a field anywhere in the document, like
+     * {@link JsonNode#findValue(String)}.
+     *
+     * @return the value as a tree or null if no field has the name
+     */
+    public JsonNode findValue(String name) {
+        int index = names.find(name);
+        if (index < 0) {
+            return null;
+        }
+        int position = findValue(ROOT, index);
+        return position < 0 ? null : toJsonNode(position);
+    }
+
+    private int findValue(int position, int index) {
+        if (!isContainer(position)) {
+            return -1;
+        }
+        boolean object = data[position] == OBJECT;
+        int end = readInt(position + 1);
+        int entry = position + CONTAINER_HEADER;
+        while (entry < end) {
+            int value = entry;
+            if (object) {
+                value += 4;
+                if (readInt(entry) == index) {
+                    return value;
+                }
+            }
+            int found = findValue(value, index);
+            if (found >= 0) {
+                return found;
+            }
+            entry = next(value);
+        }
+        return -1;
+    }
+
+    private boolean isContainer(int position) {
+        return data[position] == OBJECT || data[position] == ARRAY;
+    }
+
+    private int readInt(int position) {
+        return ((data[position] & 0xff) << 24) | ((data[position + 1] & 0xff) << 16)
+                | ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        return toJsonNode().toString();
+    }
+
+    /**
+     * Field names of the documents of one response, each stored once.
+     */
+    static final class FieldNames {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int indexOf(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                indexes.put(name, index);
+            }
+            return index;
+        }
+
+        int find(String name) {
+            Integer index = indexes.get(name);
+            return index == null ? -1 : index;
+        }
+
+        String get(int index) {
+            return names.get(index);
+        }
+    }
+
+    private static final class Buffer {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void write(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeText(byte tag, String text) {
+            byte[] encoded = text.getBytes(UTF8);
+            write(tag);
+            writeInt(encoded.length);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+
+        int startContainer(byte tag) {
+            int header = size;
+            write(tag);
+            // end position and count are filled in once the container is written
+            writeInt(0);
+            writeInt(0);
+            return header;
+        }
+
+        void endContainer(int header, int count) {
+            int end = size;
+            size = header + 1;
+            writeInt(end);
+            writeInt(count);
+            size = end;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+    }
+}
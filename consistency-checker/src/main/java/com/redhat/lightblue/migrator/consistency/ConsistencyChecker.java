@@ -2,42 +2,58 @@ package com.redhat.lightblue.migrator.consistency;
 
 import static com.redhat.lightblue.client.expression.query.ArrayQuery.withSubfield;
 import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.and;
+import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.or;
 import static com.redhat.lightblue.client.expression.query.UnaryLogicalQuery.not;
 import static com.redhat.lightblue.client.expression.query.ValueQuery.withValue;
+import static com.redhat.lightblue.client.projection.FieldProjection.includeField;
 import static com.redhat.lightblue.client.projection.FieldProjection.includeFieldRecursively;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.enums.SortDirection;
+import com.redhat.lightblue.client.expression.query.Query;
 import com.redhat.lightblue.client.http.LightblueHttpClient;
 import com.redhat.lightblue.client.hystrix.LightblueHystrixClient;
+import com.redhat.lightblue.client.projection.Projection;
 import com.redhat.lightblue.client.request.SortCondition;
 import com.redhat.lightblue.client.request.data.DataFindRequest;
 import com.redhat.lightblue.client.util.ClientConstants;
 import java.util.GregorianCalendar;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
-public class ConsistencyChecker implements Runnable {
+public class ConsistencyChecker implements Runnable, ConsistencyCheckerMBean {
 
     LightblueClient client;
 
     public static final Logger LOGGER = LoggerFactory.getLogger(ConsistencyChecker.class);
 
     public static final int MAX_JOB_WAIT_MSEC = 30 * 60 * 1000; // 30 minutes
-    public static final int MAX_JOBS_PER_ENTITY = 2000; // # of jobs to pick up each execution
+    public static final int MAX_JOBS_PER_ENTITY = 2000; // most jobs to read at a time
+    public static final int JOBS_PER_THREAD = 4; // # of jobs to read at a time for each thread of a configuration
     public static final int MAX_EXECUTOR_TERMINATION_WAIT_MSEC = 30 * 60 * 1000; // 30 minutes
+    public static final int UPCOMING_JOBS_REFRESH_MSEC = 60 * 1000; // 1 minute
+    public static final int MAX_UPCOMING_JOBS = 100; // # of upcoming jobs to read at a time
 
     private String consistencyCheckerName;
     private String hostName;
@@ -47,8 +63,34 @@ public class ConsistencyChecker implements Runnable {
     private String sourceConfigPath;
     private String destinationConfigPath;
 
+    // most jobs to run at a time across all configurations, 0 to bound each configuration by its threadCount only
+    private int workerBudget = 0;
+
     private boolean run = true;
 
+    /**
+     * The fields of a migrationJob read to decide whether to run it and to run
+     * it, everything else in its executions is only written.
+     */
+    private static final String[] JOB_FIELDS = {
+        "_id", "configurationName", "startDate", "endDate", "whenAvailableDate", "expectedExecutionMilliseconds",
+        "parentJobId", "recheck", "leaseOwner", "leaseExpirationDate",
+        "jobExecutions.*.jobStatus", "jobExecutions.*.actualStartDate", "jobExecutions.*.progressWatermark",
+        "jobExecutions.*.sourceDigest", "jobExecutions.*.sourceDocumentCount", "jobExecutions.*.maxSourceTimestamp",
+        "jobExecutions.*.failedDocumentIdentities"
+    };
+
+    private final Map<String, MigrationJobQueue> jobQueues = new HashMap<>();
+    // latest settings of each configuration, by name, as the job queues read jobs on the prefetch threads
+    private final Map<String, MigrationConfiguration> jobConfigurations = Collections.synchronizedMap(new HashMap<String, MigrationConfiguration>());
+    private ExecutorService prefetchExecutor;
+
+    private volatile JobScheduler scheduler;
+
+    // what an idle checker waits for, and when it last looked for upcoming jobs
+    private final JobWakeups wakeups = new JobWakeups();
+    private Date upcomingJobsRefreshDate;
+
     public void setRun(boolean run) {
         this.run = run;
     }
@@ -101,6 +143,14 @@ public class ConsistencyChecker implements Runnable {
         this.migrationJobEntityVersion = migrationJobEntityVersion;
     }
 
+    public int getWorkerBudget() {
+        return workerBudget;
+    }
+
+    public void setWorkerBudget(int workerBudget) {
+        this.workerBudget = workerBudget;
+    }
+
     public String getSourceConfigPath() {
         return sourceConfigPath;
     }
@@ -130,123 +180,254 @@ public class ConsistencyChecker implements Runnable {
         }
         client = new LightblueHystrixClient(httpClient, "migrator", "primaryClient");
 
+        scheduler = new JobScheduler(new Runnable() {
+            @Override
+            public void run() {
+                wakeups.wakeUp();
+            }
+        });
+        scheduler.setWorkerBudget(workerBudget);
+        ObjectName mbeanName = registerMBean();
+        prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "job-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         while (run && !Thread.interrupted()) {
-            List<ExecutorService> executors = new ArrayList<>();
-            List<MigrationConfiguration> configurations = getJobConfigurations();
-            List<Future<?>> futures = new ArrayList<>();
-
-            for (MigrationConfiguration configuration : configurations) {
-                if (configuration.getThreadCount() < 1) {
+            List<MigrationConfiguration> configurations = new ArrayList<>();
+            for (MigrationConfiguration configuration : getJobConfigurations()) {
+                if (configuration.getThreadCount() >= 1) {
+                    configuration.setConfigFilePath(configPath);
+                    configuration.setMigrationJobEntityVersion(migrationJobEntityVersion);
+                    configurations.add(configuration);
+                    jobConfigurations.put(configuration.getConfigurationName(), configuration);
+                }
+            }
+            Map<String, Integer> started = new LinkedHashMap<>();
+            Set<String> idle = new HashSet<>();
+            int submitted = 0;
+
+            // give idle workers to configurations by their share of the worker budget, until none is left or no
+            // configuration has a job to run
+            MigrationConfiguration configuration;
+            while ((configuration = scheduler.nextConfiguration(configurations, idle)) != null) {
+                MigrationJob job = pollExecutableJob(configuration);
+                if (job == null) {
+                    idle.add(configuration.getConfigurationName());
                     continue;
                 }
-
-                configuration.setConfigFilePath(configPath);
-                configuration.setMigrationJobEntityVersion(migrationJobEntityVersion);
-                List<MigrationJob> allJobs = getMigrationJobs(configuration);
-                List<MigrationJob> jobs = new ArrayList<>();
-
-                LOGGER.info("Loaded jobs for {}: {}", configuration.getConfigurationName(), allJobs.size());
-
-                // loop through jobs to check if job can be executed
-                for (MigrationJob job : allJobs) {
-                    if (isJobExecutable(job)) {
-                        // must initialize job before marking execution as dead
-                        job.setJobConfiguration(configuration);
-                        job.setOwner(getConsistencyCheckerName());
-                        job.setHostName(getHostName());
-                        job.setPid(ManagementFactory.getRuntimeMXBean().getName());
-                        job.setSourceConfigPath(sourceConfigPath);
-                        job.setDestinationConfigPath(destinationConfigPath);
-
-                        try {
-                            // mark old expirations as dead
-                            markRunningJobExecutionsAsDead(job);
-                        } catch (IOException ex) {
-                            LOGGER.warn("Unable to mark job as dead: {}", job.get_id());
-                        }
-                        // add to list of jobs to process
-                        jobs.add(job);
+                // must initialize job before marking execution as dead
+                job.setJobConfiguration(configuration);
+                job.setOwner(getConsistencyCheckerName());
+                job.setHostName(getHostName());
+                job.setPid(ManagementFactory.getRuntimeMXBean().getName());
+                job.setSourceConfigPath(sourceConfigPath);
+                job.setDestinationConfigPath(destinationConfigPath);
+
+                // with leases, the job marks them itself once it holds the lease
+                if (configuration.getLeaseMilliseconds() <= 0) {
+                    try {
+                        // mark old expirations as dead
+                        markRunningJobExecutionsAsDead(job);
+                    } catch (IOException ex) {
+                        LOGGER.warn("Unable to mark job as dead: {}", job.get_id());
                     }
                 }
+                scheduler.submit(configuration, job);
+                Integer count = started.get(configuration.getConfigurationName());
+                started.put(configuration.getConfigurationName(), count == null ? 1 : count + 1);
+                submitted++;
+            }
 
-                if (!jobs.isEmpty()) {
-                    LOGGER.info("Executing {} of {} loaded jobs for {}", jobs.size(), allJobs.size(), configuration.getConfigurationName());
-                }
+            for (Map.Entry<String, Integer> entry : started.entrySet()) {
+                LOGGER.info("Executing {} jobs for {}", entry.getValue(), entry.getKey());
+            }
 
-                if (!jobs.isEmpty()) {
-                    ExecutorService jobExecutor = Executors.newFixedThreadPool(configuration.getThreadCount());
-                    executors.add(jobExecutor);
-                    for (MigrationJob job : allJobs) {
-                        futures.add(jobExecutor.submit(job));
-                    }
+            if (submitted == 0 && run && !Thread.interrupted()) {
+                // nothing to start until a running job frees its worker or the next job becomes available
+                try {
+                    awaitWakeup(configurations);
+                } catch (InterruptedException e) {
+                    run = false;
                 }
             }
+        }
 
-            LOGGER.info("Done setting up job executors");
+        prefetchExecutor.shutdownNow();
+        jobQueues.clear();
+        try {
+            LOGGER.info("Waiting for {} running jobs", scheduler.getActiveJobCount());
+            if (!scheduler.shutdown(MAX_EXECUTOR_TERMINATION_WAIT_MSEC)) {
+                LOGGER.warn("Jobs still running after {} msec", MAX_EXECUTOR_TERMINATION_WAIT_MSEC);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.error("Interrupted while waiting for running jobs");
+        }
+        unregisterMBean(mbeanName);
 
-            if (executors.isEmpty()) {
-                if (run && !Thread.interrupted()) {
-                    MigrationJob nextJob = getNextAvailableJob();
-                    long timeUntilNextJob = MAX_JOB_WAIT_MSEC;
-                    if (nextJob != null && nextJob.getWhenAvailableDate() != null) {
-                        timeUntilNextJob = nextJob.getWhenAvailableDate().getTime() - new Date().getTime();
-                    }
-                    if (timeUntilNextJob > MAX_JOB_WAIT_MSEC) {
-                        timeUntilNextJob = MAX_JOB_WAIT_MSEC;
-                        LOGGER.info("Time to next job ({} msec) is greater than max wait time ({} msec}. Defaulting to max.", timeUntilNextJob, MAX_JOB_WAIT_MSEC);
-                    }
-                    try {
-                        LOGGER.info("Waiting for next job, sleeping for {} msec", timeUntilNextJob);
-                        Thread.sleep(timeUntilNextJob);
-                    } catch (InterruptedException e) {
-                        run = false;
-                    }
-                }
-            } else {
-                for (Future future : futures) {
-                    try {
-                        future.get();
-                    } catch (InterruptedException ex) {
-                        run = false;
-                        LOGGER.error("Future was interrupted, will stop execution of migrator");
-                    } catch (ExecutionException ex) {
-                        LOGGER.warn("Future execution failed", ex);
-                    }
-                }
+        LOGGER.info("ConsistencyChecker done");
+    }
+
+    @Override
+    public void wakeUp() {
+        LOGGER.info("Woken up");
+        wakeups.wakeUp();
+    }
+
+    @Override
+    public int getActiveJobCount() {
+        JobScheduler current = scheduler;
+        return current == null ? 0 : current.getActiveJobCount();
+    }
+
+    /**
+     * Waits until an upcoming job becomes available, a running job finishes
+     * or {@link #wakeUp()} is called, at most MAX_JOB_WAIT_MSEC. Upcoming jobs
+     * are looked up again every UPCOMING_JOBS_REFRESH_MSEC, so jobs inserted in
+     * the meantime are noticed.
+     */
+    private void awaitWakeup(List<MigrationConfiguration> configurations) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_JOB_WAIT_MSEC;
+        LOGGER.info("Waiting for next job or {} running jobs", getActiveJobCount());
+        while (run) {
+            refreshUpcomingJobs(configurations);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || wakeups.await(Math.min(remaining, UPCOMING_JOBS_REFRESH_MSEC))) {
+                return;
             }
+        }
+    }
 
-            LOGGER.info("Job executors done");
+    /**
+     * Schedules a wakeup for the jobs that become available after the last
+     * refresh, and for the jobs inserted since then whenever they become
+     * available, so a job inserted as available right away wakes the checker
+     * at the next refresh. Does nothing if the last refresh is less than
+     * UPCOMING_JOBS_REFRESH_MSEC old.
+     */
+    private void refreshUpcomingJobs(List<MigrationConfiguration> configurations) {
+        Date now = new Date();
+        if (upcomingJobsRefreshDate != null && now.getTime() - upcomingJobsRefreshDate.getTime() < UPCOMING_JOBS_REFRESH_MSEC) {
+            return;
+        }
+        Date after = upcomingJobsRefreshDate == null ? now : upcomingJobsRefreshDate;
+        for (MigrationJob job : getUpcomingJobs(configurations, after, MAX_UPCOMING_JOBS)) {
+            wakeups.schedule(job);
         }
+        upcomingJobsRefreshDate = now;
+    }
 
-        LOGGER.info("ConsistencyChecker done");
+    private ObjectName registerMBean() {
+        try {
+            ObjectName name = new ObjectName("com.redhat.lightblue.migrator:type=ConsistencyChecker,name=" + ObjectName.quote(String.valueOf(getConsistencyCheckerName())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ConsistencyCheckerMBean.class), name);
+            return name;
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register ConsistencyChecker MBean", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMBean(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOGGER.warn("Unable to unregister ConsistencyChecker MBean", e);
+        }
+    }
+
+    /**
+     * Takes jobs of the configuration until one can be executed and is not
+     * running already.
+     *
+     * @return the job, or null if the configuration has no job to run
+     */
+    private MigrationJob pollExecutableJob(MigrationConfiguration configuration) {
+        MigrationJobQueue queue = getJobQueue(configuration);
+        MigrationJob job;
+        while ((job = queue.poll()) != null) {
+            if (!scheduler.isScheduled(job) && isJobExecutable(job)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the queue of the configuration's jobs, which reads them with its
+     * latest settings
+     */
+    private MigrationJobQueue getJobQueue(MigrationConfiguration configuration) {
+        int pageSize = Math.min(MAX_JOBS_PER_ENTITY, configuration.getThreadCount() * JOBS_PER_THREAD);
+        MigrationJobQueue queue = jobQueues.get(configuration.getConfigurationName());
+        if (queue == null || queue.getPageSize() != pageSize) {
+            final String configurationName = configuration.getConfigurationName();
+            queue = new MigrationJobQueue(new MigrationJobQueue.JobSource() {
+                @Override
+                public List<MigrationJob> getJobs(MigrationJob after, int count) {
+                    // the queue outlives the pass that created it, so read with the settings of the latest pass
+                    return getMigrationJobs(jobConfigurations.get(configurationName), after, count);
+                }
+            }, pageSize, prefetchExecutor);
+            jobQueues.put(configuration.getConfigurationName(), queue);
+        }
+        return queue;
     }
 
-    protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration) {
+    /**
+     * Reads the configuration's jobs that are available to run, in
+     * whenAvailableDate and _id order.
+     *
+     * @param configuration the configuration of the jobs
+     * @param after the job to read from, exclusive, null to start with the
+     * first
+     * @param count the number of jobs to read
+     */
+    protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
         LOGGER.info("Loading jobs for {}", configuration.getConfigurationName());
         List<MigrationJob> jobs = new ArrayList<>();
         try {
             DataFindRequest findRequest = new DataFindRequest("migrationJob", migrationJobEntityVersion);
 
-            findRequest.where(
-                    and(
-                            // get jobs for this configuration
-                            withValue("configurationName = " + configuration.getConfigurationName()),
-                            // only get jobs that are available now
-                            withValue("whenAvailableDate <= " + ClientConstants.getDateFormat().format(new Date())),
-                            // only get jobs where there does NOT exist an execution with a complete status
-                            not(
-                                    withSubfield("jobExecutions", withValue("jobStatus $in [COMPLETED_SUCCESS, COMPLETED_PARTIAL]"))
-                            )
-                    )
-            );
-            findRequest.select(includeFieldRecursively("*"));
+            String now = ClientConstants.getDateFormat().format(new Date());
+            List<Query> conditions = new ArrayList<>();
+            // get jobs for this configuration
+            conditions.add(withValue("configurationName = " + configuration.getConfigurationName()));
+            // only get jobs that are available now
+            conditions.add(withValue("whenAvailableDate <= " + now));
+            conditions.add(createPendingJobQuery());
+            if (configuration.getLeaseMilliseconds() > 0) {
+                // only get jobs nobody holds a lease on
+                conditions.add(not(withValue("leaseExpirationDate > " + now)));
+            }
+            if (after != null) {
+                // continue after the last job read
+                String afterDate = ClientConstants.getDateFormat().format(after.getWhenAvailableDate());
+                conditions.add(or(
+                        withValue("whenAvailableDate > " + afterDate),
+                        and(withValue("whenAvailableDate = " + afterDate), withValue("_id > " + after.get_id()))
+                ));
+            }
+            findRequest.where(and(conditions));
 
-            // sort by whenAvailableDate ascending to process oldest jobs first
-            findRequest.sort(new SortCondition("whenAvailableDate", SortDirection.ASCENDING));
+            List<Projection> projections = new ArrayList<>();
+            for (String field : JOB_FIELDS) {
+                projections.add(includeField(field));
+            }
+            findRequest.select(projections);
+
+            // sort by whenAvailableDate ascending to process oldest jobs first, and by _id to read past jobs available at the same time
+            findRequest.sort(new SortCondition("whenAvailableDate", SortDirection.ASCENDING), new SortCondition("_id", SortDirection.ASCENDING));
+
+            // range is inclusive
+            findRequest.range(0, count - 1);
 
-            // only pick up the first MAX_JOBS_PER_ENTITY jobs
-            findRequest.range(0, MAX_JOBS_PER_ENTITY);
-            
             LOGGER.debug("Finding Jobs to execute: {}", findRequest.getBody());
 
             jobs.addAll(Arrays.asList(client.data(findRequest, MigrationJob[].class)));
@@ -256,16 +437,31 @@ public class ConsistencyChecker implements Runnable {
         return jobs;
     }
 
+    /**
+     * Matches the jobs still to be run: those where there does NOT exist an
+     * execution with a complete status, a split job being completed by its
+     * child jobs, and completed jobs queued again with recheck set.
+     */
+    private static Query createPendingJobQuery() {
+        return or(
+                not(withSubfield("jobExecutions", withValue("jobStatus $in [COMPLETED_SUCCESS, COMPLETED_PARTIAL, COMPLETED_SPLIT]"))),
+                withValue("recheck = true")
+        );
+    }
+
     /**
      * Helper method to determine if a job can be processed right now based on
-     * the execution data (if present). If no execution data exists, it is
-     * automatically executable.
+     * its lease or, for jobs that were never leased, the execution data (if
+     * present). If no execution data exists, it is automatically executable.
      */
     protected static boolean isJobExecutable(MigrationJob job) {
         boolean executable;
         long now = GregorianCalendar.getInstance().getTimeInMillis();
 
-        if (job.getJobExecutions() != null && !job.getJobExecutions().isEmpty()) {
+        if (job.getLeaseExpirationDate() != null) {
+            // the lease is renewed for as long as the job runs, and a failed run leaves it to expire after the retry delay
+            executable = job.getLeaseExpirationDate().getTime() <= now;
+        } else if (job.getJobExecutions() != null && !job.getJobExecutions().isEmpty()) {
             // get newest execution start date
             long newestActualStartDate = 0;
             for (MigrationJobExecution exec : job.getJobExecutions()) {
@@ -320,28 +516,42 @@ public class ConsistencyChecker implements Runnable {
     }
 
     /**
-     * Gets the next job available for processing.
+     * Reads the jobs of the configurations that become available or were
+     * created after the given date, soonest available first, with only their
+     * _id and whenAvailableDate.
      *
-     * @return
+     * @param configurations the configurations of the jobs
+     * @param after the date after which the jobs become available or were
+     * created
+     * @param count the number of jobs to read
      */
-    protected MigrationJob getNextAvailableJob() {
-        MigrationJob job = null;
+    protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
+        List<MigrationJob> jobs = new ArrayList<>();
+        if (configurations.isEmpty()) {
+            return jobs;
+        }
         try {
             DataFindRequest findRequest = new DataFindRequest("migrationJob", migrationJobEntityVersion);
-            findRequest.where(withValue("whenAvailableDate >= " + ClientConstants.getDateFormat().format(new Date())));
-            findRequest.sort(new SortCondition("whenAvailableDate", SortDirection.ASC));
-            findRequest.range(0, 0); // range is inclusive
-            findRequest.select(includeFieldRecursively("*"));
-
-            LOGGER.debug("Get next job: {}", findRequest.getBody());
-            MigrationJob[] jobs = client.data(findRequest, MigrationJob[].class);
-            if (jobs != null && jobs.length > 0) {
-                job = jobs[0];
+            List<Query> names = new ArrayList<>();
+            for (MigrationConfiguration configuration : configurations) {
+                names.add(withValue("configurationName = " + configuration.getConfigurationName()));
             }
+            String afterDate = ClientConstants.getDateFormat().format(after);
+            findRequest.where(and(
+                    or(names),
+                    or(withValue("whenAvailableDate > " + afterDate), withValue("creationDate > " + afterDate)),
+                    createPendingJobQuery()
+            ));
+            findRequest.select(includeField("_id"), includeField("whenAvailableDate"));
+            findRequest.sort(new SortCondition("whenAvailableDate", SortDirection.ASCENDING));
+            findRequest.range(0, count - 1); // range is inclusive
+
+            LOGGER.debug("Finding upcoming jobs: {}", findRequest.getBody());
+            jobs.addAll(Arrays.asList(client.data(findRequest, MigrationJob[].class)));
         } catch (IOException e) {
-            LOGGER.error("Problem getting migrationJob", e);
+            LOGGER.error("Problem getting upcoming migrationJobs", e);
         }
-        return job;
+        return jobs;
     }
 
 }
@@ -45,6 +45,7 @@ public final class ConsistencyCheckerCLI {
         options.addOption(OptionBuilder.withArgName("jobversion").withLongOpt("jobversion").hasArg(true).withDescription("migrationJob Entity Version").isRequired().create('j'));
         options.addOption(OptionBuilder.withArgName("sourceconfig").withLongOpt("sourceconfig").hasArg(true).withDescription("Path to configuration file for source").isRequired().create('s'));
         options.addOption(OptionBuilder.withArgName("destinationconfig").withLongOpt("destinationconfig").hasArg(true).withDescription("Path to configuration file for destination").isRequired().create('d'));
+        options.addOption(OptionBuilder.withArgName("workers").withLongOpt("workers").hasArg(true).withDescription("Most jobs to run at a time across all configurations, shared by their weight and priority").create('w'));
 
         String log4jConfig = System.getProperty("log4j.configuration");
         if (log4jConfig != null && !log4jConfig.isEmpty()) {
@@ -68,6 +69,13 @@ public final class ConsistencyCheckerCLI {
             checker.setMigrationJobEntityVersion(System.getProperty("jobversion"));
             checker.setSourceConfigPath(System.getProperty("sourceconfig"));
             checker.setDestinationConfigPath(System.getProperty("destinationconfig"));
+            if (System.getProperty("workers") != null) {
+                try {
+                    checker.setWorkerBudget(Integer.parseInt(System.getProperty("workers")));
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid number of workers: " + System.getProperty("workers"));
+                }
+            }
         } catch (ParseException e) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp(ConsistencyCheckerCLI.class.getSimpleName(), options, true);
@@ -0,0 +1,19 @@
+package com.redhat.lightblue.migrator.consistency;
+
+/**
+ * Management interface of a running {@link ConsistencyChecker}, registered
+ * as com.redhat.lightblue.migrator:type=ConsistencyChecker,name=&lt;consistencyCheckerName&gt;.
+ */
+public interface ConsistencyCheckerMBean {
+
+    /**
+     * Makes an idle checker look for jobs now, ie after jobs were inserted
+     * that should start right away.
+     */
+    void wakeUp();
+
+    /**
+     * @return the number of jobs running
+     */
+    int getActiveJobCount();
+}
@@ -0,0 +1,278 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A 128 bit hash of a document that two documents share whenever
+ * {@link MigrationJob#getInconsistentPaths(JsonNode, JsonNode)} would find no
+ * inconsistent paths between them in either direction. Like the comparison,
+ * the fingerprint ignores the order of object fields, compares values by their
+ * text and skips the comparison exclusion paths, so documents with equal
+ * fingerprints don't need to be compared field by field.
+ *
+ * Different fingerprints don't mean the documents are inconsistent, only that
+ * they have to be compared, ie the destination may have fields the source
+ * doesn't.
+ *
+ * Documents read from a lightblue response get their fingerprint as their
+ * tree is built, see {@link #parseProcessed(String, ExclusionPathMatcher, Map)}.
+ */
+public final class DocumentFingerprint {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.withExactBigDecimals(false);
+
+    private static final long SCALAR = 0x9e3779b97f4a7c15L;
+    private static final long OBJECT = 0xc2b2ae3d27d4eb4fL;
+    private static final long ARRAY = 0x165667b19e3779f9L;
+
+    private final long high;
+    private final long low;
+
+    private DocumentFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Computes the fingerprint of a document.
+     *
+     * @param document the document
+     * @param exclusions paths skipped as in the comparison
+     */
+    public static DocumentFingerprint of(JsonNode document, ExclusionPathMatcher exclusions) {
+        long[] hash = new long[2];
+        hash(document, exclusions.root(), hash);
+        return new DocumentFingerprint(hash[0], hash[1]);
+    }
+
+    /**
+     * Reads the documents in the "processed" array of a lightblue response,
+     * computing the fingerprint of each document from the tokens its tree is
+     * built from, so the tree isn't walked again to fingerprint it.
+     *
+     * @param responseText the text of the response
+     * @param exclusions paths skipped as in the comparison, null to only read
+     * the documents
+     * @param fingerprints receives the fingerprint of each document
+     * @return the documents in the order of the response
+     */
+    public static List<JsonNode> parseProcessed(String responseText, ExclusionPathMatcher exclusions, Map<JsonNode, DocumentFingerprint> fingerprints)
+            throws IOException {
+        List<JsonNode> documents = new ArrayList<>();
+        long[] hash = new long[2];
+        try (JsonParser parser = JSON_FACTORY.createParser(responseText)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in response " + responseText);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("processed".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        JsonNode document = read(parser, exclusions == null ? null : exclusions.root(), hash);
+                        if (exclusions != null) {
+                            fingerprints.put(document, new DocumentFingerprint(hash[0], hash[1]));
+                        }
+                        documents.add(document);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Builds the value the parser is positioned on, hashing it like
+     * {@link #hash(JsonNode, ExclusionPathMatcher.State, long[])} unless
+     * exclusions is null.
+     */
+    private static JsonNode read(JsonParser parser, ExclusionPathMatcher.State exclusions, long[] hash) throws IOException {
+        JsonNode node;
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT: {
+                ObjectNode object = NODE_FACTORY.objectNode();
+                long high = 0;
+                long low = 0;
+                int count = 0;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    ExclusionPathMatcher.State fieldExclusions = exclusions == null ? null : exclusions.field(name);
+                    if (fieldExclusions == null || fieldExclusions.isExcluded()) {
+                        object.put(name, read(parser, null, hash));
+                        continue;
+                    }
+                    object.put(name, read(parser, fieldExclusions, hash));
+                    high += mix(hashText(name, OBJECT) ^ hash[0]);
+                    low += mix(hashText(name, ~OBJECT) ^ hash[1]);
+                    count++;
+                }
+                if (exclusions != null) {
+                    hash[0] = mix(high ^ OBJECT ^ count);
+                    hash[1] = mix(low ^ ~OBJECT ^ count);
+                }
+                return object;
+            }
+            case START_ARRAY: {
+                ArrayNode array = NODE_FACTORY.arrayNode();
+                long high = ARRAY;
+                long low = ~ARRAY;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    ExclusionPathMatcher.State elementExclusions = exclusions == null ? null : exclusions.element(array.size());
+                    if (elementExclusions == null || elementExclusions.isExcluded()) {
+                        array.add(read(parser, null, hash));
+                        continue;
+                    }
+                    array.add(read(parser, elementExclusions, hash));
+                    high = mix(high * 31 + hash[0]);
+                    low = mix(low * 37 + hash[1]);
+                }
+                if (exclusions != null) {
+                    hash[0] = mix(high ^ array.size());
+                    hash[1] = mix(low ^ array.size());
+                }
+                return array;
+            }
+            case VALUE_STRING:
+                node = NODE_FACTORY.textNode(parser.getText());
+                break;
+            case VALUE_NUMBER_INT:
+                // the IntNode, LongNode or BigIntegerNode jackson would build
+                switch (parser.getNumberType()) {
+                    case INT:
+                        node = NODE_FACTORY.numberNode(parser.getIntValue());
+                        break;
+                    case LONG:
+                        node = NODE_FACTORY.numberNode(parser.getLongValue());
+                        break;
+                    default:
+                        node = NODE_FACTORY.numberNode(parser.getBigIntegerValue());
+                        break;
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                // the DoubleNode jackson would build
+                node = NODE_FACTORY.numberNode(parser.getDoubleValue());
+                break;
+            case VALUE_TRUE:
+                node = NODE_FACTORY.booleanNode(true);
+                break;
+            case VALUE_FALSE:
+                node = NODE_FACTORY.booleanNode(false);
+                break;
+            case VALUE_NULL:
+                node = NODE_FACTORY.nullNode();
+                break;
+            default:
+                throw new IOException("Unsupported token " + parser.getCurrentToken());
+        }
+        if (exclusions != null) {
+            hash(node, exclusions, hash);
+        }
+        return node;
+    }
+
+    private static void hash(JsonNode node, ExclusionPathMatcher.State exclusions, long[] hash) {
+        if (node.isArray()) {
+            // array elements are compared in order, the size is added last so arrays can be hashed as they are read
+            long high = ARRAY;
+            long low = ~ARRAY;
+            for (int i = 0; i < node.size(); i++) {
+                JsonNode element = node.get(i);
+                ExclusionPathMatcher.State elementExclusions = exclusions.element(i);
+                if (elementExclusions.isExcluded()) {
+                    continue;
+                }
+                hash(element, elementExclusions, hash);
+                high = mix(high * 31 + hash[0]);
+                low = mix(low * 37 + hash[1]);
+            }
+            hash[0] = mix(high ^ node.size());
+            hash[1] = mix(low ^ node.size());
+        } else if (node.isObject()) {
+            // fields are combined by addition so their order doesn't matter
+            long high = 0;
+            long low = 0;
+            int count = 0;
+            Iterator<Entry<String, JsonNode>> itr = node.fields();
+            while (itr.hasNext()) {
+                Entry<String, JsonNode> entry = itr.next();
+                ExclusionPathMatcher.State fieldExclusions = exclusions.field(entry.getKey());
+                if (fieldExclusions.isExcluded()) {
+                    continue;
+                }
+                hash(entry.getValue(), fieldExclusions, hash);
+                high += mix(hashText(entry.getKey(), OBJECT) ^ hash[0]);
+                low += mix(hashText(entry.getKey(), ~OBJECT) ^ hash[1]);
+                count++;
+            }
+            hash[0] = mix(high ^ OBJECT ^ count);
+            hash[1] = mix(low ^ ~OBJECT ^ count);
+        } else {
+            // values are compared by their text
+            String text = node.asText();
+            hash[0] = hashText(text, SCALAR);
+            hash[1] = hashText(text, ~SCALAR);
+        }
+    }
+
+    static long hashText(String text, long seed) {
+        long hash = seed ^ text.length();
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalization step of MurmurHash3, spreads every input bit over the
+     * whole hash.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DocumentFingerprint)) {
+            return false;
+        }
+        DocumentFingerprint other = (DocumentFingerprint) obj;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
@@ -0,0 +1,179 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Comparison exclusion paths compiled into a trie that is walked alongside a
+ * document, so checking whether a field is excluded costs a map lookup instead
+ * of building the field's path and scanning the exclusion list.
+ *
+ * Paths are dot separated field names. A "*" segment matches any field name
+ * and any array element, and a numeric segment also matches the array element
+ * with that index. Array elements otherwise share the path of their array, so
+ * "a.b" excludes field b of every element of array a as it always has.
+ *
+ * Walking starts from {@link #root()}; each {@link State} tells if the current
+ * field is excluded and moves on to child fields and array elements. States of
+ * a single trie node are cached, so walking documents usually doesn't allocate.
+ */
+public final class ExclusionPathMatcher {
+
+    private static final String WILDCARD = "*";
+
+    private final Node root = new Node();
+
+    private ExclusionPathMatcher(Collection<String> paths) {
+        if (paths != null) {
+            for (String path : paths) {
+                if (path != null) {
+                    add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the exclusion paths, which may be null.
+     */
+    public static ExclusionPathMatcher compile(Collection<String> paths) {
+        return new ExclusionPathMatcher(paths);
+    }
+
+    /**
+     * @return the state of the document root
+     */
+    public State root() {
+        return root.fields.isEmpty() && root.anyField == null ? State.EMPTY : root.state;
+    }
+
+    private void add(String path) {
+        Node node = root;
+        for (String segment : StringUtils.splitPreserveAllTokens(path, '.')) {
+            Node child;
+            if (WILDCARD.equals(segment)) {
+                if (node.anyField == null) {
+                    node.anyField = new Node();
+                }
+                child = node.anyField;
+            } else {
+                child = node.fields.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.fields.put(segment, child);
+                    node.hasIndexFields |= StringUtils.isNumeric(segment) && !segment.isEmpty();
+                }
+            }
+            node = child;
+        }
+        node.excluded = true;
+    }
+
+    /**
+     * Where the walk of a document is in the trie. Several exclusion paths may
+     * match the same field through wildcards, so a state is a set of nodes.
+     */
+    public static final class State {
+
+        private static final State EMPTY = new State(new Node[0]);
+
+        private final Node[] nodes;
+
+        private State(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        /**
+         * @return true if the current field is excluded from the comparison
+         */
+        public boolean isExcluded() {
+            for (Node node : nodes) {
+                if (node.excluded) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if nothing under the current field can be excluded
+         */
+        public boolean isEmpty() {
+            return nodes.length == 0;
+        }
+
+        /**
+         * @return the state of a field of the current object
+         */
+        public State field(String name) {
+            if (nodes.length == 0) {
+                return EMPTY;
+            } else if (nodes.length == 1) {
+                Node node = nodes[0];
+                Node child = node.fields.get(name);
+                if (node.anyField == null) {
+                    return child == null ? EMPTY : child.state;
+                } else if (child == null) {
+                    return node.anyField.state;
+                }
+            }
+            List<Node> next = new ArrayList<>();
+            for (Node node : nodes) {
+                addIfPresent(next, node.fields.get(name));
+                addIfPresent(next, node.anyField);
+            }
+            return of(next);
+        }
+
+        /**
+         * @return the state of an element of the current array
+         */
+        public State element(int index) {
+            List<Node> next = null;
+            for (Node node : nodes) {
+                if (node.anyField != null || node.hasIndexFields) {
+                    if (next == null) {
+                        next = new ArrayList<>();
+                        for (Node current : nodes) {
+                            next.add(current);
+                        }
+                    }
+                    addIfPresent(next, node.anyField);
+                    if (node.hasIndexFields) {
+                        addIfPresent(next, node.fields.get(String.valueOf(index)));
+                    }
+                }
+            }
+            // elements share the path of the array unless a path addresses them
+            return next == null ? this : of(next);
+        }
+
+        private static void addIfPresent(List<Node> nodes, Node node) {
+            if (node != null && !nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+
+        private static State of(List<Node> nodes) {
+            if (nodes.isEmpty()) {
+                return EMPTY;
+            } else if (nodes.size() == 1) {
+                return nodes.get(0).state;
+            }
+            return new State(nodes.toArray(new Node[nodes.size()]));
+        }
+    }
+
+    private static final class Node {
+        private final Map<String, Node> fields = new HashMap<>();
+        private Node anyField;
+        private boolean hasIndexFields;
+        private boolean excluded;
+        private final State state = new State(new Node[]{this});
+    }
+}
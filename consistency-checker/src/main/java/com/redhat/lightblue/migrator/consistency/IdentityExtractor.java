@@ -0,0 +1,94 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+
+/**
+ * Reads the identity fields of documents. The fields are paths from the root
+ * of the document, ie "id" or "key.id", split once into their segments so a
+ * value is found by following its path instead of searching the whole
+ * document. A numeric segment selects an element of an array.
+ */
+public final class IdentityExtractor {
+
+    private final List<String> fields;
+    private final String[][] paths;
+
+    private IdentityExtractor(List<String> fields) {
+        this.fields = fields;
+        this.paths = new String[fields.size()][];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = StringUtils.split(fields.get(i), '.');
+        }
+    }
+
+    /**
+     * @param identityFields the identity field paths, may be null
+     */
+    public static IdentityExtractor compile(List<String> identityFields) {
+        return new IdentityExtractor(identityFields == null
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(identityFields)));
+    }
+
+    /**
+     * @return the identity field paths
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the identity of a document, missing values are null
+     */
+    public IdentityKey getKey(JsonNode document) {
+        String[] values = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            JsonNode value = document;
+            for (String segment : paths[i]) {
+                value = value.isArray() && isIndex(segment) ? value.path(Integer.parseInt(segment)) : value.path(segment);
+            }
+            values[i] = value.isMissingNode() || value.isNull() ? null : value.asText();
+        }
+        return IdentityKey.wrap(values);
+    }
+
+    /**
+     * @return the identity of a document in its compact encoding, missing
+     * values are null
+     */
+    public IdentityKey getKey(CompactDocument document) {
+        String[] values = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            int position = CompactDocument.ROOT;
+            for (int s = 0; s < paths[i].length && position >= 0; s++) {
+                String segment = paths[i][s];
+                if (JsonNodeType.ARRAY.equals(document.getNodeType(position)) && isIndex(segment)) {
+                    int index = Integer.parseInt(segment);
+                    if (index >= document.size(position)) {
+                        position = -1;
+                    } else {
+                        position = document.firstElement(position);
+                        for (int e = 0; e < index; e++) {
+                            position = document.next(position);
+                        }
+                    }
+                } else {
+                    position = document.field(position, segment);
+                }
+            }
+            values[i] = position < 0 || JsonNodeType.NULL.equals(document.getNodeType(position)) ? null : document.asText(position);
+        }
+        return IdentityKey.wrap(values);
+    }
+
+    private static boolean isIndex(String segment) {
+        return StringUtils.isNumeric(segment) && !segment.isEmpty() && segment.length() < 10;
+    }
+}
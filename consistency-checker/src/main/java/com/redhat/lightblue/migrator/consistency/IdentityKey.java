@@ -0,0 +1,73 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The identity field values of a document, used to key source and
+ * destination documents so they can be paired for comparison. The hash is
+ * computed once, when the key is created.
+ */
+public final class IdentityKey {
+
+    private final String[] values;
+    private final int hash;
+
+    private IdentityKey(String[] values) {
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    /**
+     * @param values the identity field values in the order of the identity
+     * fields, null for a missing value
+     */
+    public static IdentityKey of(String... values) {
+        return new IdentityKey(values.clone());
+    }
+
+    static IdentityKey wrap(String[] values) {
+        return new IdentityKey(values);
+    }
+
+    /**
+     * @return the number of identity field values
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return the value of the identity field at the given index, or null if
+     * the document didn't have it
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IdentityKey)) {
+            return false;
+        }
+        IdentityKey other = (IdentityKey) obj;
+        return hash == other.hash && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the values comma separated
+     */
+    @Override
+    public String toString() {
+        return StringUtils.join(values, ",");
+    }
+}
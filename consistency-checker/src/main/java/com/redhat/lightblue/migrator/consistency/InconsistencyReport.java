@@ -0,0 +1,96 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * One inconsistent document: the job that found it, its identity and the
+ * paths where it differs from the destination.
+ */
+public class InconsistencyReport {
+
+    private String configurationName;
+    private String migrationJobId;
+    private String destinationEntityName;
+    private String destinationEntityVersion;
+    private List<String> identityFields;
+    private List<String> identityValues;
+    private List<String> inconsistentPaths;
+    private Date reportDate;
+
+    public String getConfigurationName() {
+        return configurationName;
+    }
+
+    public void setConfigurationName(String configurationName) {
+        this.configurationName = configurationName;
+    }
+
+    public String getMigrationJobId() {
+        return migrationJobId;
+    }
+
+    public void setMigrationJobId(String migrationJobId) {
+        this.migrationJobId = migrationJobId;
+    }
+
+    public String getDestinationEntityName() {
+        return destinationEntityName;
+    }
+
+    public void setDestinationEntityName(String destinationEntityName) {
+        this.destinationEntityName = destinationEntityName;
+    }
+
+    public String getDestinationEntityVersion() {
+        return destinationEntityVersion;
+    }
+
+    public void setDestinationEntityVersion(String destinationEntityVersion) {
+        this.destinationEntityVersion = destinationEntityVersion;
+    }
+
+    public List<String> getIdentityFields() {
+        return identityFields;
+    }
+
+    public void setIdentityFields(List<String> identityFields) {
+        this.identityFields = identityFields;
+    }
+
+    public List<String> getIdentityValues() {
+        return identityValues;
+    }
+
+    public void setIdentityValues(List<String> identityValues) {
+        this.identityValues = identityValues;
+    }
+
+    public List<String> getInconsistentPaths() {
+        return inconsistentPaths;
+    }
+
+    public void setInconsistentPaths(List<String> inconsistentPaths) {
+        this.inconsistentPaths = inconsistentPaths;
+    }
+
+    public Date getReportDate() {
+        return reportDate;
+    }
+
+    public void setReportDate(Date reportDate) {
+        this.reportDate = reportDate;
+    }
+
+    @Override
+    public String toString() {
+        return "InconsistencyReport [configurationName=" + configurationName
+                + ", migrationJobId=" + migrationJobId
+                + ", destinationEntityName=" + destinationEntityName
+                + ", destinationEntityVersion=" + destinationEntityVersion
+                + ", identityFields=" + identityFields
+                + ", identityValues=" + identityValues
+                + ", inconsistentPaths=" + inconsistentPaths
+                + ", reportDate=" + reportDate + "]";
+    }
+}
@@ -0,0 +1,17 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the inconsistencies found while comparing documents. A job reports
+ * to its sink through an {@link AsyncInconsistencySink}, so implementations
+ * are only called from one writer thread and may block on I/O.
+ */
+public interface InconsistencySink extends Closeable {
+
+    /**
+     * @param report one inconsistent document
+     */
+    void report(InconsistencyReport report) throws IOException;
+}
@@ -0,0 +1,258 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs migration jobs on long-lived worker pools, one per configuration and
+ * sized from its threadCount. Jobs are only submitted while their
+ * configuration has an idle worker, so a job never waits in a queue after
+ * being loaded, and a finished job wakes whoever waits in
+ * {@link #awaitCompletion(long)} so the freed worker can be given a new job
+ * right away instead of after every other job has finished.
+ * <p>
+ * With a worker budget, the jobs running at a time across all configurations
+ * are also bounded, and {@link #nextConfiguration(List, Set)} shares the
+ * budget by the configurations' weights and priorities.
+ */
+public class JobScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobScheduler.class);
+
+    private final Map<String, Pool> pools = new HashMap<>();
+    private final Set<String> scheduledJobIds = new HashSet<>();
+    private int activeJobCount = 0;
+    private int completedJobCount = 0;
+
+    // told whenever a job finishes
+    private final Runnable completionListener;
+
+    // most jobs running at a time across all configurations, 0 for no bound
+    private volatile int workerBudget = 0;
+
+    public JobScheduler() {
+        this(null);
+    }
+
+    /**
+     * @param completionListener run whenever a job finishes, on the job's
+     * thread
+     */
+    public JobScheduler(Runnable completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    public int getWorkerBudget() {
+        return workerBudget;
+    }
+
+    public void setWorkerBudget(int workerBudget) {
+        this.workerBudget = workerBudget;
+    }
+
+    /**
+     * @return the number of jobs of the configuration that can be submitted
+     * without waiting for a worker
+     */
+    public synchronized int getAvailableSlots(MigrationConfiguration configuration) {
+        int slots = Math.max(0, configuration.getThreadCount() - getActiveJobCount(configuration));
+        if (workerBudget > 0) {
+            slots = Math.min(slots, Math.max(0, workerBudget - activeJobCount));
+        }
+        return slots;
+    }
+
+    private int getActiveJobCount(MigrationConfiguration configuration) {
+        Pool pool = pools.get(configuration.getConfigurationName());
+        return pool == null ? 0 : pool.activeJobCount;
+    }
+
+    /**
+     * Picks the configuration that gets the next worker. Each configuration
+     * that has jobs to run is guaranteed a share of the worker budget in
+     * proportion to its weight, and configurations below their share come
+     * first. Among those, and for the workers left once every configuration
+     * has its share, the higher priority comes first, then the configuration
+     * with the fewest running jobs for its weight. Idle configurations don't
+     * count towards the shares unless they still run jobs, so their share goes
+     * to the others.
+     *
+     * @param configurations the configurations of the checker
+     * @param idle names of the configurations found to have no job to run
+     * @return the configuration to run a job of, or null if no configuration
+     * can run another job
+     */
+    public synchronized MigrationConfiguration nextConfiguration(List<MigrationConfiguration> configurations, Set<String> idle) {
+        int totalWeight = 0;
+        for (MigrationConfiguration configuration : configurations) {
+            if (!idle.contains(configuration.getConfigurationName()) || getActiveJobCount(configuration) > 0) {
+                totalWeight += getWeight(configuration);
+            }
+        }
+
+        MigrationConfiguration next = null;
+        boolean nextBelowShare = false;
+        for (MigrationConfiguration configuration : configurations) {
+            if (idle.contains(configuration.getConfigurationName()) || getAvailableSlots(configuration) < 1) {
+                continue;
+            }
+            boolean belowShare = workerBudget > 0
+                    && (long) getActiveJobCount(configuration) * totalWeight < (long) workerBudget * getWeight(configuration);
+            if (next == null || belowShare && !nextBelowShare
+                    || belowShare == nextBelowShare && comesBefore(configuration, next)) {
+                next = configuration;
+                nextBelowShare = belowShare;
+            }
+        }
+        return next;
+    }
+
+    private boolean comesBefore(MigrationConfiguration configuration, MigrationConfiguration other) {
+        if (configuration.getPriority() != other.getPriority()) {
+            return configuration.getPriority() > other.getPriority();
+        }
+        // fewer running jobs per unit of weight
+        return (long) getActiveJobCount(configuration) * getWeight(other) < (long) getActiveJobCount(other) * getWeight(configuration);
+    }
+
+    private static int getWeight(MigrationConfiguration configuration) {
+        return Math.max(1, configuration.getWeight());
+    }
+
+    /**
+     * @return true if the job has been submitted and has not finished yet
+     */
+    public synchronized boolean isScheduled(MigrationJob job) {
+        return job.get_id() != null && scheduledJobIds.contains(job.get_id());
+    }
+
+    public synchronized int getActiveJobCount() {
+        return activeJobCount;
+    }
+
+    /**
+     * Runs the job on the configuration's pool, resizing the pool if the
+     * configuration's threadCount has changed since it was created.
+     */
+    public synchronized void submit(MigrationConfiguration configuration, final MigrationJob job) {
+        final Pool pool = getPool(configuration);
+        pool.activeJobCount++;
+        activeJobCount++;
+        if (job.get_id() != null) {
+            scheduledJobIds.add(job.get_id());
+        }
+        pool.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Job execution failed: " + job.get_id(), e);
+                } finally {
+                    completed(pool, job);
+                    if (completionListener != null) {
+                        completionListener.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void completed(Pool pool, MigrationJob job) {
+        pool.activeJobCount--;
+        activeJobCount--;
+        completedJobCount++;
+        if (job.get_id() != null) {
+            scheduledJobIds.remove(job.get_id());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until a job finishes or the timeout elapses.
+     *
+     * @param timeoutMilliseconds longest time to wait
+     * @return true if a job finished
+     */
+    public synchronized boolean awaitCompletion(long timeoutMilliseconds) throws InterruptedException {
+        int completed = completedJobCount;
+        long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        long remaining = timeoutMilliseconds;
+        while (completed == completedJobCount && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return completed != completedJobCount;
+    }
+
+    private Pool getPool(MigrationConfiguration configuration) {
+        int threadCount = Math.max(1, configuration.getThreadCount());
+        Pool pool = pools.get(configuration.getConfigurationName());
+        if (pool == null) {
+            pool = new Pool(configuration.getConfigurationName(), threadCount);
+            pools.put(configuration.getConfigurationName(), pool);
+        } else if (pool.executor.getMaximumPoolSize() != threadCount) {
+            LOGGER.info("Resizing job pool of {} from {} to {} threads", configuration.getConfigurationName(), pool.executor.getMaximumPoolSize(), threadCount);
+            // the core size can't exceed the maximum size at any time
+            if (threadCount > pool.executor.getMaximumPoolSize()) {
+                pool.executor.setMaximumPoolSize(threadCount);
+                pool.executor.setCorePoolSize(threadCount);
+            } else {
+                pool.executor.setCorePoolSize(threadCount);
+                pool.executor.setMaximumPoolSize(threadCount);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Stops accepting jobs and waits for the submitted ones to finish.
+     *
+     * @return true if all jobs finished within the timeout
+     */
+    public boolean shutdown(long timeoutMilliseconds) throws InterruptedException {
+        List<Pool> stopping;
+        synchronized (this) {
+            stopping = new ArrayList<>(pools.values());
+            pools.clear();
+        }
+        for (Pool pool : stopping) {
+            pool.executor.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+        boolean terminated = true;
+        for (Pool pool : stopping) {
+            terminated &= pool.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        return terminated;
+    }
+
+    private static final class Pool {
+        private final ThreadPoolExecutor executor;
+        private int activeJobCount = 0;
+
+        Pool(final String configurationName, int threadCount) {
+            executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "job-" + configurationName + "-" + count.incrementAndGet());
+                        }
+                    });
+        }
+    }
+}
@@ -11,6 +11,7 @@ package com.redhat.lightblue.migrator.consistency;
  *      COMPLETED_FAILED   - Final status - Execution completed but failed (for know exceptions like bad request, entity doesn't exist, etc)
  *      COMPLETED_DEAD     - Final status - Execution due date was expired so we marked as completed and dead
  *      COMPLETED_IGNORED  - Final status - Execution is not dead but it isn't own by the current PID, so it will be marked as completed but it will also be ignored. This can also be used when an status is expected but the execution still asynchronous running
+ *      COMPLETED_SPLIT    - Final status - Execution split the job's window into child jobs instead of processing it, the children's results are aggregated back into this execution
  *      ABORTED_DUPLICATE  - Final status - Execution aborted because it was duplicated
  *      ABORTED_TIMEOUT    - Final status - Execution aborted because of timeout (running too long) (can't be due some lightblue constraint or external constraints like MongoDB server)
  *      ABORTED_AUTH       - Final status - Execution aborted due authentication/authorization issues
@@ -21,7 +22,7 @@ package com.redhat.lightblue.migrator.consistency;
  */
 public enum JobStatus {
     STARTING,RUNNING,RUNNING_ASYNC,COMPLETED_SUCCESS,COMPLETED_PARTIAL,
-    COMPLETED_DEAD,COMPLETED_IGNORED,COMPLETED_FAILED,ABORTED_DUPLICATE,ABORTED_TIMEOUT,ABORTED_AUTH,ABORTED_UNKNOWN,UNKNOWN;
+    COMPLETED_DEAD,COMPLETED_IGNORED,COMPLETED_SPLIT,COMPLETED_FAILED,ABORTED_DUPLICATE,ABORTED_TIMEOUT,ABORTED_AUTH,ABORTED_UNKNOWN,UNKNOWN;
 
     /**
      * If the job is running (represented by the states: STARTING, RUNNING and RUNNING_ASYNC ) returns true. If it is FINISHING it is considered that
@@ -63,7 +64,7 @@ public enum JobStatus {
      */
     public boolean isFinalStatus() {
         if(     this.equals(COMPLETED_SUCCESS) || this.equals(COMPLETED_PARTIAL) ||
-                this.equals(COMPLETED_DEAD)    || this.equals(COMPLETED_IGNORED) || this.equals(COMPLETED_FAILED) || this.equals(ABORTED_DUPLICATE) || this.equals(ABORTED_AUTH) || this.equals(ABORTED_TIMEOUT) || this.equals(ABORTED_UNKNOWN) ||
+                this.equals(COMPLETED_DEAD)    || this.equals(COMPLETED_IGNORED) || this.equals(COMPLETED_SPLIT) || this.equals(COMPLETED_FAILED) || this.equals(ABORTED_DUPLICATE) || this.equals(ABORTED_AUTH) || this.equals(ABORTED_TIMEOUT) || this.equals(ABORTED_UNKNOWN) ||
                 this.equals(UNKNOWN)){
             return true;
         }
@@ -0,0 +1,93 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What an idle checker waits for: the whenAvailableDate of upcoming jobs, the
+ * end of a running job, or an explicit {@link #wakeUp()}. Waiting returns as
+ * soon as any of them is due, unlike a sleep until the next job known when it
+ * started.
+ */
+public class JobWakeups {
+
+    private final DelayQueue<Wakeup> wakeups = new DelayQueue<>();
+
+    // jobs with a pending wakeup, so refreshing the upcoming jobs doesn't add them twice
+    private final Set<String> scheduledJobIds = new HashSet<>();
+
+    /**
+     * Wakes the checker when the job becomes available, unless it already
+     * will.
+     */
+    public synchronized void schedule(MigrationJob job) {
+        if (job.getWhenAvailableDate() != null && (job.get_id() == null || scheduledJobIds.add(job.get_id()))) {
+            wakeups.offer(new Wakeup(job.get_id(), job.getWhenAvailableDate().getTime()));
+        }
+    }
+
+    /**
+     * Wakes the checker now.
+     */
+    public void wakeUp() {
+        wakeups.offer(new Wakeup(null, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the number of wakeups that are not due yet
+     */
+    public int getPendingCount() {
+        return wakeups.size();
+    }
+
+    /**
+     * Waits until a wakeup is due or the timeout elapses, and clears all
+     * wakeups that are due.
+     *
+     * @param timeoutMilliseconds longest time to wait
+     * @return true if a wakeup was due
+     */
+    public boolean await(long timeoutMilliseconds) throws InterruptedException {
+        Wakeup due = wakeups.poll(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+        if (due == null) {
+            return false;
+        }
+        do {
+            synchronized (this) {
+                scheduledJobIds.remove(due.jobId);
+            }
+            due = wakeups.poll();
+        } while (due != null);
+        return true;
+    }
+
+    private static final class Wakeup implements Delayed {
+        private final String jobId;
+        private final long time;
+
+        Wakeup(String jobId, long time) {
+            this.jobId = jobId;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Wakeup [jobId=" + jobId + ", time=" + new Date(time) + "]";
+        }
+    }
+}
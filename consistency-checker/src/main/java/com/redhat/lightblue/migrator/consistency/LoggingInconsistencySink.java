@@ -0,0 +1,32 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs every inconsistency as a line of key=value pairs, the default when no
+ * report directory is configured.
+ */
+public class LoggingInconsistencySink implements InconsistencySink {
+
+    // the logger inconsistencies were always written to, so existing log parsing keeps working
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationJob.class);
+
+    @Override
+    public void report(InconsistencyReport report) {
+        // log as key=value to make parsing easy
+        LOGGER.error("configurationName={} destinationEntityName={} destinationEntityVersion={} migrationJobId={} identityFields=\"{}\" identityFieldValues=\"{}\" inconsistentPaths=\"{}\"",
+                report.getConfigurationName(),
+                report.getDestinationEntityName(),
+                report.getDestinationEntityVersion(),
+                report.getMigrationJobId(),
+                StringUtils.join(report.getIdentityFields(), ","),
+                StringUtils.join(report.getIdentityValues(), ","),
+                StringUtils.join(report.getInconsistentPaths(), ","));
+    }
+
+    @Override
+    public void close() {
+    }
+}
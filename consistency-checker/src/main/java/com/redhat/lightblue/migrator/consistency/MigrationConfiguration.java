@@ -1,5 +1,7 @@
 package com.redhat.lightblue.migrator.consistency;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class MigrationConfiguration {
@@ -16,10 +18,19 @@ public class MigrationConfiguration {
     private String consistencyCheckerName;
 
     private List<String> comparisonExclusionPaths;
+    // comparisonExclusionPaths compiled for the comparator, on first use after they are set
+    private volatile ExclusionPathMatcher comparisonExclusionMatcher;
+    // optional fields the comparison is limited to, only these fields are read for comparison
+    // and complete documents are read for overwrites
+    private List<String> comparisonInclusionPaths;
+    // also leave the comparison exclusion paths out of documents read for comparison
+    private boolean comparisonProjectionEnabled = false;
 
     private String destinationEntityName;
     private String destinationEntityVersion;
     private List<String> destinationIdentityFields;
+    // destinationIdentityFields compiled for reading identities, on first use after they are set
+    private volatile IdentityExtractor identityExtractor;
 
     private String sourceEntityName;
     private String sourceEntityVersion;
@@ -27,6 +38,89 @@ public class MigrationConfiguration {
 
     private boolean overwriteDestinationDocuments = false;
 
+    // number of source documents read per page, 0 reads the whole window at once
+    private int sourcePageSize = 0;
+
+    // run source reads, destination lookups, comparison and overwrites as concurrent stages
+    private boolean pipelineEnabled = false;
+    // number of pages each pipeline stage may queue for the next one
+    private int sourceQueueDepth = 2;
+    private int destinationQueueDepth = 2;
+    private int overwriteQueueDepth = 2;
+
+    // number of destination lookup batches fetched concurrently by a job
+    private int destinationLookupThreadCount = 1;
+
+    // bounds and targets for adaptive lookup and save batch sizes, a maxBatchSize
+    // not above minBatchSize keeps the fixed MigrationJob.BATCH_SIZE
+    private int minBatchSize = 0;
+    private int maxBatchSize = 0;
+    private long targetBatchMilliseconds = 0;
+    private long targetBatchBytes = 0;
+
+    // number of save batches sent concurrently by a job, and how often a failed batch is retried
+    // with a backoff doubling from overwriteRetryBackoffMilliseconds
+    private int overwriteThreadCount = 1;
+    private int overwriteRetryCount = 0;
+    private long overwriteRetryBackoffMilliseconds = 1000;
+
+    // keep destination documents in a compact encoding instead of parsed trees while comparing
+    private boolean compactComparisonEnabled = false;
+
+    // split a job's window into splitWindowCount child jobs when the source has more than
+    // maxDocumentsPerJob documents in it, or after maxTimeoutsPerJob executions timed out, 0 disables either check
+    private int maxDocumentsPerJob = 0;
+    private int maxTimeoutsPerJob = 0;
+    private int splitWindowCount = 2;
+
+    // how often a job reading its window in pages saves how far it got, so an execution that dies
+    // is resumed from there, 0 disables checkpoints
+    private long checkpointIntervalMilliseconds = 0;
+
+    // summarize the source window of every execution and skip re-checks of windows that didn't change
+    private boolean incrementalRecheckEnabled = false;
+
+    // compare digests of time ranges of the window on both sides first and only read and compare the documents
+    // of ranges that differ, dividing them into reconciliationFanout sub-ranges until at most
+    // reconciliationLeafSize source documents are left in each
+    private boolean rangeReconciliationEnabled = false;
+    private int reconciliationFanout = 4;
+    private int reconciliationLeafSize = 1000;
+
+    // compare only a deterministic sample of each window, either samplingFraction of its documents or enough of
+    // them to estimate the inconsistency rate within samplingMarginOfError at samplingConfidence, 0 disables either
+    private double samplingFraction = 0;
+    private double samplingConfidence = 0;
+    private double samplingMarginOfError = 0.01;
+
+    // overwrite inconsistent destination documents by updating only their inconsistent paths instead of saving them whole
+    private boolean deltaRepairEnabled = false;
+
+    // write inconsistencies as json lines to files in inconsistencyReportDirectory instead of logging them, starting a new
+    // file every inconsistencyReportMaxFileBytes, and drop reports once inconsistencyQueueDepth of them wait to be written
+    private String inconsistencyReportDirectory;
+    private boolean inconsistencyReportCompressed = false;
+    private long inconsistencyReportMaxFileBytes = 64 * 1024 * 1024;
+    private int inconsistencyQueueDepth = 10000;
+
+    // claim and start a job in a single update, and have job state updates return only the fields they are read for
+    private boolean leanJobStateEnabled = false;
+
+    // claim jobs with a lease that expires after leaseMilliseconds unless the running job renews it
+    private long leaseMilliseconds = 0;
+
+    // when the checker has a worker budget, configurations get workers in proportion to their weight, and those with a
+    // higher priority are given workers first and get the workers other configurations leave idle
+    private int weight = 1;
+    private int priority = 0;
+
+    // most requests and documents per second read from and written to the destination entity, shared by all jobs in the
+    // JVM using that entity, 0 for no limit
+    private double destinationReadRequestsPerSecond = 0;
+    private double destinationReadDocumentsPerSecond = 0;
+    private double destinationWriteRequestsPerSecond = 0;
+    private double destinationWriteDocumentsPerSecond = 0;
+
     public String getConfigFilePath() {
         return configFilePath;
     }
@@ -89,6 +183,38 @@ public class MigrationConfiguration {
 
     public void setComparisonExclusionPaths(List<String> comparisonExclusionPaths) {
         this.comparisonExclusionPaths = comparisonExclusionPaths;
+        this.comparisonExclusionMatcher = null;
+    }
+
+    public List<String> getComparisonInclusionPaths() {
+        return comparisonInclusionPaths;
+    }
+
+    public void setComparisonInclusionPaths(List<String> comparisonInclusionPaths) {
+        this.comparisonInclusionPaths = comparisonInclusionPaths;
+    }
+
+    public boolean isComparisonProjectionEnabled() {
+        return comparisonProjectionEnabled;
+    }
+
+    public void setComparisonProjectionEnabled(boolean comparisonProjectionEnabled) {
+        this.comparisonProjectionEnabled = comparisonProjectionEnabled;
+    }
+
+    /**
+     * @return the comparison exclusion paths compiled into a matcher, which is
+     * compiled once after the paths are set and read without locking from
+     * then on. Changing the list in place is not noticed, set it instead.
+     */
+    public ExclusionPathMatcher getComparisonExclusionMatcher() {
+        ExclusionPathMatcher matcher = comparisonExclusionMatcher;
+        if (matcher == null) {
+            // threads racing here compile the same matcher
+            matcher = ExclusionPathMatcher.compile(comparisonExclusionPaths == null ? Collections.<String>emptyList() : new ArrayList<>(comparisonExclusionPaths));
+            comparisonExclusionMatcher = matcher;
+        }
+        return matcher;
     }
 
     public String getDestinationEntityName() {
@@ -113,6 +239,21 @@ public class MigrationConfiguration {
 
     public void setDestinationIdentityFields(List<String> destinationEntityKeyFields) {
         this.destinationIdentityFields = destinationEntityKeyFields;
+        this.identityExtractor = null;
+    }
+
+    /**
+     * @return the identity fields compiled into an extractor, which is
+     * compiled once after the fields are set and read without locking from
+     * then on. Changing the list in place is not noticed, set it instead.
+     */
+    public IdentityExtractor getIdentityExtractor() {
+        IdentityExtractor extractor = identityExtractor;
+        if (extractor == null) {
+            extractor = IdentityExtractor.compile(destinationIdentityFields == null ? Collections.<String>emptyList() : new ArrayList<>(destinationIdentityFields));
+            identityExtractor = extractor;
+        }
+        return extractor;
     }
 
     public String getSourceEntityName() {
@@ -147,6 +288,310 @@ public class MigrationConfiguration {
         return overwriteDestinationDocuments;
     }
 
+    public int getSourcePageSize() {
+        return sourcePageSize;
+    }
+
+    public void setSourcePageSize(int sourcePageSize) {
+        this.sourcePageSize = sourcePageSize;
+    }
+
+    public boolean isPipelineEnabled() {
+        return pipelineEnabled;
+    }
+
+    public void setPipelineEnabled(boolean pipelineEnabled) {
+        this.pipelineEnabled = pipelineEnabled;
+    }
+
+    public int getSourceQueueDepth() {
+        return sourceQueueDepth;
+    }
+
+    public void setSourceQueueDepth(int sourceQueueDepth) {
+        this.sourceQueueDepth = sourceQueueDepth;
+    }
+
+    public int getDestinationQueueDepth() {
+        return destinationQueueDepth;
+    }
+
+    public void setDestinationQueueDepth(int destinationQueueDepth) {
+        this.destinationQueueDepth = destinationQueueDepth;
+    }
+
+    public int getOverwriteQueueDepth() {
+        return overwriteQueueDepth;
+    }
+
+    public void setOverwriteQueueDepth(int overwriteQueueDepth) {
+        this.overwriteQueueDepth = overwriteQueueDepth;
+    }
+
+    public int getDestinationLookupThreadCount() {
+        return destinationLookupThreadCount;
+    }
+
+    public void setDestinationLookupThreadCount(int destinationLookupThreadCount) {
+        this.destinationLookupThreadCount = destinationLookupThreadCount;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getTargetBatchMilliseconds() {
+        return targetBatchMilliseconds;
+    }
+
+    public void setTargetBatchMilliseconds(long targetBatchMilliseconds) {
+        this.targetBatchMilliseconds = targetBatchMilliseconds;
+    }
+
+    public long getTargetBatchBytes() {
+        return targetBatchBytes;
+    }
+
+    public void setTargetBatchBytes(long targetBatchBytes) {
+        this.targetBatchBytes = targetBatchBytes;
+    }
+
+    public int getOverwriteThreadCount() {
+        return overwriteThreadCount;
+    }
+
+    public void setOverwriteThreadCount(int overwriteThreadCount) {
+        this.overwriteThreadCount = overwriteThreadCount;
+    }
+
+    public int getOverwriteRetryCount() {
+        return overwriteRetryCount;
+    }
+
+    public void setOverwriteRetryCount(int overwriteRetryCount) {
+        this.overwriteRetryCount = overwriteRetryCount;
+    }
+
+    public long getOverwriteRetryBackoffMilliseconds() {
+        return overwriteRetryBackoffMilliseconds;
+    }
+
+    public void setOverwriteRetryBackoffMilliseconds(long overwriteRetryBackoffMilliseconds) {
+        this.overwriteRetryBackoffMilliseconds = overwriteRetryBackoffMilliseconds;
+    }
+
+    public boolean isCompactComparisonEnabled() {
+        return compactComparisonEnabled;
+    }
+
+    public void setCompactComparisonEnabled(boolean compactComparisonEnabled) {
+        this.compactComparisonEnabled = compactComparisonEnabled;
+    }
+
+    public int getMaxDocumentsPerJob() {
+        return maxDocumentsPerJob;
+    }
+
+    public void setMaxDocumentsPerJob(int maxDocumentsPerJob) {
+        this.maxDocumentsPerJob = maxDocumentsPerJob;
+    }
+
+    public int getMaxTimeoutsPerJob() {
+        return maxTimeoutsPerJob;
+    }
+
+    public void setMaxTimeoutsPerJob(int maxTimeoutsPerJob) {
+        this.maxTimeoutsPerJob = maxTimeoutsPerJob;
+    }
+
+    public int getSplitWindowCount() {
+        return splitWindowCount;
+    }
+
+    public void setSplitWindowCount(int splitWindowCount) {
+        this.splitWindowCount = splitWindowCount;
+    }
+
+    public long getCheckpointIntervalMilliseconds() {
+        return checkpointIntervalMilliseconds;
+    }
+
+    public void setCheckpointIntervalMilliseconds(long checkpointIntervalMilliseconds) {
+        this.checkpointIntervalMilliseconds = checkpointIntervalMilliseconds;
+    }
+
+    public boolean isIncrementalRecheckEnabled() {
+        return incrementalRecheckEnabled;
+    }
+
+    public void setIncrementalRecheckEnabled(boolean incrementalRecheckEnabled) {
+        this.incrementalRecheckEnabled = incrementalRecheckEnabled;
+    }
+
+    public boolean isRangeReconciliationEnabled() {
+        return rangeReconciliationEnabled;
+    }
+
+    public void setRangeReconciliationEnabled(boolean rangeReconciliationEnabled) {
+        this.rangeReconciliationEnabled = rangeReconciliationEnabled;
+    }
+
+    public int getReconciliationFanout() {
+        return reconciliationFanout;
+    }
+
+    public void setReconciliationFanout(int reconciliationFanout) {
+        this.reconciliationFanout = reconciliationFanout;
+    }
+
+    public int getReconciliationLeafSize() {
+        return reconciliationLeafSize;
+    }
+
+    public void setReconciliationLeafSize(int reconciliationLeafSize) {
+        this.reconciliationLeafSize = reconciliationLeafSize;
+    }
+
+    public double getSamplingFraction() {
+        return samplingFraction;
+    }
+
+    public void setSamplingFraction(double samplingFraction) {
+        this.samplingFraction = samplingFraction;
+    }
+
+    public double getSamplingConfidence() {
+        return samplingConfidence;
+    }
+
+    public void setSamplingConfidence(double samplingConfidence) {
+        this.samplingConfidence = samplingConfidence;
+    }
+
+    public double getSamplingMarginOfError() {
+        return samplingMarginOfError;
+    }
+
+    public void setSamplingMarginOfError(double samplingMarginOfError) {
+        this.samplingMarginOfError = samplingMarginOfError;
+    }
+
+    public boolean isDeltaRepairEnabled() {
+        return deltaRepairEnabled;
+    }
+
+    public void setDeltaRepairEnabled(boolean deltaRepairEnabled) {
+        this.deltaRepairEnabled = deltaRepairEnabled;
+    }
+
+    public String getInconsistencyReportDirectory() {
+        return inconsistencyReportDirectory;
+    }
+
+    public void setInconsistencyReportDirectory(String inconsistencyReportDirectory) {
+        this.inconsistencyReportDirectory = inconsistencyReportDirectory;
+    }
+
+    public boolean isInconsistencyReportCompressed() {
+        return inconsistencyReportCompressed;
+    }
+
+    public void setInconsistencyReportCompressed(boolean inconsistencyReportCompressed) {
+        this.inconsistencyReportCompressed = inconsistencyReportCompressed;
+    }
+
+    public long getInconsistencyReportMaxFileBytes() {
+        return inconsistencyReportMaxFileBytes;
+    }
+
+    public void setInconsistencyReportMaxFileBytes(long inconsistencyReportMaxFileBytes) {
+        this.inconsistencyReportMaxFileBytes = inconsistencyReportMaxFileBytes;
+    }
+
+    public int getInconsistencyQueueDepth() {
+        return inconsistencyQueueDepth;
+    }
+
+    public void setInconsistencyQueueDepth(int inconsistencyQueueDepth) {
+        this.inconsistencyQueueDepth = inconsistencyQueueDepth;
+    }
+
+    public boolean isLeanJobStateEnabled() {
+        return leanJobStateEnabled;
+    }
+
+    public void setLeanJobStateEnabled(boolean leanJobStateEnabled) {
+        this.leanJobStateEnabled = leanJobStateEnabled;
+    }
+
+    public long getLeaseMilliseconds() {
+        return leaseMilliseconds;
+    }
+
+    public void setLeaseMilliseconds(long leaseMilliseconds) {
+        this.leaseMilliseconds = leaseMilliseconds;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public double getDestinationReadRequestsPerSecond() {
+        return destinationReadRequestsPerSecond;
+    }
+
+    public void setDestinationReadRequestsPerSecond(double destinationReadRequestsPerSecond) {
+        this.destinationReadRequestsPerSecond = destinationReadRequestsPerSecond;
+    }
+
+    public double getDestinationReadDocumentsPerSecond() {
+        return destinationReadDocumentsPerSecond;
+    }
+
+    public void setDestinationReadDocumentsPerSecond(double destinationReadDocumentsPerSecond) {
+        this.destinationReadDocumentsPerSecond = destinationReadDocumentsPerSecond;
+    }
+
+    public double getDestinationWriteRequestsPerSecond() {
+        return destinationWriteRequestsPerSecond;
+    }
+
+    public void setDestinationWriteRequestsPerSecond(double destinationWriteRequestsPerSecond) {
+        this.destinationWriteRequestsPerSecond = destinationWriteRequestsPerSecond;
+    }
+
+    public double getDestinationWriteDocumentsPerSecond() {
+        return destinationWriteDocumentsPerSecond;
+    }
+
+    public void setDestinationWriteDocumentsPerSecond(double destinationWriteDocumentsPerSecond) {
+        this.destinationWriteDocumentsPerSecond = destinationWriteDocumentsPerSecond;
+    }
+
     @Override
     public String toString() {
         return "MigrationConfiguration [configFilePath=" + configFilePath
@@ -157,14 +602,51 @@ public class MigrationConfiguration {
                 + ", threadCount=" + threadCount + ", configurationName="
                 + configurationName + ", consistencyCheckerName="
                 + consistencyCheckerName + ", comparisonExclusionPaths="
-                + comparisonExclusionPaths + ", destinationEntityName="
+                + comparisonExclusionPaths + ", comparisonInclusionPaths="
+                + comparisonInclusionPaths + ", comparisonProjectionEnabled="
+                + comparisonProjectionEnabled + ", destinationEntityName="
                 + destinationEntityName + ", destinationEntityVersion="
                 + destinationEntityVersion + ", destinationIdentityFields="
                 + destinationIdentityFields + ", sourceEntityName="
                 + sourceEntityName + ", sourceEntityVersion="
                 + sourceEntityVersion + ", sourceTimestampPath="
                 + sourceTimestampPath + ", overwriteDestinationDocuments="
-                + overwriteDestinationDocuments + "]";
+                + overwriteDestinationDocuments + ", sourcePageSize="
+                + sourcePageSize + ", pipelineEnabled=" + pipelineEnabled
+                + ", sourceQueueDepth=" + sourceQueueDepth
+                + ", destinationQueueDepth=" + destinationQueueDepth
+                + ", overwriteQueueDepth=" + overwriteQueueDepth
+                + ", destinationLookupThreadCount=" + destinationLookupThreadCount
+                + ", minBatchSize=" + minBatchSize + ", maxBatchSize=" + maxBatchSize
+                + ", targetBatchMilliseconds=" + targetBatchMilliseconds
+                + ", targetBatchBytes=" + targetBatchBytes
+                + ", overwriteThreadCount=" + overwriteThreadCount
+                + ", overwriteRetryCount=" + overwriteRetryCount
+                + ", overwriteRetryBackoffMilliseconds=" + overwriteRetryBackoffMilliseconds
+                + ", compactComparisonEnabled=" + compactComparisonEnabled
+                + ", maxDocumentsPerJob=" + maxDocumentsPerJob
+                + ", maxTimeoutsPerJob=" + maxTimeoutsPerJob
+                + ", splitWindowCount=" + splitWindowCount
+                + ", checkpointIntervalMilliseconds=" + checkpointIntervalMilliseconds
+                + ", incrementalRecheckEnabled=" + incrementalRecheckEnabled
+                + ", rangeReconciliationEnabled=" + rangeReconciliationEnabled
+                + ", reconciliationFanout=" + reconciliationFanout
+                + ", reconciliationLeafSize=" + reconciliationLeafSize
+                + ", samplingFraction=" + samplingFraction
+                + ", samplingConfidence=" + samplingConfidence
+                + ", samplingMarginOfError=" + samplingMarginOfError
+                + ", deltaRepairEnabled=" + deltaRepairEnabled
+                + ", inconsistencyReportDirectory=" + inconsistencyReportDirectory
+                + ", inconsistencyReportCompressed=" + inconsistencyReportCompressed
+                + ", inconsistencyReportMaxFileBytes=" + inconsistencyReportMaxFileBytes
+                + ", inconsistencyQueueDepth=" + inconsistencyQueueDepth
+                + ", leanJobStateEnabled=" + leanJobStateEnabled
+                + ", leaseMilliseconds=" + leaseMilliseconds
+                + ", weight=" + weight + ", priority=" + priority
+                + ", destinationReadRequestsPerSecond=" + destinationReadRequestsPerSecond
+                + ", destinationReadDocumentsPerSecond=" + destinationReadDocumentsPerSecond
+                + ", destinationWriteRequestsPerSecond=" + destinationWriteRequestsPerSecond
+                + ", destinationWriteDocumentsPerSecond=" + destinationWriteDocumentsPerSecond + "]";
     }
 
 }
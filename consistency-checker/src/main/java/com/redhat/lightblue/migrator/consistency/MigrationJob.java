@@ -2,23 +2,43 @@ package com.redhat.lightblue.migrator.consistency;
 
 import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.and;
 import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.or;
+import static com.redhat.lightblue.client.expression.query.UnaryLogicalQuery.not;
 import static com.redhat.lightblue.client.expression.query.ValueQuery.withValue;
 import static com.redhat.lightblue.client.projection.FieldProjection.includeFieldRecursively;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.sql.SQLException;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -29,18 +49,16 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
-import com.fasterxml.jackson.databind.node.MissingNode;
-import com.fasterxml.jackson.databind.node.NullNode;
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueClientConfiguration;
 import com.redhat.lightblue.client.PropertiesLightblueClientConfiguration;
 import com.redhat.lightblue.client.enums.SortDirection;
 import com.redhat.lightblue.client.expression.query.Query;
-import com.redhat.lightblue.client.expression.query.ValueQuery;
 import com.redhat.lightblue.client.expression.update.AppendUpdate;
 import com.redhat.lightblue.client.expression.update.ObjectRValue;
 import com.redhat.lightblue.client.expression.update.PathValuePair;
 import com.redhat.lightblue.client.expression.update.SetUpdate;
+import com.redhat.lightblue.client.expression.update.UnsetUpdate;
 import com.redhat.lightblue.client.expression.update.Update;
 import com.redhat.lightblue.client.http.LightblueHttpClient;
 import com.redhat.lightblue.client.hystrix.LightblueHystrixClient;
@@ -49,6 +67,7 @@ import com.redhat.lightblue.client.projection.Projection;
 import com.redhat.lightblue.client.request.AbstractLightblueDataRequest;
 import com.redhat.lightblue.client.request.SortCondition;
 import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataInsertRequest;
 import com.redhat.lightblue.client.request.data.DataSaveRequest;
 import com.redhat.lightblue.client.request.data.DataUpdateRequest;
 import com.redhat.lightblue.client.response.LightblueResponse;
@@ -96,6 +115,16 @@ public class MigrationJob implements Runnable {
 
     MigrationJobExecution currentRun;
 
+    // position of currentRun in the jobExecutions saved in lightblue
+    private int currentRunPsn = -1;
+
+    // where processing of the window resumes after an earlier execution died, and when progress was last saved
+    private Date resumeDate;
+    private long lastCheckpointMillis;
+
+    // summary of the source documents checked by this execution, when incremental re-checks are enabled
+    private WindowDigest windowDigest;
+
     private String _id;
 
     // information about migrator instance working job
@@ -113,7 +142,44 @@ public class MigrationJob implements Runnable {
     // how long we think it will take
     private int expectedExecutionMilliseconds;
 
-    private boolean hasInconsistentDocuments = false;
+    // the job whose window was split to create this one
+    private String parentJobId;
+
+    // set to check the window of a completed job again, cleared when an execution completes it again
+    private boolean recheck = false;
+
+    // who may run the job, and until when, when jobs are claimed with a lease
+    private String leaseOwner;
+    private Date leaseExpirationDate;
+
+    // whether this execution holds the lease, and what renews it while it runs
+    private volatile boolean leaseHeld = false;
+    private ScheduledExecutorService leaseRenewer;
+    // when the last claim or renewal that succeeded was sent
+    private volatile long leaseRenewedMillis;
+    // timed out executions as of the claim, the job's executions are read before other checkers' executions are marked dead
+    private int claimedTimeoutCount = -1;
+
+    private volatile boolean hasInconsistentDocuments = false;
+
+    // time this execution's threads spent waiting on the destination rate limits
+    private final AtomicLong throttledMilliseconds = new AtomicLong();
+
+    private ExecutorService destinationLookupExecutor;
+
+    private ExecutorService overwriteExecutor;
+
+    /**
+     * Fingerprints of the documents read from lightblue that have not been
+     * compared yet, computed as the responses are parsed.
+     */
+    private final Map<JsonNode, DocumentFingerprint> fingerprints = Collections.synchronizedMap(new IdentityHashMap<JsonNode, DocumentFingerprint>());
+
+    // inconsistent paths of the source documents to overwrite, kept until they are repaired when repairing by path
+    private final Map<JsonNode, List<String>> repairPaths = Collections.synchronizedMap(new IdentityHashMap<JsonNode, List<String>>());
+
+    // where inconsistencies are reported, created on the first one
+    private InconsistencySink inconsistencySink;
 
     public String get_id() {
         return _id;
@@ -255,6 +321,54 @@ public class MigrationJob implements Runnable {
         this.expectedExecutionMilliseconds = expectedExecutionMilliseconds;
     }
 
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public void setLeaseOwner(String leaseOwner) {
+        this.leaseOwner = leaseOwner;
+    }
+
+    public Date getLeaseExpirationDate() {
+        return leaseExpirationDate;
+    }
+
+    public void setLeaseExpirationDate(Date leaseExpirationDate) {
+        this.leaseExpirationDate = leaseExpirationDate;
+    }
+
+    public String getParentJobId() {
+        return parentJobId;
+    }
+
+    public void setParentJobId(String parentJobId) {
+        this.parentJobId = parentJobId;
+    }
+
+    public boolean isRecheck() {
+        return recheck;
+    }
+
+    public void setRecheck(boolean recheck) {
+        this.recheck = recheck;
+    }
+
+    /**
+     * @return the batch size used for destination lookups, shared by all jobs
+     * of this job's configuration
+     */
+    public AdaptiveBatchSize getDestinationLookupBatchSize() {
+        return AdaptiveBatchSize.forConfiguration(getJobConfiguration(), "lookup");
+    }
+
+    /**
+     * @return the batch size used for overwriting destination documents,
+     * shared by all jobs of this job's configuration
+     */
+    public AdaptiveBatchSize getOverwriteBatchSize() {
+        return AdaptiveBatchSize.forConfiguration(getJobConfiguration(), "save");
+    }
+
     public int getDocumentsProcessed() {
         return currentRun.getProcessedDocumentCount();
     }
@@ -283,82 +397,103 @@ public class MigrationJob implements Runnable {
             currentRun.setPid(pid);
             currentRun.setActualStartDate(new Date());
             getJobExecutions().add(currentRun);
+            throttledMilliseconds.set(0);
+            claimedTimeoutCount = -1;
 
-            LightblueResponse response = saveJobDetails(-1);
-            LOGGER.debug("Start Save Response: {}", response.getText());
-
-            Object[] x = shouldProcessJob(pid, response.parseProcessed(MigrationJob[].class));
-            boolean processJob = (Boolean) x[0];
-            jobExecutionPsn = (Integer) x[1];
-
-            if (processJob) {
+            boolean leased = getJobConfiguration().getLeaseMilliseconds() > 0;
+            boolean leanJobState = getJobConfiguration().isLeanJobStateEnabled();
+            if (leased || leanJobState) {
+                // started as running by the update that claims the job, it is marked aborted if the claim fails
                 currentRun.setJobStatus(JobStatus.RUNNING);
-                LightblueResponse responseMarkExecutionStatus = markExecutionStatusAndEndDate(jobExecutionPsn, currentRun.getJobStatus(), false);
-                LOGGER.debug("Updated Status Response for status {}: {}", currentRun.getJobStatus(), responseMarkExecutionStatus.getText());
+            }
+
+            boolean processJob;
+            LightblueResponse response;
+            if (leased) {
+                leaseRenewedMillis = System.currentTimeMillis();
+                response = claimLease();
+                LOGGER.debug("Lease Response: {}", response.getText());
+                jobExecutionPsn = getClaimedExecutionPsn(response);
+                processJob = jobExecutionPsn >= 0;
+            } else {
+                response = leanJobState ? claimJob() : saveJobDetails(-1);
+                LOGGER.debug("Start Save Response: {}", response.getText());
 
-                Map<String, JsonNode> sourceDocuments = getSourceDocuments();
-                Map<String, JsonNode> destinationDocuments = getDestinationDocuments(sourceDocuments);
+                Object[] x = shouldProcessJob(pid, response.parseProcessed(MigrationJob[].class));
+                processJob = (Boolean) x[0];
+                jobExecutionPsn = (Integer) x[1];
+            }
+            currentRunPsn = jobExecutionPsn;
 
-                List<JsonNode> documentsToOverwrite = getDocumentsToOverwrite(sourceDocuments, destinationDocuments);
-                if (!documentsToOverwrite.isEmpty()) {
-                    hasInconsistentDocuments = true;
+            if (processJob) {
+                if (leased) {
+                    leaseHeld = true;
+                    startLeaseRenewal();
+                    markDeadExecutions(response);
+                } else if (!leanJobState) {
+                    currentRun.setJobStatus(JobStatus.RUNNING);
+                    LightblueResponse responseMarkExecutionStatus = markExecutionStatusAndEndDate(jobExecutionPsn, currentRun.getJobStatus(), false);
+                    LOGGER.debug("Updated Status Response for status {}: {}", currentRun.getJobStatus(), responseMarkExecutionStatus.getText());
                 }
 
-                currentRun.setProcessedDocumentCount(sourceDocuments.size());
-                currentRun.setConsistentDocumentCount(sourceDocuments.size() - documentsToOverwrite.size());
-                currentRun.setInconsistentDocumentCount(documentsToOverwrite.size());
-
-                // Check the status of the overwritten documents
-                boolean allComplete = true;
-                boolean anyPartial = false;
-                boolean anyAsync = false;
-
-                if (shouldOverwriteDestinationDocuments() && hasInconsistentDocuments) {
-                    List<LightblueResponse> responses = overwriteLightblue(documentsToOverwrite);
-                    int totalOverwrittenDocumentCount = 0;
-
-                    for (LightblueResponse r : responses) {
-                        totalOverwrittenDocumentCount += r.parseModifiedCount();
-                        JsonNode jsonNode = r.getJson();
-                        JsonNode jsStatus = jsonNode.findValue("status");
-                        if (jsStatus == null || jsStatus instanceof NullNode || jsStatus instanceof MissingNode) {
-                            // It should not reach here as is expected lightblue to throw an exception
-                            LOGGER.error("In sourceDocuments: Found 'error' in response's status in one of the documents!");
-                            throw new RuntimeException("Found 'error' in response's status!");
-                        }
-                        String status = jsStatus.asText(); // TODO lightblue client should have a better way to handle this
-                        if (!STATUS_COMPLETE.equalsIgnoreCase(status)) {
-                            allComplete = false;
-                            if (STATUS_PARTIAL.equalsIgnoreCase(status)) {
-                                anyPartial = true;
-                            } else if (STATUS_ASYNC.equalsIgnoreCase(status)) {
-                                anyAsync = true;
-                            } else if (STATUS_ERROR.equalsIgnoreCase(status)) {
-                                // It should not reach here as is expected lightblue to throw an exception
-                                LOGGER.error("In sourceDocuments: Found 'error' in response's status in one of the documents!");
-                                throw new RuntimeException("Found 'error' in response's status!");
-                            } else {
-                                // It should not reach here as lightblue response should always have a status
-                                LOGGER.error("In sourceDocuments: One of the JSON returned doesn't have a valid status. Status set on the response was \"{}\"", status);
-                                throw new RuntimeException("Invalid status from the response: " + status);
-                            }
-                        }
-                    }
-                    currentRun.setOverwrittenDocumentCount(totalOverwrittenDocumentCount);
+                resumeDate = getResumeWatermark();
+                if (resumeDate != null) {
+                    LOGGER.info("Resuming job {} from checkpoint {}", _id, resumeDate);
+                    currentRun.setProgressWatermark(resumeDate);
                 }
-                if (allComplete) {
+                lastCheckpointMillis = System.currentTimeMillis();
+
+                List<IdentityKey> failedIdentities = getFailedIdentities();
+                if (failedIdentities != null) {
+                    LOGGER.info("Retrying {} documents of job {} that could not be overwritten", failedIdentities.size(), _id);
+                    OverwriteStatus overwriteStatus = new OverwriteStatus();
+                    processSourceIdentities(failedIdentities, overwriteStatus);
+                    recordOverwriteStatus(overwriteStatus);
+                } else if (shouldSplitWindow()) {
+                    currentRun.setChildJobCount(splitWindow());
+                    currentRun.setJobStatus(JobStatus.COMPLETED_SPLIT);
+                } else if (isWindowUnchanged()) {
+                    LOGGER.info("Skipping job {}, source window unchanged since last successful execution", _id);
+                    currentRun.setSkippedUnchanged(true);
                     currentRun.setJobStatus(JobStatus.COMPLETED_SUCCESS);
-                } else if (anyPartial) {
-                    currentRun.setJobStatus(JobStatus.COMPLETED_PARTIAL);
-                } else if (anyAsync) {
-                    currentRun.setJobStatus(JobStatus.COMPLETED_IGNORED);
                 } else {
-                    currentRun.setJobStatus(JobStatus.UNKNOWN);
+                    OverwriteStatus overwriteStatus = new OverwriteStatus();
+                    if (isSampling()) {
+                        sampleWindow(overwriteStatus);
+                    } else if (getJobConfiguration().isRangeReconciliationEnabled() && getWindowStartDate() != null && endDate != null) {
+                        reconcileWindow(overwriteStatus);
+                    } else if (getJobConfiguration().isPipelineEnabled()) {
+                        new MigrationJobPipeline(this, overwriteStatus).run();
+                    } else if (getJobConfiguration().getSourcePageSize() > 0) {
+                        processSourcePages(overwriteStatus);
+                    } else {
+                        processSourceDocuments(getSourceDocuments(), overwriteStatus);
+                    }
+                    recordOverwriteStatus(overwriteStatus);
+                }
+                if (windowDigest != null) {
+                    currentRun.setSourceDocumentCount(windowDigest.getDocumentCount());
+                    currentRun.setMaxSourceTimestamp(windowDigest.getMaxTimestamp());
+                    currentRun.setSourceDigest(windowDigest.getDigest());
+                }
+
+                currentRun.setThrottledMilliseconds(throttledMilliseconds.get());
+                if (currentRun.getThrottledMilliseconds() > 0) {
+                    LOGGER.info("Job {} waited {} ms on destination rate limits", _id, currentRun.getThrottledMilliseconds());
                 }
 
                 currentRun.setActualEndDate(new Date());
+                stopLeaseRenewal();
+                // the last renewal may have failed, saving without the lease would overwrite another checker's work
                 saveJobDetails(jobExecutionPsn);
                 LOGGER.debug("Success Save Response: {}", response.getText());
+
+                if (parentJobId != null) {
+                    aggregateIntoParentJobs();
+                }
+            } else if (leased) {
+                // nothing was written, the job is run by whoever holds the lease
+                LOGGER.info("Not processing job {}, it is leased to another checker", _id);
             } else {
                 // mark aborted
                 currentRun.setJobStatus(JobStatus.ABORTED_DUPLICATE);
@@ -367,6 +502,9 @@ public class MigrationJob implements Runnable {
                 LOGGER.debug("No Run Mark Updated Response: {}", responseMarkExecutionStatus.getText());
             }
 
+        } catch (LeaseLostException e) {
+            // whoever took the lease owns the job state now, nothing is written
+            LOGGER.error("Stopped job {}: {}", _id, e.getMessage());
         } catch (RuntimeException | LightblueResponseParseException | SQLException | IOException e) {
             // would be nice to reference DataType.DATE_FORMAT_STR in core..
             DateFormat dateFormat = ClientConstants.getDateFormat();
@@ -375,298 +513,2101 @@ public class MigrationJob implements Runnable {
                     getJobConfiguration(), (getStartDate() == null ? "null" : dateFormat.format(getStartDate())),
                     (getEndDate() == null ? "null" : dateFormat.format(getEndDate()))), e);
             try {
-                currentRun.setJobStatus(JobStatus.ABORTED_UNKNOWN);
-                LightblueResponse lr = markExecutionStatusAndEndDate(jobExecutionPsn, currentRun.getJobStatus(), true);
-                LOGGER.debug("Processing RuntimeException and just updated Status Response for status {}: {}", currentRun.getJobStatus(), lr.getText());
+                stopLeaseRenewal();
+                // without the lease the execution was never claimed, the last one belongs to someone else
+                if (getJobConfiguration().getLeaseMilliseconds() <= 0 || holdsLease()) {
+                    currentRun.setJobStatus(JobStatus.ABORTED_UNKNOWN);
+                    LightblueResponse lr = markExecutionStatusAndEndDate(jobExecutionPsn, currentRun.getJobStatus(), true);
+                    LOGGER.debug("Processing RuntimeException and just updated Status Response for status {}: {}", currentRun.getJobStatus(), lr.getText());
+                }
             } catch (RuntimeException re) {
                 LOGGER.error("Couldn't update failed job's status", re);
             } catch (IOException ex) {
                 LOGGER.error("Couldn't update failed job's status", ex);
             }
+        } finally {
+            stopLeaseRenewal();
+            leaseHeld = false;
+            shutdownDestinationLookupExecutor();
+            shutdownOverwriteExecutor();
+            closeInconsistencySink();
+            fingerprints.clear();
+            repairPaths.clear();
         }
 
         LOGGER.debug("MigrationJob completed");
     }
 
     /**
-     * Return array with two elements indicating if the job should process and
-     * what the index of the jobExecution is.
+     * A window is split when the source has more documents in it than the
+     * configuration's maxDocumentsPerJob, or when maxTimeoutsPerJob executions
+     * of the job have timed out. Windows too short to give every child at
+     * least a millisecond are never split.
      *
-     * @param pid the pid of the current job execution
-     * @param jobs the jobs that came back from lightblue
-     * @return object array where index 0 is a Boolean indicating if the job
-     * should be processed, index 1 is an Integer indicating the position in the
-     * jobExecutions array for this job execution attempt
+     * @return true if the window should be split into child jobs instead of
+     * being processed
      */
-    protected static Object[] shouldProcessJob(String pid, MigrationJob[] jobs) throws LightblueResponseParseException {
-        boolean processJob = true;
-        int jobExecutionPsn = -1;
-
-        // should only be one job returned, verify
-        if (jobs.length > 1) {
-            throw new RuntimeException("Error parsing lightblue response: more than one job returned: " + jobs.length);
+    protected boolean shouldSplitWindow() throws IOException {
+        MigrationConfiguration configuration = getJobConfiguration();
+        int splitWindowCount = configuration.getSplitWindowCount();
+        Date windowStart = getWindowStartDate();
+        if (splitWindowCount < 2 || windowStart == null || endDate == null
+                || endDate.getTime() - windowStart.getTime() + 1 < splitWindowCount) {
+            return false;
         }
 
-        // first incomplete job execution must be for this execution else we don't process it
-        int i = 0;
-        for (MigrationJobExecution execution : jobs[0].getJobExecutions()) {
-            // if we find an execution that is not our pid but is active
-            // in the array before ours, we do not get to process
-            if (jobExecutionPsn < 0 && !execution.getJobStatus().isCompleted() && !pid.equals(execution.getPid())) {
-                // we shouldn't be processing this particular job.  abort.
-                processJob = false;
-                break;
+        if (configuration.getMaxTimeoutsPerJob() > 0) {
+            int timeouts = claimedTimeoutCount;
+            if (timeouts < 0) {
+                timeouts = 0;
+                for (MigrationJobExecution execution : getJobExecutions()) {
+                    if (isTimedOut(execution.getJobStatus())) {
+                        timeouts++;
+                    }
+                }
             }
-
-            // find last job execution for our pid
-            if (pid.equals(execution.getPid())) {
-                jobExecutionPsn = i;
-            } else if (jobExecutionPsn >= 0) {
-                // we have found the last execution matching our pid.
-                // this should be the "current" execution.
-                break;
+            if (timeouts >= configuration.getMaxTimeoutsPerJob()) {
+                LOGGER.info("Splitting job {} after {} timed out executions", _id, timeouts);
+                return true;
             }
-
-            // increment position in array
-            i++;
         }
 
-        return new Object[]{processJob, jobExecutionPsn};
+        if (configuration.getMaxDocumentsPerJob() > 0) {
+            int documentCount = countSourceDocuments();
+            if (documentCount > configuration.getMaxDocumentsPerJob()) {
+                LOGGER.info("Splitting job {} with {} source documents", _id, documentCount);
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void configureClients() throws IOException {
-        if (null == sourceClient || null == destinationClient) {
-            synchronized (this) {
-                if (null == sourceClient || null == destinationClient) {
-                    LightblueHttpClient source;
-                    LightblueHttpClient destination;
-                    if (getSourceConfigPath() == null && getDestinationConfigPath() == null) {
-                        source = new LightblueHttpClient();
-                        destination = new LightblueHttpClient();
-                    } else {
-                        // load from config files
-                        try (InputStream is = Thread.currentThread()
-                                .getContextClassLoader().getResourceAsStream(getSourceConfigPath())) {
-                            LightblueClientConfiguration config = PropertiesLightblueClientConfiguration.fromInputStream(is);
-                            source = new LightblueHttpClient(config);
-                        }
+    private static boolean isTimedOut(JobStatus status) {
+        return JobStatus.COMPLETED_DEAD.equals(status) || JobStatus.ABORTED_TIMEOUT.equals(status);
+    }
 
-                        try (InputStream is = Thread.currentThread()
-                                .getContextClassLoader().getResourceAsStream(getDestinationConfigPath())) {
-                            LightblueClientConfiguration config = PropertiesLightblueClientConfiguration.fromInputStream(is);
-                            destination = new LightblueHttpClient(config);
-                        }
-                    }
-                    sourceClient = new LightblueHystrixClient(source, "migrator", "sourceClient");
-                    destinationClient = new LightblueHystrixClient(destination, "migrator", "destinationClient");
+    /**
+     * @return the number of source documents in the job's window, read from
+     * the match count of a find returning a single document
+     */
+    protected int countSourceDocuments() throws IOException {
+        DataFindRequest countRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+        countRequest.where(createSourceWindowQuery());
+        countRequest.select(new FieldProjection(getJobConfiguration().getSourceTimestampPath(), true, false));
+        // range is inclusive, the match count still covers the whole window
+        countRequest.range(0, 0);
 
-                }
-            }
+        configureClients();
+        LightblueResponse response = getSourceClient().data(countRequest);
+        if (response.hasError()) {
+            throw new RuntimeException("Error returned in response " + response.getText() + " for request " + countRequest.getBody());
         }
+        return response.getJson().path("matchCount").asInt();
     }
 
     /**
-     * NOTE this does not change the objects in memory!
+     * Inserts child jobs that divide the rest of this job's window into
+     * splitWindowCount equal parts. The children are available right away and
+     * split again on their own if they are still too large.
      *
-     * @param jobExecutionPsn
-     * @param jobStatus
-     * @param updateEndDate
-     * @return
+     * @return the number of child jobs
      */
-    protected LightblueResponse markExecutionStatusAndEndDate(int jobExecutionPsn, JobStatus jobStatus, boolean updateEndDate) throws IOException {
-        // LightblueClient - update job status
-        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
-        updateRequest.where(withValue("_id" + " = " + _id));
-
-        List<Projection> projections = new ArrayList<>();
-        projections.add(new FieldProjection("*", true, true));
-        updateRequest.setProjections(projections);
+    protected int splitWindow() throws IOException {
+        int childJobCount = getJobConfiguration().getSplitWindowCount();
+        long start = getWindowStartDate().getTime();
+        long span = endDate.getTime() - start + 1;
+        DateFormat dateFormat = ClientConstants.getDateFormat();
+        String now = dateFormat.format(new Date());
+
+        Object[] childJobs = new Object[childJobCount];
+        for (int i = 0; i < childJobCount; i++) {
+            // windows include both ends, so each child ends just before the next one starts
+            Map<String, Object> childJob = new LinkedHashMap<>();
+            childJob.put("objectType", "migrationJob");
+            childJob.put("configurationName", getConfigurationName());
+            childJob.put("parentJobId", _id);
+            childJob.put("startDate", dateFormat.format(new Date(start + span * i / childJobCount)));
+            childJob.put("endDate", dateFormat.format(new Date(start + span * (i + 1) / childJobCount - 1)));
+            childJob.put("whenAvailableDate", now);
+            childJob.put("expectedExecutionMilliseconds", expectedExecutionMilliseconds);
+            childJob.put("jobExecutions", new ArrayList<>());
+            childJob.put("creationDate", now);
+            childJob.put("createdBy", owner);
+            childJob.put("lastUpdateDate", now);
+            childJob.put("lastUpdatedBy", owner);
+            childJobs[i] = childJob;
+        }
 
-        List<Update> updates = new ArrayList<>();
+        DataInsertRequest insertRequest = new DataInsertRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        insertRequest.create(childJobs);
+        LOGGER.debug("Split job {}: {}", _id, insertRequest.getBody());
+        callLightblue(insertRequest);
+        return childJobCount;
+    }
 
-        if (updateEndDate) {
-            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualEndDate", new ObjectRValue(new Date()))));
+    /**
+     * Aggregates the results of this job and its siblings into their parent's
+     * split execution. Once every child of the parent is complete the parent
+     * is complete too, so the aggregation continues with the parent's parent.
+     */
+    protected void aggregateIntoParentJobs() {
+        String jobId = parentJobId;
+        try {
+            while (jobId != null) {
+                jobId = aggregateChildJobs(jobId);
+            }
+        } catch (RuntimeException | LightblueResponseParseException | IOException e) {
+            // the children's own results are saved, only the parent's totals are behind
+            LOGGER.warn("Unable to aggregate results of child jobs into job " + jobId, e);
         }
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".jobStatus", new ObjectRValue(jobStatus.toString()))));
-        updateRequest.updates(updates);
-
-        LOGGER.debug("Marking Execution Complete: {}", updateRequest.getBody());
-        return callLightblue(updateRequest);
     }
 
     /**
+     * Sets the document counts of a job's split execution to the totals of
+     * the latest completed execution of each child job.
      *
-     * @param jobExecutionPsn if this is the initial save, set to -1
-     * @return
+     * @param jobId the job that was split
+     * @return the parent of the job if all of its children are complete, else
+     * null
      */
-    private LightblueResponse saveJobDetails(int jobExecutionPsn) throws IOException {
-        // LightblueClient - update job details
-        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
-        updateRequest.where(withValue("_id" + " = " + _id));
+    private String aggregateChildJobs(String jobId) throws IOException, LightblueResponseParseException {
+        DataFindRequest findRequest = new DataFindRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        findRequest.where(or(withValue("_id = " + jobId), withValue("parentJobId = " + jobId)));
+        findRequest.select(includeFieldRecursively("*"));
+        MigrationJob[] jobs = callLightblue(findRequest).parseProcessed(MigrationJob[].class);
+
+        MigrationJob splitJob = null;
+        int splitExecutionPsn = -1;
+        MigrationJobExecution totals = new MigrationJobExecution();
+        for (MigrationJob job : jobs) {
+            if (jobId.equals(job.get_id())) {
+                splitJob = job;
+                for (int i = 0; i < job.getJobExecutions().size(); i++) {
+                    if (JobStatus.COMPLETED_SPLIT.equals(job.getJobExecutions().get(i).getJobStatus())) {
+                        splitExecutionPsn = i;
+                    }
+                }
+                continue;
+            }
+            MigrationJobExecution completed = getLatestCompletedExecution(job);
+            if (completed != null) {
+                totals.setProcessedDocumentCount(totals.getProcessedDocumentCount() + completed.getProcessedDocumentCount());
+                totals.setConsistentDocumentCount(totals.getConsistentDocumentCount() + completed.getConsistentDocumentCount());
+                totals.setInconsistentDocumentCount(totals.getInconsistentDocumentCount() + completed.getInconsistentDocumentCount());
+                totals.setOverwrittenDocumentCount(totals.getOverwrittenDocumentCount() + completed.getOverwrittenDocumentCount());
+                totals.setCompletedChildJobCount(totals.getCompletedChildJobCount() + 1);
+            }
+        }
+        if (splitJob == null || splitExecutionPsn < 0) {
+            LOGGER.warn("Job {} has no split execution to aggregate child jobs into", jobId);
+            return null;
+        }
 
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(withValue("_id" + " = " + jobId));
         List<Projection> projections = new ArrayList<>();
-        projections.add(new FieldProjection("*", true, true));
+        projections.add(new FieldProjection("_id", true, false));
         updateRequest.setProjections(projections);
 
+        String execution = "jobExecutions." + splitExecutionPsn;
         List<Update> updates = new ArrayList<>();
-        if (jobExecutionPsn < 0) {
-            updates.add(new AppendUpdate("jobExecutions", new ObjectRValue(new HashMap<>())));
-            jobExecutionPsn = -1;
-        }
-
-        // TODO update specific job execution...
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".ownerName", new ObjectRValue(currentRun.getOwnerName()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".hostName", new ObjectRValue(currentRun.getHostName()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".pid", new ObjectRValue(currentRun.getPid()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualStartDate", new ObjectRValue(currentRun.getActualStartDate()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualEndDate", new ObjectRValue(currentRun.getActualEndDate()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".jobStatus", new ObjectRValue(currentRun.getJobStatus().toString()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".processedDocumentCount", new ObjectRValue(currentRun.getProcessedDocumentCount()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".consistentDocumentCount", new ObjectRValue(currentRun.getConsistentDocumentCount()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".inconsistentDocumentCount", new ObjectRValue(currentRun.getInconsistentDocumentCount()))));
-        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".overwrittenDocumentCount", new ObjectRValue(currentRun.getOverwrittenDocumentCount()))));
-
-        if (currentRun.getSourceQuery() != null && !currentRun.getSourceQuery().isEmpty()) {
-            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".sourceQuery", new ObjectRValue(currentRun.getSourceQuery()))));
-        }
+        updates.add(new SetUpdate(new PathValuePair(execution + ".processedDocumentCount", new ObjectRValue(totals.getProcessedDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".consistentDocumentCount", new ObjectRValue(totals.getConsistentDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".inconsistentDocumentCount", new ObjectRValue(totals.getInconsistentDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".overwrittenDocumentCount", new ObjectRValue(totals.getOverwrittenDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".completedChildJobCount", new ObjectRValue(totals.getCompletedChildJobCount()))));
         updateRequest.updates(updates);
 
-        LOGGER.debug("save: {}", updateRequest.getBody());
+        LOGGER.debug("Aggregating child jobs: {}", updateRequest.getBody());
+        callLightblue(updateRequest);
 
-        return callLightblue(updateRequest);
+        MigrationJobExecution splitExecution = splitJob.getJobExecutions().get(splitExecutionPsn);
+        return totals.getCompletedChildJobCount() >= splitExecution.getChildJobCount() ? splitJob.getParentJobId() : null;
     }
 
-    protected List<LightblueResponse> overwriteLightblue(List<JsonNode> documentsToOverwrite) throws IOException {
-        List<LightblueResponse> responses = new ArrayList<>();
-        if (documentsToOverwrite.size() <= BATCH_SIZE) {
-            responses.add(doOverwriteLightblue(documentsToOverwrite));
-            return responses;
+    /**
+     * @return the last execution of the job that completed its window,
+     * including split executions whose children all completed, or null
+     */
+    private static MigrationJobExecution getLatestCompletedExecution(MigrationJob job) {
+        MigrationJobExecution completed = null;
+        for (MigrationJobExecution execution : job.getJobExecutions()) {
+            JobStatus status = execution.getJobStatus();
+            if (JobStatus.COMPLETED_SUCCESS.equals(status) || JobStatus.COMPLETED_PARTIAL.equals(status)
+                    || (JobStatus.COMPLETED_SPLIT.equals(status) && execution.getCompletedChildJobCount() >= execution.getChildJobCount())) {
+                completed = execution;
+            }
         }
+        return completed;
+    }
 
-        int totalModified = 0;
-        int position = 0;
+    /**
+     * Checks whether the source window changed since the last successful
+     * execution, cheapest check first: the document count and latest source
+     * timestamp, then a hash of the identities and timestamps read without the
+     * rest of the documents. The summary is taken before the window is
+     * checked, so documents changing during the check are seen by the next
+     * re-check. Resumed executions don't check the whole window and are never
+     * summarized. A completed job is checked again once it is queued with
+     * recheck set, see {@link #setRecheck(boolean)}.
+     *
+     * @return true if the window is unchanged and doesn't need to be checked
+     */
+    protected boolean isWindowUnchanged() throws IOException {
+        if (!getJobConfiguration().isIncrementalRecheckEnabled() || resumeDate != null) {
+            return false;
+        }
+        // collects the summary of the documents checked if the window changed
+        windowDigest = new WindowDigest();
 
-        while (position < documentsToOverwrite.size()) {
-            int limitedPosition = position + BATCH_SIZE;
-            if (limitedPosition > documentsToOverwrite.size()) {
-                limitedPosition = documentsToOverwrite.size();
+        MigrationJobExecution verified = null;
+        for (MigrationJobExecution execution : getJobExecutions()) {
+            if (JobStatus.COMPLETED_SUCCESS.equals(execution.getJobStatus()) && execution.getSourceDigest() != null) {
+                verified = execution;
             }
+        }
+        if (verified == null) {
+            return false;
+        }
 
-            List<JsonNode> subList = documentsToOverwrite.subList(position, limitedPosition);
-            responses.add(doOverwriteLightblue(subList));
-
-            position = limitedPosition;
+        if (countSourceDocuments() != verified.getSourceDocumentCount()) {
+            LOGGER.debug("Source document count of job {} changed", _id);
+            return false;
+        }
+        Date maxSourceTimestamp = findMaxSourceTimestamp();
+        if (maxSourceTimestamp == null ? verified.getMaxSourceTimestamp() != null : !maxSourceTimestamp.equals(verified.getMaxSourceTimestamp())) {
+            LOGGER.debug("Latest source timestamp of job {} changed", _id);
+            return false;
         }
 
-        return responses;
+        WindowDigest digest = new WindowDigest();
+        for (Map.Entry<IdentityKey, JsonNode> document : findSourceIdentities().entrySet()) {
+            digest.add(document.getKey(), getSourceTimestamp(document.getValue()));
+        }
+        if (!digest.getDigest().equals(verified.getSourceDigest())) {
+            LOGGER.debug("Source digest of job {} changed", _id);
+            return false;
+        }
+        windowDigest = digest;
+        return true;
     }
 
-    private LightblueResponse doOverwriteLightblue(List<JsonNode> documentsToOverwrite) throws IOException {
-        // LightblueClient - save & overwrite documents
-        DataSaveRequest saveRequest = new DataSaveRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
-        saveRequest.create(documentsToOverwrite.toArray());
-        List<Projection> projections = new ArrayList<>();
-        projections.add(new FieldProjection("*", false, true));
-        saveRequest.returns(projections);
-        return callLightblue(saveRequest);
-    }
+    /**
+     * @return the latest source timestamp in the job's window, or null if the
+     * window is empty
+     */
+    protected Date findMaxSourceTimestamp() throws IOException {
+        DataFindRequest maxRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+        maxRequest.where(createSourceWindowQuery());
+        maxRequest.select(new FieldProjection(getJobConfiguration().getSourceTimestampPath(), true, false));
+        maxRequest.sort(new SortCondition(getJobConfiguration().getSourceTimestampPath(), SortDirection.DESC));
+        // range is inclusive
+        maxRequest.range(0, 0);
 
-    protected Map<String, JsonNode> getSourceDocuments() throws SQLException, IOException {
-        DataFindRequest sourceRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
-        List<Query> conditions = new LinkedList<>();
-        conditions.add(withValue(getJobConfiguration().getSourceTimestampPath() + " >= " + getStartDate()));
-        conditions.add(withValue(getJobConfiguration().getSourceTimestampPath() + " <= " + getEndDate()));
-        sourceRequest.where(and(conditions));
-        sourceRequest.select(includeFieldRecursively("*"));
-        currentRun.setSourceQuery(sourceRequest.getBody());
-        return findSourceData(sourceRequest);
+        configureClients();
+        JsonNode[] results = getSourceClient().data(maxRequest, JsonNode[].class);
+        return results == null || results.length == 0 ? null : getSourceTimestamp(results[0]);
     }
 
-    protected Map<String, JsonNode> getDestinationDocuments(Map<String, JsonNode> sourceDocuments) throws IOException {
-        Map<String, JsonNode> destinationDocuments = new LinkedHashMap<>();
-        if (sourceDocuments == null || sourceDocuments.isEmpty()) {
-            LOGGER.debug("Unable to fetch any destination documents as there are no source documents");
-            return destinationDocuments;
+    /**
+     * @return the source documents of the job's window with only their
+     * identity fields and source timestamp
+     */
+    protected Map<IdentityKey, JsonNode> findSourceIdentities() throws IOException {
+        DataFindRequest identityRequest = createIdentityRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+        Map<IdentityKey, JsonNode> documents = findSourceData(identityRequest);
+        // these are never compared
+        for (JsonNode document : documents.values()) {
+            fingerprints.remove(document);
         }
+        return documents;
+    }
 
-        if (sourceDocuments.size() <= BATCH_SIZE) {
-            return doDestinationDocumentFetch(sourceDocuments);
+    /**
+     * @return the destination documents of the job's window with only their
+     * identity fields and source timestamp
+     */
+    protected Map<IdentityKey, JsonNode> findDestinationIdentities() throws IOException {
+        DataFindRequest identityRequest = createIdentityRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
+        Map<IdentityKey, JsonNode> documents = findDestinationData(identityRequest);
+        // these are never compared
+        for (JsonNode document : documents.values()) {
+            fingerprints.remove(document);
         }
+        return documents;
+    }
 
-        List<String> keys = Arrays.asList(sourceDocuments.keySet().toArray(new String[0]));
-        int position = 0;
-        while (position < keys.size()) {
-            int limitedPosition = position + BATCH_SIZE;
-            if (limitedPosition > keys.size()) {
-                limitedPosition = keys.size();
-            }
-
-            List<String> subKeys = keys.subList(position, limitedPosition);
-            Map<String, JsonNode> batch = new HashMap<>();
-            for (String subKey : subKeys) {
-                batch.put(subKey, sourceDocuments.get(subKey));
+    private DataFindRequest createIdentityRequest(String entityName, String entityVersion) {
+        List<Projection> projections = new ArrayList<>();
+        if (getJobConfiguration().getDestinationIdentityFields() != null) {
+            for (String identityField : getJobConfiguration().getDestinationIdentityFields()) {
+                projections.add(includeFieldRecursively(identityField));
             }
-
-            Map<String, JsonNode> batchRestuls = doDestinationDocumentFetch(batch);
-            destinationDocuments.putAll(batchRestuls);
-            position = limitedPosition;
         }
+        projections.add(includeFieldRecursively(getJobConfiguration().getSourceTimestampPath()));
 
-        return destinationDocuments;
+        DataFindRequest identityRequest = new DataFindRequest(entityName, entityVersion);
+        identityRequest.where(createSourceWindowQuery());
+        identityRequest.select(projections.toArray(new Projection[projections.size()]));
+        return identityRequest;
     }
 
-    private Map<String, JsonNode> doDestinationDocumentFetch(Map<String, JsonNode> sourceDocuments) throws IOException {
-        Map<String, JsonNode> destinationDocuments = new LinkedHashMap<>();
-        if (sourceDocuments == null || sourceDocuments.isEmpty()) {
-            return destinationDocuments;
-        }
-
-        DataFindRequest destinationRequest = new DataFindRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
-        List<Query> requestConditions = new LinkedList<>();
-        for (Map.Entry<String, JsonNode> sourceDocument : sourceDocuments.entrySet()) {
-            List<Query> docConditions = new LinkedList<>();
-            for (String keyField : getJobConfiguration().getDestinationIdentityFields()) {
-                ValueQuery docQuery = new ValueQuery(keyField + " = " + sourceDocument.getValue().findValue(keyField).asText());
-                docConditions.add(docQuery);
+    /**
+     * Checks the window by comparing digests of its time ranges on both sides,
+     * see {@link RangeReconciler}. The identities and timestamps of the whole
+     * window are read from both sides, and only the source and destination
+     * documents of the ranges that differ are read in full and compared.
+     * Source documents in ranges that match are counted as consistent.
+     *
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void reconcileWindow(OverwriteStatus overwriteStatus) throws SQLException, IOException {
+        MigrationConfiguration configuration = getJobConfiguration();
+        RangeReconciler reconciler = new RangeReconciler(configuration.getReconciliationFanout(), configuration.getReconciliationLeafSize());
+        RangeReconciler.Result result = reconciler.reconcile(getWindowStartDate(), endDate,
+                getSourceTimestamps(findSourceIdentities()), getSourceTimestamps(findDestinationIdentities()));
+        LOGGER.debug("Reconciled job {} with {} range digests, {} ranges differ", _id, result.getComparedRangeCount(), result.getDifferingRanges().size());
+
+        Map<IdentityKey, Date> matched = result.getMatchedSourceDocuments();
+        if (windowDigest != null) {
+            for (Map.Entry<IdentityKey, Date> document : matched.entrySet()) {
+                windowDigest.add(document.getKey(), document.getValue());
             }
-            requestConditions.add(and(docConditions));
         }
-        destinationRequest.where(or(requestConditions));
-        destinationRequest.select(includeFieldRecursively("*"));
-        destinationRequest.sort(new SortCondition(getJobConfiguration().getSourceTimestampPath(), SortDirection.ASC));
-        destinationDocuments = findDestinationData(destinationRequest);
-
-        return destinationDocuments;
+        currentRun.setProcessedDocumentCount(currentRun.getProcessedDocumentCount() + matched.size());
+        currentRun.setConsistentDocumentCount(currentRun.getConsistentDocumentCount() + matched.size());
+        currentRun.setDifferingRangeCount(result.getDifferingRanges().size());
+
+        for (RangeReconciler.Range range : result.getDifferingRanges()) {
+            checkLease();
+            processSourceDocuments(getSourceDocuments(range.getStartDate(), range.getEndDate()), overwriteStatus);
+            // ranges are in time order and everything before the end of this one is checked
+            recordProgress(range.getEndDate());
+        }
     }
 
-    protected List<JsonNode> getDocumentsToOverwrite(Map<String, JsonNode> sourceDocuments, Map<String, JsonNode> destinationDocuments) {
+    /**
+     * @return true if the configuration asks for a sample of each window
+     * instead of all of it
+     */
+    private boolean isSampling() {
+        MigrationConfiguration configuration = getJobConfiguration();
+        return (configuration.getSamplingFraction() > 0 && configuration.getSamplingFraction() < 1)
+                || (configuration.getSamplingConfidence() > 0 && configuration.getSamplingConfidence() < 1);
+    }
+
+    /**
+     * @param documentCount number of source documents in the window
+     * @return the sampling plan of the configuration, a target confidence
+     * taking precedence over a fraction
+     */
+    protected SamplingPlan createSamplingPlan(int documentCount) {
+        MigrationConfiguration configuration = getJobConfiguration();
+        if (configuration.getSamplingConfidence() > 0 && configuration.getSamplingConfidence() < 1) {
+            return SamplingPlan.ofConfidence(configuration.getSamplingConfidence(), configuration.getSamplingMarginOfError(), documentCount);
+        }
+        return SamplingPlan.ofFraction(configuration.getSamplingFraction());
+    }
+
+    /**
+     * Checks a sample of the window chosen by {@link SamplingPlan}. The
+     * identities of the whole window are read with a lean projection and only
+     * the sampled documents are read in full and compared. The inconsistency
+     * rate of the window estimated from the sample and its confidence interval
+     * are recorded on the current execution.
+     *
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void sampleWindow(OverwriteStatus overwriteStatus) throws IOException {
+        // a sample doesn't verify the whole window, so it is never summarized
+        windowDigest = null;
+
+        Map<IdentityKey, JsonNode> identities = findSourceIdentities();
+        SamplingPlan plan = createSamplingPlan(identities.size());
+        List<IdentityKey> sample = new ArrayList<>();
+        for (IdentityKey identity : identities.keySet()) {
+            if (plan.isSampled(identity)) {
+                sample.add(identity);
+            }
+        }
+        LOGGER.info("Sampling {} of {} documents of job {} with {}", sample.size(), identities.size(), _id, plan);
+        processSourceIdentities(sample, overwriteStatus);
+
+        int compared = currentRun.getProcessedDocumentCount();
+        int inconsistent = currentRun.getInconsistentDocumentCount();
+        double[] interval = plan.getInterval(inconsistent, compared);
+        currentRun.setSamplingFraction(plan.getFraction());
+        currentRun.setEstimatedInconsistencyRate(compared == 0 ? 0 : (double) inconsistent / compared);
+        currentRun.setInconsistencyRateLowerBound(interval[0]);
+        currentRun.setInconsistencyRateUpperBound(interval[1]);
+    }
+
+    /**
+     * Records the outcome of the overwrites on the current execution. The
+     * identities of the documents that could not be overwritten are kept if
+     * all of them fit, so the next execution only checks them again.
+     */
+    private void recordOverwriteStatus(OverwriteStatus overwriteStatus) {
+        currentRun.setOverwrittenDocumentCount(overwriteStatus.getOverwrittenDocumentCount());
+        currentRun.setFailedBatchCount(overwriteStatus.getFailedBatchCount());
+        if (overwriteStatus.getFailedBatchCount() > 0) {
+            if (overwriteStatus.getFailedDocumentCount() <= OverwriteStatus.MAX_FAILED_DOCUMENT_IDENTITIES) {
+                currentRun.setFailedDocumentIdentities(overwriteStatus.getFailedDocumentIdentities());
+                LOGGER.warn("Unable to overwrite {} documents of job {}, they will be checked again", overwriteStatus.getFailedDocumentCount(), _id);
+            } else {
+                LOGGER.warn("Unable to overwrite {} documents of job {}, its window will be checked again", overwriteStatus.getFailedDocumentCount(), _id);
+            }
+        }
+        currentRun.setJobStatus(overwriteStatus.getJobStatus());
+    }
+
+    /**
+     * Finds the documents the last execution that went through the window
+     * could not overwrite. A failed execution is followed by executions that
+     * only check its failed documents, until one of them completes or the job
+     * is queued to check its window again.
+     *
+     * @return the identities of the documents to check again, or null to
+     * check the whole window
+     */
+    protected List<IdentityKey> getFailedIdentities() {
+        if (recheck) {
+            return null;
+        }
+        List<String> identities = null;
+        for (MigrationJobExecution execution : getJobExecutions()) {
+            JobStatus status = execution.getJobStatus();
+            if (execution == currentRun) {
+                continue;
+            } else if (JobStatus.COMPLETED_FAILED.equals(status)) {
+                identities = execution.getFailedDocumentIdentities();
+            } else if (JobStatus.COMPLETED_SUCCESS.equals(status) || JobStatus.COMPLETED_PARTIAL.equals(status)
+                    || JobStatus.COMPLETED_SPLIT.equals(status) || JobStatus.COMPLETED_IGNORED.equals(status)) {
+                identities = null;
+            }
+        }
+        return identities == null || identities.isEmpty() ? null : parseDocumentIdentities(identities);
+    }
+
+    /**
+     * Reads the given source documents in batches, compares them and
+     * overwrites the inconsistent ones.
+     *
+     * @param identities the identities of the source documents
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void processSourceIdentities(List<IdentityKey> identities, OverwriteStatus overwriteStatus) throws IOException {
+        for (int position = 0; position < identities.size(); position += BATCH_SIZE) {
+            checkLease();
+            List<IdentityKey> batch = identities.subList(position, Math.min(position + BATCH_SIZE, identities.size()));
+            DataFindRequest sourceRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+            sourceRequest.where(buildIdentityKeyQuery(getJobConfiguration().getSourceEntityName(), batch));
+            sourceRequest.select(getComparisonProjection());
+            processSourceDocuments(findSourceData(sourceRequest), overwriteStatus);
+        }
+    }
+
+    private Map<IdentityKey, Date> getSourceTimestamps(Map<IdentityKey, JsonNode> documents) {
+        Map<IdentityKey, Date> timestamps = new LinkedHashMap<>();
+        for (Map.Entry<IdentityKey, JsonNode> document : documents.entrySet()) {
+            timestamps.put(document.getKey(), getSourceTimestamp(document.getValue()));
+        }
+        return timestamps;
+    }
+
+    /**
+     * @return the start of the part of the window still to be processed, which
+     * is the checkpoint of an earlier execution when resuming
+     */
+    protected Date getWindowStartDate() {
+        return resumeDate != null ? resumeDate : startDate;
+    }
+
+    /**
+     * Finds where an earlier execution that didn't complete left off. Only
+     * windows read in timestamp order, by pages, the pipeline or range
+     * reconciliation, save checkpoints, and an execution that completed the
+     * window means the job was queued again to check all of it.
+     *
+     * @return the progress watermark to resume from, or null to process the
+     * whole window
+     */
+    protected Date getResumeWatermark() {
+        MigrationConfiguration configuration = getJobConfiguration();
+        if (configuration.getCheckpointIntervalMilliseconds() <= 0
+                || (configuration.getSourcePageSize() <= 0 && !configuration.isPipelineEnabled() && !configuration.isRangeReconciliationEnabled())) {
+            return null;
+        }
+
+        Date watermark = null;
+        for (MigrationJobExecution execution : getJobExecutions()) {
+            JobStatus status = execution.getJobStatus();
+            if (execution == currentRun) {
+                continue;
+            } else if (JobStatus.COMPLETED_SUCCESS.equals(status) || JobStatus.COMPLETED_PARTIAL.equals(status) || JobStatus.COMPLETED_SPLIT.equals(status)
+                    || JobStatus.COMPLETED_FAILED.equals(status)) {
+                // a failed execution went through the whole window, its failed documents are anywhere in it
+                watermark = null;
+            } else if (execution.getProgressWatermark() != null) {
+                watermark = execution.getProgressWatermark();
+            }
+        }
+        if (watermark == null || (startDate != null && !watermark.after(startDate)) || (endDate != null && watermark.after(endDate))) {
+            return null;
+        }
+        return watermark;
+    }
+
+    /**
+     * Records that the source documents up to the given timestamp have been
+     * compared and overwritten, and saves it as a checkpoint on the current
+     * execution at most once per checkpointIntervalMilliseconds.
+     *
+     * @param watermark the source timestamp of the last document of a page
+     * whose processing is complete, documents with the same timestamp may be
+     * on the next page and are processed again when resuming
+     */
+    protected void recordProgress(Date watermark) throws IOException {
+        if (watermark == null) {
+            return;
+        }
+        currentRun.setProgressWatermark(watermark);
+
+        long interval = getJobConfiguration().getCheckpointIntervalMilliseconds();
+        long now = System.currentTimeMillis();
+        if (interval > 0 && now - lastCheckpointMillis >= interval) {
+            saveCheckpoint();
+            lastCheckpointMillis = now;
+        }
+    }
+
+    private LightblueResponse saveCheckpoint() throws IOException {
+        checkLease();
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(createJobStateQuery());
+        List<Projection> projections = new ArrayList<>();
+        projections.add(new FieldProjection("_id", true, false));
+        updateRequest.setProjections(projections);
+
+        String execution = "jobExecutions." + currentRunPsn;
+        List<Update> updates = new ArrayList<>();
+        updates.add(new SetUpdate(new PathValuePair(execution + ".progressWatermark", new ObjectRValue(currentRun.getProgressWatermark()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".processedDocumentCount", new ObjectRValue(currentRun.getProcessedDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".consistentDocumentCount", new ObjectRValue(currentRun.getConsistentDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair(execution + ".inconsistentDocumentCount", new ObjectRValue(currentRun.getInconsistentDocumentCount()))));
+        updateRequest.updates(updates);
+
+        LOGGER.debug("Checkpoint: {}", updateRequest.getBody());
+        return updateJobState(updateRequest);
+    }
+
+    /**
+     * @return the source timestamp of the last document of a page read in
+     * timestamp order, or null if it can't be read
+     */
+    protected Date getPageWatermark(Map<IdentityKey, JsonNode> page) {
+        JsonNode last = getLastDocument(page);
+        return last == null ? null : getSourceTimestamp(last);
+    }
+
+    /**
+     * @return the last document of a page, or null if the page is empty
+     */
+    static JsonNode getLastDocument(Map<IdentityKey, JsonNode> page) {
+        JsonNode last = null;
+        for (JsonNode document : page.values()) {
+            last = document;
+        }
+        return last;
+    }
+
+    /**
+     * @return the source timestamp of a document, or null if it can't be read
+     */
+    protected Date getSourceTimestamp(JsonNode document) {
+        if (getJobConfiguration().getSourceTimestampPath() == null) {
+            return null;
+        }
+
+        JsonNode timestamp = document;
+        for (String field : StringUtils.split(getJobConfiguration().getSourceTimestampPath(), '.')) {
+            timestamp = timestamp.path(field);
+        }
+        if (!timestamp.isTextual()) {
+            return null;
+        }
+        try {
+            return ClientConstants.getDateFormat().parse(timestamp.asText());
+        } catch (ParseException e) {
+            LOGGER.warn("Unable to parse source timestamp {} of job {}", timestamp.asText(), _id);
+            return null;
+        }
+    }
+
+    /**
+     * Pages through the source window ordered by timestamp and identity,
+     * comparing and overwriting each page before the next one is read. Only one
+     * page of source documents (and its destination counterparts) is held in
+     * memory at a time.
+     *
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void processSourcePages(OverwriteStatus overwriteStatus) throws SQLException, IOException {
+        int pageSize = getJobConfiguration().getSourcePageSize();
+        JsonNode last = null;
+        Map<IdentityKey, JsonNode> page;
+        do {
+            checkLease();
+            page = getSourceDocuments(last, pageSize);
+            LOGGER.debug("Loaded source page with {} documents", page.size());
+            last = getLastDocument(page);
+            processSourceDocuments(page, overwriteStatus);
+            recordProgress(getPageWatermark(page));
+        } while (page.size() >= pageSize);
+    }
+
+    /**
+     * Compares the given source documents with the destination and overwrites
+     * the inconsistent ones if the configuration allows it. Document counts
+     * are added to the current execution.
+     *
+     * @param sourceDocuments the source documents to check
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void processSourceDocuments(Map<IdentityKey, JsonNode> sourceDocuments, OverwriteStatus overwriteStatus) throws IOException {
+        if (getJobConfiguration().isCompactComparisonEnabled()) {
+            Map<IdentityKey, CompactDocument> destinationDocuments = getCompactDestinationDocuments(sourceDocuments);
+            List<JsonNode> documentsToOverwrite = compareCompactDocuments(sourceDocuments, destinationDocuments);
+            countDocuments(sourceDocuments.size(), documentsToOverwrite.size());
+            overwriteDocuments(documentsToOverwrite, overwriteStatus);
+        } else {
+            Map<IdentityKey, JsonNode> destinationDocuments = getDestinationDocuments(sourceDocuments);
+            List<JsonNode> documentsToOverwrite = compareSourceDocuments(sourceDocuments, destinationDocuments);
+            countDocuments(sourceDocuments.size(), documentsToOverwrite.size());
+            overwriteDocuments(documentsToOverwrite, overwriteStatus);
+        }
+    }
+
+    /**
+     * Compares source documents with their destination counterparts. The
+     * document counts are left to {@link #countDocuments(int, int)}.
+     *
+     * @return the source documents that are inconsistent with the destination
+     */
+    protected List<JsonNode> compareSourceDocuments(Map<IdentityKey, JsonNode> sourceDocuments, Map<IdentityKey, JsonNode> destinationDocuments) {
+        return digestComparedDocuments(sourceDocuments, getDocumentsToOverwrite(sourceDocuments, destinationDocuments));
+    }
+
+    /**
+     * Compares source documents with their compact destination counterparts.
+     * The document counts are left to {@link #countDocuments(int, int)}.
+     *
+     * @return the source documents that are inconsistent with the destination
+     */
+    protected List<JsonNode> compareCompactDocuments(Map<IdentityKey, JsonNode> sourceDocuments, Map<IdentityKey, CompactDocument> destinationDocuments) {
+        return digestComparedDocuments(sourceDocuments, getCompactDocumentsToOverwrite(sourceDocuments, destinationDocuments));
+    }
+
+    private List<JsonNode> digestComparedDocuments(Map<IdentityKey, JsonNode> sourceDocuments, List<JsonNode> documentsToOverwrite) {
+        if (!documentsToOverwrite.isEmpty()) {
+            hasInconsistentDocuments = true;
+        }
+        if (windowDigest != null) {
+            for (Map.Entry<IdentityKey, JsonNode> sourceDocument : sourceDocuments.entrySet()) {
+                windowDigest.add(sourceDocument.getKey(), getSourceTimestamp(sourceDocument.getValue()));
+            }
+        }
+        return documentsToOverwrite;
+    }
+
+    /**
+     * Adds the counts of a compared page to the current execution. Called by
+     * the thread that records the progress, so a checkpoint never counts
+     * documents past its watermark.
+     *
+     * @param comparedCount the number of source documents compared
+     * @param inconsistentCount the number of them found inconsistent
+     */
+    protected void countDocuments(int comparedCount, int inconsistentCount) {
+        currentRun.setProcessedDocumentCount(currentRun.getProcessedDocumentCount() + comparedCount);
+        currentRun.setConsistentDocumentCount(currentRun.getConsistentDocumentCount() + comparedCount - inconsistentCount);
+        currentRun.setInconsistentDocumentCount(currentRun.getInconsistentDocumentCount() + inconsistentCount);
+    }
+
+    /**
+     * Overwrites the given documents in the destination if the configuration
+     * allows it.
+     *
+     * @param documentsToOverwrite the inconsistent source documents
+     * @param overwriteStatus accumulates the status of the overwrite requests
+     */
+    protected void overwriteDocuments(List<JsonNode> documentsToOverwrite, OverwriteStatus overwriteStatus) throws IOException {
+        if (shouldOverwriteDestinationDocuments() && !documentsToOverwrite.isEmpty()) {
+            if (isDeltaRepairing()) {
+                documentsToOverwrite = repairDocuments(documentsToOverwrite, overwriteStatus);
+                if (documentsToOverwrite.isEmpty()) {
+                    return;
+                }
+            }
+            if (isComparisonProjected()) {
+                documentsToOverwrite = getFullSourceDocuments(documentsToOverwrite);
+            }
+            overwriteLightblue(documentsToOverwrite, overwriteStatus);
+        }
+    }
+
+    /**
+     * Return array with two elements indicating if the job should process and
+     * what the index of the jobExecution is.
+     *
+     * @param pid the pid of the current job execution
+     * @param jobs the jobs that came back from lightblue
+     * @return object array where index 0 is a Boolean indicating if the job
+     * should be processed, index 1 is an Integer indicating the position in the
+     * jobExecutions array for this job execution attempt
+     */
+    protected static Object[] shouldProcessJob(String pid, MigrationJob[] jobs) throws LightblueResponseParseException {
+        boolean processJob = true;
+        int jobExecutionPsn = -1;
+
+        // should only be one job returned, verify
+        if (jobs.length > 1) {
+            throw new RuntimeException("Error parsing lightblue response: more than one job returned: " + jobs.length);
+        }
+
+        // first incomplete job execution must be for this execution else we don't process it
+        int i = 0;
+        for (MigrationJobExecution execution : jobs[0].getJobExecutions()) {
+            // if we find an execution that is not our pid but is active
+            // in the array before ours, we do not get to process
+            if (jobExecutionPsn < 0 && !execution.getJobStatus().isCompleted() && !pid.equals(execution.getPid())) {
+                // we shouldn't be processing this particular job.  abort.
+                processJob = false;
+                break;
+            }
+
+            // find last job execution for our pid
+            if (pid.equals(execution.getPid())) {
+                jobExecutionPsn = i;
+            } else if (jobExecutionPsn >= 0) {
+                // we have found the last execution matching our pid.
+                // this should be the "current" execution.
+                break;
+            }
+
+            // increment position in array
+            i++;
+        }
+
+        return new Object[]{processJob, jobExecutionPsn};
+    }
+
+    private void configureClients() throws IOException {
+        if (null == sourceClient || null == destinationClient) {
+            synchronized (this) {
+                if (null == sourceClient || null == destinationClient) {
+                    LightblueHttpClient source;
+                    LightblueHttpClient destination;
+                    if (getSourceConfigPath() == null && getDestinationConfigPath() == null) {
+                        source = new LightblueHttpClient();
+                        destination = new LightblueHttpClient();
+                    } else {
+                        // load from config files
+                        try (InputStream is = Thread.currentThread()
+                                .getContextClassLoader().getResourceAsStream(getSourceConfigPath())) {
+                            LightblueClientConfiguration config = PropertiesLightblueClientConfiguration.fromInputStream(is);
+                            source = new LightblueHttpClient(config);
+                        }
+
+                        try (InputStream is = Thread.currentThread()
+                                .getContextClassLoader().getResourceAsStream(getDestinationConfigPath())) {
+                            LightblueClientConfiguration config = PropertiesLightblueClientConfiguration.fromInputStream(is);
+                            destination = new LightblueHttpClient(config);
+                        }
+                    }
+                    sourceClient = new LightblueHystrixClient(source, "migrator", "sourceClient");
+                    destinationClient = new LightblueHystrixClient(destination, "migrator", "destinationClient");
+
+                }
+            }
+        }
+    }
+
+    /**
+     * NOTE this does not change the objects in memory!
+     *
+     * @param jobExecutionPsn
+     * @param jobStatus
+     * @param updateEndDate
+     * @return
+     */
+    protected LightblueResponse markExecutionStatusAndEndDate(int jobExecutionPsn, JobStatus jobStatus, boolean updateEndDate) throws IOException {
+        checkLease();
+        // LightblueClient - update job status
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(createJobStateQuery());
+        updateRequest.setProjections(createJobStateProjections());
+
+        List<Update> updates = new ArrayList<>();
+
+        if (updateEndDate) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualEndDate", new ObjectRValue(new Date()))));
+        }
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".jobStatus", new ObjectRValue(jobStatus.toString()))));
+        if (leaseHeld && updateEndDate && jobExecutionPsn == currentRunPsn) {
+            // this execution is over, release the lease
+            updates.add(new SetUpdate(new PathValuePair("leaseExpirationDate", new ObjectRValue(getLeaseReleaseDate(jobStatus)))));
+        }
+        updateRequest.updates(updates);
+
+        LOGGER.debug("Marking Execution Complete: {}", updateRequest.getBody());
+        return updateJobState(updateRequest);
+    }
+
+    /**
+     * Appends the current execution to the job, already running and with the
+     * fields that identify its owner in the appended element, and reads back
+     * only the pid and status of every execution for shouldProcessJob.
+     */
+    private LightblueResponse claimJob() throws IOException {
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(withValue("_id" + " = " + _id));
+
+        List<Projection> projections = new ArrayList<>();
+        projections.add(new FieldProjection("jobExecutions.*.pid", true, false));
+        projections.add(new FieldProjection("jobExecutions.*.jobStatus", true, false));
+        updateRequest.setProjections(projections);
+
+        List<Update> updates = new ArrayList<>();
+        addCurrentExecution(updates);
+        updateRequest.updates(updates);
+
+        LOGGER.debug("claim: {}", updateRequest.getBody());
+        return callLightblue(updateRequest);
+    }
+
+    private void addCurrentExecution(List<Update> updates) {
+        Map<String, Object> execution = new LinkedHashMap<>();
+        if (currentRun.getOwnerName() != null) {
+            execution.put("ownerName", currentRun.getOwnerName());
+        }
+        if (currentRun.getHostName() != null) {
+            execution.put("hostName", currentRun.getHostName());
+        }
+        if (currentRun.getPid() != null) {
+            execution.put("pid", currentRun.getPid());
+        }
+        execution.put("jobStatus", currentRun.getJobStatus().toString());
+
+        updates.add(new AppendUpdate("jobExecutions", new ObjectRValue(execution)));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions.-1.actualStartDate", new ObjectRValue(currentRun.getActualStartDate()))));
+    }
+
+    /**
+     * Takes the job's lease and appends the current execution, already
+     * running, in a single update that only matches the job while no other
+     * checker holds an unexpired lease on it. Reads back the pid and status of
+     * every execution.
+     *
+     * @return the response, with a modified count of 0 if another checker
+     * holds the lease
+     */
+    protected LightblueResponse claimLease() throws IOException {
+        Date now = new Date();
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(and(
+                withValue("_id" + " = " + _id),
+                // jobs that were never leased have no expiration date, which this matches too
+                not(withValue("leaseExpirationDate > " + ClientConstants.getDateFormat().format(now)))));
+
+        List<Projection> projections = new ArrayList<>();
+        projections.add(new FieldProjection("jobExecutions.*.pid", true, false));
+        projections.add(new FieldProjection("jobExecutions.*.jobStatus", true, false));
+        updateRequest.setProjections(projections);
+
+        List<Update> updates = new ArrayList<>();
+        updates.add(new SetUpdate(new PathValuePair("leaseOwner", new ObjectRValue(pid))));
+        updates.add(new SetUpdate(new PathValuePair("leaseExpirationDate", new ObjectRValue(getLeaseExpirationDate(now)))));
+        addCurrentExecution(updates);
+        updateRequest.updates(updates);
+
+        LOGGER.debug("lease: {}", updateRequest.getBody());
+        return callLightblue(updateRequest);
+    }
+
+    /**
+     * @return the position of the execution appended by a successful
+     * {@link #claimLease()}, -1 if the lease wasn't taken
+     */
+    private static int getClaimedExecutionPsn(LightblueResponse response) throws LightblueResponseParseException {
+        if (response.parseModifiedCount() < 1) {
+            return -1;
+        }
+        MigrationJob[] jobs = response.parseProcessed(MigrationJob[].class);
+        if (jobs.length != 1 || jobs[0].getJobExecutions().isEmpty()) {
+            throw new RuntimeException("Error parsing lightblue response: lease taken but claimed execution not returned");
+        }
+        return jobs[0].getJobExecutions().size() - 1;
+    }
+
+    /**
+     * Marks the executions that were still running when the lease was taken as
+     * dead, their lease expired without being renewed, and counts the timed
+     * out executions of the job from the claim response.
+     */
+    private void markDeadExecutions(LightblueResponse leaseResponse) throws LightblueResponseParseException, IOException {
+        List<MigrationJobExecution> executions = leaseResponse.parseProcessed(MigrationJob[].class)[0].getJobExecutions();
+        int timeouts = 0;
+        for (int psn = 0; psn < currentRunPsn; psn++) {
+            JobStatus status = executions.get(psn).getJobStatus();
+            if (status != null && status.isRunning()) {
+                LOGGER.info("Marking job {} execution {} as {}", _id, psn, JobStatus.COMPLETED_DEAD);
+                markExecutionStatusAndEndDate(psn, JobStatus.COMPLETED_DEAD, true);
+                timeouts++;
+            } else if (isTimedOut(status)) {
+                timeouts++;
+            }
+        }
+        claimedTimeoutCount = timeouts;
+    }
+
+    private Date getLeaseExpirationDate(Date now) {
+        return new Date(now.getTime() + getJobConfiguration().getLeaseMilliseconds());
+    }
+
+    /**
+     * @return when the lease released by an execution ending with the given
+     * status expires: right away if the job is complete, otherwise after the
+     * expected execution time like jobs run without leases, so a job that
+     * fails every time isn't claimed again by the next pass over the queue
+     */
+    Date getLeaseReleaseDate(JobStatus status) {
+        long now = System.currentTimeMillis();
+        if (JobStatus.COMPLETED_SUCCESS.equals(status) || JobStatus.COMPLETED_PARTIAL.equals(status) || JobStatus.COMPLETED_SPLIT.equals(status)) {
+            return new Date(now);
+        }
+        return new Date(now + expectedExecutionMilliseconds);
+    }
+
+    /**
+     * Pushes the expiration of the lease forward, as long as it is still held
+     * by this checker.
+     *
+     * @return false if the lease has been taken by another checker
+     */
+    protected boolean renewLease() throws IOException {
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(and(withValue("_id" + " = " + _id), withValue("leaseOwner = " + pid)));
+
+        List<Projection> projections = new ArrayList<>();
+        projections.add(new FieldProjection("_id", true, false));
+        updateRequest.setProjections(projections);
+
+        List<Update> updates = new ArrayList<>();
+        updates.add(new SetUpdate(new PathValuePair("leaseExpirationDate", new ObjectRValue(getLeaseExpirationDate(new Date())))));
+        updateRequest.updates(updates);
+
+        LOGGER.debug("Renewing lease: {}", updateRequest.getBody());
+        return callLightblue(updateRequest).parseModifiedCount() > 0;
+    }
+
+    boolean isLeaseHeld() {
+        return leaseHeld;
+    }
+
+    /**
+     * A lease that couldn't be renewed for this long, less a tenth of it for
+     * the time requests take and clock differences, may have been taken by
+     * another checker even if no renewal found it taken.
+     *
+     * @return true if the lease is held and was renewed recently enough
+     */
+    private boolean holdsLease() {
+        long leaseMilliseconds = getJobConfiguration().getLeaseMilliseconds();
+        return leaseHeld && System.currentTimeMillis() - leaseRenewedMillis < leaseMilliseconds - leaseMilliseconds / 10;
+    }
+
+    /**
+     * Stops the run once a renewal found the lease taken by another checker,
+     * or renewals failed for as long as the lease lasts, so nothing more is
+     * read or written for a job someone else may be running. Checked before
+     * every page, lookup batch and write.
+     *
+     * @throws LeaseLostException if the job is leased and the lease was lost
+     */
+    void checkLease() {
+        if (getJobConfiguration().getLeaseMilliseconds() > 0 && !holdsLease()) {
+            throw new LeaseLostException("lost lease on job " + _id + ", another checker may be running it");
+        }
+    }
+
+    /**
+     * @return the query matching the job, and with leases only while this
+     * checker still owns the lease, so a checker whose lease expired can't
+     * write over the state of the checker that took the job or release its
+     * lease
+     */
+    private Query createJobStateQuery() {
+        if (getJobConfiguration().getLeaseMilliseconds() > 0) {
+            return and(withValue("_id" + " = " + _id), withValue("leaseOwner = " + pid));
+        }
+        return withValue("_id" + " = " + _id);
+    }
+
+    /**
+     * Sends an update of the job's state built with
+     * {@link #createJobStateQuery()}.
+     *
+     * @throws LeaseLostException if the job is leased and the update matched
+     * nothing, ie another checker owns the lease now
+     */
+    private LightblueResponse updateJobState(DataUpdateRequest updateRequest) throws IOException {
+        LightblueResponse response = callLightblue(updateRequest);
+        if (getJobConfiguration().getLeaseMilliseconds() > 0 && response.parseModifiedCount() < 1) {
+            leaseHeld = false;
+            throw new LeaseLostException("lost lease on job " + _id + " before its state was written");
+        }
+        return response;
+    }
+
+    /**
+     * Thrown when the lease on the running job was lost.
+     */
+    static class LeaseLostException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LeaseLostException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Renews the lease every third of leaseMilliseconds until
+     * {@link #stopLeaseRenewal()}, so it only expires if this checker dies or
+     * can't reach lightblue for most of that time.
+     */
+    private synchronized void startLeaseRenewal() {
+        long interval = Math.max(1, getJobConfiguration().getLeaseMilliseconds() / 3);
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lease-" + _id);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        leaseRenewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!leaseHeld) {
+                    return;
+                }
+                try {
+                    long renewal = System.currentTimeMillis();
+                    if (renewLease()) {
+                        leaseRenewedMillis = renewal;
+                    } else {
+                        LOGGER.error("Lost lease on job {}, another checker may be running it", _id);
+                        leaseHeld = false;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Unable to renew lease on job " + _id, e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopLeaseRenewal() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+            leaseRenewer = null;
+        }
+    }
+
+    /**
+     * @return the whole job, or only its _id when leanJobStateEnabled since
+     * nothing is read from the response
+     */
+    private List<Projection> createJobStateProjections() {
+        List<Projection> projections = new ArrayList<>();
+        if (getJobConfiguration().isLeanJobStateEnabled()) {
+            projections.add(new FieldProjection("_id", true, false));
+        } else {
+            projections.add(new FieldProjection("*", true, true));
+        }
+        return projections;
+    }
+
+    /**
+     *
+     * @param jobExecutionPsn if this is the initial save, set to -1
+     * @return
+     */
+    private LightblueResponse saveJobDetails(int jobExecutionPsn) throws IOException {
+        checkLease();
+        // LightblueClient - update job details
+        DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", getJobConfiguration().getMigrationJobEntityVersion());
+        updateRequest.where(createJobStateQuery());
+        updateRequest.setProjections(createJobStateProjections());
+
+        List<Update> updates = new ArrayList<>();
+        if (jobExecutionPsn < 0) {
+            updates.add(new AppendUpdate("jobExecutions", new ObjectRValue(new HashMap<>())));
+            jobExecutionPsn = -1;
+        }
+
+        // TODO update specific job execution...
+        if (!getJobConfiguration().isLeanJobStateEnabled()) {
+            // a claimed execution already has these
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".ownerName", new ObjectRValue(currentRun.getOwnerName()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".hostName", new ObjectRValue(currentRun.getHostName()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".pid", new ObjectRValue(currentRun.getPid()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualStartDate", new ObjectRValue(currentRun.getActualStartDate()))));
+        }
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".actualEndDate", new ObjectRValue(currentRun.getActualEndDate()))));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".jobStatus", new ObjectRValue(currentRun.getJobStatus().toString()))));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".processedDocumentCount", new ObjectRValue(currentRun.getProcessedDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".consistentDocumentCount", new ObjectRValue(currentRun.getConsistentDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".inconsistentDocumentCount", new ObjectRValue(currentRun.getInconsistentDocumentCount()))));
+        updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".overwrittenDocumentCount", new ObjectRValue(currentRun.getOverwrittenDocumentCount()))));
+
+        if (currentRun.getProgressWatermark() != null) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".progressWatermark", new ObjectRValue(currentRun.getProgressWatermark()))));
+        }
+        if (currentRun.getSourceDigest() != null) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".sourceDocumentCount", new ObjectRValue(currentRun.getSourceDocumentCount()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".maxSourceTimestamp", new ObjectRValue(currentRun.getMaxSourceTimestamp()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".sourceDigest", new ObjectRValue(currentRun.getSourceDigest()))));
+        }
+        if (currentRun.isSkippedUnchanged()) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".skippedUnchanged", new ObjectRValue(true))));
+        }
+        if (currentRun.getSamplingFraction() > 0) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".samplingFraction", new ObjectRValue(currentRun.getSamplingFraction()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".estimatedInconsistencyRate", new ObjectRValue(currentRun.getEstimatedInconsistencyRate()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".inconsistencyRateLowerBound", new ObjectRValue(currentRun.getInconsistencyRateLowerBound()))));
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".inconsistencyRateUpperBound", new ObjectRValue(currentRun.getInconsistencyRateUpperBound()))));
+        }
+        if (currentRun.getDifferingRangeCount() > 0) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".differingRangeCount", new ObjectRValue(currentRun.getDifferingRangeCount()))));
+        }
+        if (currentRun.getChildJobCount() > 0) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".childJobCount", new ObjectRValue(currentRun.getChildJobCount()))));
+        }
+        if (currentRun.getFailedBatchCount() > 0) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".failedBatchCount", new ObjectRValue(currentRun.getFailedBatchCount()))));
+            if (currentRun.getFailedDocumentIdentities() != null) {
+                updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".failedDocumentIdentities", new ObjectRValue(currentRun.getFailedDocumentIdentities()))));
+            }
+        }
+        if (currentRun.getThrottledMilliseconds() > 0) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".throttledMilliseconds", new ObjectRValue(currentRun.getThrottledMilliseconds()))));
+        }
+        if (currentRun.getSourceQuery() != null && !currentRun.getSourceQuery().isEmpty()) {
+            updates.add(new SetUpdate(new PathValuePair("jobExecutions." + jobExecutionPsn + ".sourceQuery", new ObjectRValue(currentRun.getSourceQuery()))));
+        }
+        if (recheck && (JobStatus.COMPLETED_SUCCESS.equals(currentRun.getJobStatus()) || JobStatus.COMPLETED_PARTIAL.equals(currentRun.getJobStatus())
+                || JobStatus.COMPLETED_SPLIT.equals(currentRun.getJobStatus()))) {
+            // checked again, it is complete until it is queued for another re-check
+            updates.add(new SetUpdate(new PathValuePair("recheck", new ObjectRValue(false))));
+        }
+        if (leaseHeld) {
+            updates.add(new SetUpdate(new PathValuePair("leaseExpirationDate", new ObjectRValue(getLeaseReleaseDate(currentRun.getJobStatus())))));
+        }
+        updateRequest.updates(updates);
+
+        LOGGER.debug("save: {}", updateRequest.getBody());
+
+        return updateJobState(updateRequest);
+    }
+
+    protected List<LightblueResponse> overwriteLightblue(List<JsonNode> documentsToOverwrite) throws IOException {
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<LightblueResponse> responses = saveBatches(documentsToOverwrite, overwriteStatus);
+        if (overwriteStatus.getFailedBatchCount() > 0) {
+            throw new IOException("Unable to overwrite " + overwriteStatus.getFailedBatchCount() + " batches of documents");
+        }
+        return responses;
+    }
+
+    /**
+     * Saves the documents in batches, sending up to overwriteThreadCount
+     * batches at once. A batch that fails is retried with a growing backoff up
+     * to overwriteRetryCount times and then recorded as failed, without
+     * affecting the other batches.
+     *
+     * @param documentsToOverwrite the documents to save
+     * @param overwriteStatus records the response or failure of every batch
+     * @return the responses of the batches that were saved, in batch order
+     */
+    protected List<LightblueResponse> overwriteLightblue(List<JsonNode> documentsToOverwrite, OverwriteStatus overwriteStatus) {
+        List<LightblueResponse> responses = saveBatches(documentsToOverwrite, overwriteStatus);
+        for (LightblueResponse response : responses) {
+            overwriteStatus.record(response);
+        }
+        return responses;
+    }
+
+    /**
+     * @return the responses of the batches that were saved, failed batches are
+     * recorded on the overwrite status
+     */
+    private List<LightblueResponse> saveBatches(List<JsonNode> documentsToOverwrite, final OverwriteStatus overwriteStatus) {
+        final AdaptiveBatchSize batchSize = getOverwriteBatchSize();
+        List<List<JsonNode>> batches = new ArrayList<>();
+        int position = 0;
+        while (position < documentsToOverwrite.size()) {
+            int limitedPosition = position + batchSize.getBatchSize();
+            if (limitedPosition > documentsToOverwrite.size()) {
+                limitedPosition = documentsToOverwrite.size();
+            }
+            batches.add(documentsToOverwrite.subList(position, limitedPosition));
+            position = limitedPosition;
+        }
+
+        List<LightblueResponse> responses = new ArrayList<>();
+        if (getJobConfiguration().getOverwriteThreadCount() <= 1 || batches.size() <= 1) {
+            for (List<JsonNode> batch : batches) {
+                LightblueResponse response = saveBatch(batchSize, batch, overwriteStatus);
+                if (response != null) {
+                    responses.add(response);
+                }
+            }
+            return responses;
+        }
+
+        List<Future<LightblueResponse>> futures = new ArrayList<>(batches.size());
+        ExecutorService executor = getOverwriteExecutor();
+        for (final List<JsonNode> batch : batches) {
+            futures.add(executor.submit(new Callable<LightblueResponse>() {
+                @Override
+                public LightblueResponse call() {
+                    return saveBatch(batchSize, batch, overwriteStatus);
+                }
+            }));
+        }
+        try {
+            for (Future<LightblueResponse> future : futures) {
+                LightblueResponse response = future.get();
+                if (response != null) {
+                    responses.add(response);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while overwriting documents", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LeaseLostException) {
+                throw (LeaseLostException) e.getCause();
+            }
+            // saveBatch records its own failures, so this is unexpected
+            throw new RuntimeException("Unable to overwrite documents", e.getCause());
+        } finally {
+            for (Future<LightblueResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Saves one batch, retrying it on failure.
+     *
+     * @return the response, or null if the batch failed and was recorded as
+     * failed
+     */
+    private LightblueResponse saveBatch(final AdaptiveBatchSize batchSize, final List<JsonNode> batch, OverwriteStatus overwriteStatus) {
+        return sendBatch(new Callable<LightblueResponse>() {
+            @Override
+            public LightblueResponse call() throws IOException {
+                return timeOverwriteLightblue(batchSize, batch);
+            }
+        }, batch, overwriteStatus);
+    }
+
+    /**
+     * Sends a request writing a batch of documents, retrying it with a
+     * growing backoff up to overwriteRetryCount times.
+     *
+     * @return the response, or null if the batch failed and was recorded as
+     * failed
+     */
+    private LightblueResponse sendBatch(Callable<LightblueResponse> send, List<JsonNode> batch, OverwriteStatus overwriteStatus) {
+        int retryCount = getJobConfiguration().getOverwriteRetryCount();
+        long backoff = getJobConfiguration().getOverwriteRetryBackoffMilliseconds();
+        for (int attempt = 0;; attempt++) {
+            // a retry may come after the lease was lost
+            checkLease();
+            try {
+                throttle("writeRequests", getJobConfiguration().getDestinationWriteRequestsPerSecond(), 1);
+                throttle("writeDocuments", getJobConfiguration().getDestinationWriteDocumentsPerSecond(), batch.size());
+                return send.call();
+            } catch (Exception e) {
+                if (attempt >= retryCount) {
+                    LOGGER.error(String.format("Unable to overwrite batch of %d documents for job %s after %d attempts", batch.size(), _id, attempt + 1), e);
+                    overwriteStatus.recordFailure(getDocumentIdentities(batch));
+                    return null;
+                }
+                LOGGER.warn("Retrying batch of {} documents for job {} in {} ms: {}", batch.size(), _id, backoff, e.toString());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    overwriteStatus.recordFailure(getDocumentIdentities(batch));
+                    return null;
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * Overwrites inconsistent destination documents by updating only their
+     * inconsistent paths to the source values instead of saving them whole.
+     * Documents needing the same updates, ie the same field set to the same
+     * value, are updated together by one request.
+     *
+     * @param documents the inconsistent source documents
+     * @param overwriteStatus records the response or failure of every update
+     * @return the documents that can't be repaired by path and have to be
+     * saved whole, ie documents missing from the destination
+     */
+    protected List<JsonNode> repairDocuments(List<JsonNode> documents, OverwriteStatus overwriteStatus) {
+        List<JsonNode> documentsToSave = new ArrayList<>();
+        Map<String, List<Update>> updatesByShape = new LinkedHashMap<>();
+        Map<String, List<JsonNode>> documentsByShape = new LinkedHashMap<>();
+        for (JsonNode document : documents) {
+            List<String> paths = repairPaths.remove(document);
+            List<Update> updates = paths == null ? null : createRepairUpdates(document, paths);
+            if (updates == null) {
+                documentsToSave.add(document);
+                continue;
+            }
+            StringBuilder shape = new StringBuilder();
+            for (Update update : updates) {
+                shape.append(update.toJson());
+            }
+            List<JsonNode> shapeDocuments = documentsByShape.get(shape.toString());
+            if (shapeDocuments == null) {
+                shapeDocuments = new ArrayList<>();
+                documentsByShape.put(shape.toString(), shapeDocuments);
+                updatesByShape.put(shape.toString(), updates);
+            }
+            shapeDocuments.add(document);
+        }
+
+        // repairs and saves write to the same destination, so they share the adaptive batch size
+        final AdaptiveBatchSize batchSize = getOverwriteBatchSize();
+        for (Map.Entry<String, List<JsonNode>> shape : documentsByShape.entrySet()) {
+            List<JsonNode> shapeDocuments = shape.getValue();
+            int position = 0;
+            while (position < shapeDocuments.size()) {
+                final List<JsonNode> batch = shapeDocuments.subList(position, Math.min(position + batchSize.getBatchSize(), shapeDocuments.size()));
+                position += batch.size();
+                final DataUpdateRequest updateRequest = new DataUpdateRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
+                updateRequest.where(buildIdentityQuery(getJobConfiguration().getDestinationEntityName(), batch));
+                updateRequest.updates(updatesByShape.get(shape.getKey()));
+                List<Projection> projections = new ArrayList<>();
+                projections.add(new FieldProjection("*", false, true));
+                updateRequest.setProjections(projections);
+                LightblueResponse response = sendBatch(new Callable<LightblueResponse>() {
+                    @Override
+                    public LightblueResponse call() throws IOException {
+                        return timeRepairLightblue(batchSize, batch.size(), updateRequest);
+                    }
+                }, batch, overwriteStatus);
+                if (response != null) {
+                    overwriteStatus.record(response);
+                }
+            }
+        }
+        LOGGER.debug("Repaired {} documents of job {} with {} distinct updates", documents.size() - documentsToSave.size(), _id, documentsByShape.size());
+        return documentsToSave;
+    }
+
+    /**
+     * Paths inside arrays don't have element indexes, so an array with an
+     * inconsistent element is set whole. Paths whose source value is missing
+     * or null are unset.
+     *
+     * @param sourceDocument the source document
+     * @param inconsistentPaths its paths that differ from the destination
+     * @return the updates that make the destination document consistent, or
+     * null if the document is inconsistent at its root and has to be saved
+     * whole
+     */
+    protected List<Update> createRepairUpdates(JsonNode sourceDocument, List<String> inconsistentPaths) {
+        Set<String> paths = new TreeSet<>();
+        for (String path : inconsistentPaths) {
+            if ("*".equals(path)) {
+                return null;
+            }
+            paths.add(getRepairPath(sourceDocument, path));
+        }
+
+        List<PathValuePair> sets = new ArrayList<>();
+        List<String> unsets = new ArrayList<>();
+        for (String path : paths) {
+            if (isUnderPath(path, paths)) {
+                // repaired with the path it is under
+                continue;
+            }
+            JsonNode value = getNode(sourceDocument, path);
+            if (value.isMissingNode() || value.isNull()) {
+                unsets.add(path);
+            } else {
+                sets.add(new PathValuePair(path, new ObjectRValue(mapper.convertValue(value, Object.class))));
+            }
+        }
+
+        List<Update> updates = new ArrayList<>();
+        if (!sets.isEmpty()) {
+            updates.add(new SetUpdate(sets.toArray(new PathValuePair[sets.size()])));
+        }
+        if (!unsets.isEmpty()) {
+            updates.add(new UnsetUpdate(unsets.toArray(new String[unsets.size()])));
+        }
+        return updates;
+    }
+
+    private static boolean isUnderPath(String path, Set<String> paths) {
+        for (int dot = path.indexOf('.'); dot >= 0; dot = path.indexOf('.', dot + 1)) {
+            if (paths.contains(path.substring(0, dot))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the path itself, or the path of the first array it goes through
+     */
+    private static String getRepairPath(JsonNode sourceDocument, String path) {
+        String[] segments = StringUtils.split(path, '.');
+        JsonNode node = sourceDocument;
+        for (int i = 0; i < segments.length - 1; i++) {
+            node = node.path(segments[i]);
+            if (node.isArray()) {
+                return StringUtils.join(segments, '.', 0, i + 1);
+            }
+        }
+        return path;
+    }
+
+    private static JsonNode getNode(JsonNode document, String path) {
+        JsonNode node = document;
+        for (String segment : StringUtils.split(path, '.')) {
+            node = node.path(segment);
+        }
+        return node;
+    }
+
+    /**
+     * @return the identity field values of each document, comma separated
+     */
+    private List<String> getDocumentIdentities(List<JsonNode> documents) {
+        IdentityExtractor identity = getJobConfiguration().getIdentityExtractor();
+        List<String> identities = new ArrayList<>(documents.size());
+        for (JsonNode document : documents) {
+            identities.add(identity.getKey(document).toString());
+        }
+        return identities;
+    }
+
+    /**
+     * Reads back identities written by {@link #getDocumentIdentities(List)}.
+     *
+     * @return the identities, or null if a value was missing or had a comma,
+     * so the identities can't be told apart
+     */
+    List<IdentityKey> parseDocumentIdentities(List<String> identities) {
+        List<String> identityFields = getJobConfiguration().getDestinationIdentityFields();
+        if (identityFields == null || identityFields.isEmpty()) {
+            return null;
+        }
+        List<IdentityKey> keys = new ArrayList<>(identities.size());
+        for (String identity : identities) {
+            String[] values = StringUtils.splitPreserveAllTokens(identity, ',');
+            if (values.length != identityFields.size()) {
+                return null;
+            }
+            for (String value : values) {
+                if (value.isEmpty()) {
+                    return null;
+                }
+            }
+            keys.add(IdentityKey.of(values));
+        }
+        return keys;
+    }
+
+    /**
+     * @return the executor sending concurrent save batches for this job, sized
+     * from the overwriteThreadCount of the configuration
+     */
+    private synchronized ExecutorService getOverwriteExecutor() {
+        if (overwriteExecutor == null) {
+            overwriteExecutor = Executors.newFixedThreadPool(getJobConfiguration().getOverwriteThreadCount(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "overwrite-" + _id + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return overwriteExecutor;
+    }
+
+    private synchronized void shutdownOverwriteExecutor() {
+        if (overwriteExecutor != null) {
+            overwriteExecutor.shutdownNow();
+            overwriteExecutor = null;
+        }
+    }
+
+    /**
+     * Saves one batch and lets the batch size adapt to how the save performed.
+     */
+    private LightblueResponse timeOverwriteLightblue(AdaptiveBatchSize batchSize, List<JsonNode> documentsToOverwrite) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            LightblueResponse response = doOverwriteLightblue(documentsToOverwrite);
+            batchSize.recordSuccess(documentsToOverwrite.size(), System.currentTimeMillis() - start, AdaptiveBatchSize.estimateBytes(documentsToOverwrite));
+            return response;
+        } catch (IOException | RuntimeException e) {
+            batchSize.recordFailure(documentsToOverwrite.size());
+            throw e;
+        }
+    }
+
+    /**
+     * Sends one repair update and lets the batch size adapt to how it
+     * performed, the payload being the update request rather than the
+     * documents.
+     */
+    private LightblueResponse timeRepairLightblue(AdaptiveBatchSize batchSize, int size, DataUpdateRequest updateRequest) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            LightblueResponse response = callLightblue(updateRequest);
+            batchSize.recordSuccess(size, System.currentTimeMillis() - start, updateRequest.getBody().length());
+            return response;
+        } catch (IOException | RuntimeException e) {
+            batchSize.recordFailure(size);
+            throw e;
+        }
+    }
+
+    private LightblueResponse doOverwriteLightblue(List<JsonNode> documentsToOverwrite) throws IOException {
+        // LightblueClient - save & overwrite documents
+        DataSaveRequest saveRequest = new DataSaveRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
+        saveRequest.create(documentsToOverwrite.toArray());
+        List<Projection> projections = new ArrayList<>();
+        projections.add(new FieldProjection("*", false, true));
+        saveRequest.returns(projections);
+        return callLightblue(saveRequest);
+    }
+
+    protected Map<IdentityKey, JsonNode> getSourceDocuments() throws SQLException, IOException {
+        DataFindRequest sourceRequest = createSourceRequest();
+        currentRun.setSourceQuery(sourceRequest.getBody());
+        return findSourceData(sourceRequest);
+    }
+
+    /**
+     * Loads the page of source documents following the given document. Pages
+     * are sorted by the source timestamp and then the identity fields, and
+     * each page is queried for the documents sorted after the last document of
+     * the previous one, so reading a page doesn't get slower the further it is
+     * in the window.
+     *
+     * @param after the last document of the previous page, null for the first
+     * page
+     * @param pageSize maximum number of documents to load
+     * @return the source documents of the page
+     */
+    protected Map<IdentityKey, JsonNode> getSourceDocuments(JsonNode after, int pageSize) throws SQLException, IOException {
+        DataFindRequest sourceRequest = createSourceRequest();
+        if (after != null) {
+            sourceRequest.where(and(createSourceWindowQuery(), createAfterDocumentQuery(after)));
+        }
+        List<SortCondition> sortConditions = new ArrayList<>();
+        sortConditions.add(new SortCondition(getJobConfiguration().getSourceTimestampPath(), SortDirection.ASC));
+        if (getJobConfiguration().getDestinationIdentityFields() != null) {
+            for (String identityField : getJobConfiguration().getDestinationIdentityFields()) {
+                sortConditions.add(new SortCondition(identityField, SortDirection.ASC));
+            }
+        }
+        sourceRequest.sort(sortConditions.toArray(new SortCondition[sortConditions.size()]));
+        // range is inclusive
+        sourceRequest.range(0, pageSize - 1);
+        if (after == null) {
+            currentRun.setSourceQuery(sourceRequest.getBody());
+        }
+        return findSourceData(sourceRequest);
+    }
+
+    /**
+     * Matches the documents sorted after the given one by source timestamp
+     * and then identity fields: a later timestamp, or the same timestamp and
+     * a greater first identity field, and so on. Identity fields after one
+     * the document is missing are left out.
+     */
+    protected Query createAfterDocumentQuery(JsonNode after) {
+        String timestampPath = getJobConfiguration().getSourceTimestampPath();
+        JsonNode timestamp = getNode(after, timestampPath);
+        if (!timestamp.isValueNode() || timestamp.isNull()) {
+            throw new IllegalArgumentException("Unable to page source documents of job " + _id + ", " + timestampPath + " is missing");
+        }
+
+        List<Query> conditions = new ArrayList<>();
+        conditions.add(withValue(timestampPath + " > " + timestamp.asText()));
+        List<Query> equal = new ArrayList<>();
+        equal.add(withValue(timestampPath + " = " + timestamp.asText()));
+        List<String> identityFields = getJobConfiguration().getDestinationIdentityFields();
+        if (identityFields != null && !identityFields.isEmpty()) {
+            IdentityKey identity = getJobConfiguration().getIdentityExtractor().getKey(after);
+            for (int i = 0; i < identityFields.size() && identity.getValue(i) != null; i++) {
+                List<Query> greater = new ArrayList<>(equal);
+                greater.add(withValue(identityFields.get(i) + " > " + identity.getValue(i)));
+                conditions.add(and(greater));
+                equal.add(withValue(identityFields.get(i) + " = " + identity.getValue(i)));
+            }
+        }
+        return or(conditions);
+    }
+
+    /**
+     * Loads the source documents of part of the window.
+     *
+     * @param rangeStart start of the part, included
+     * @param rangeEnd end of the part, included
+     * @return the source documents in the part
+     */
+    protected Map<IdentityKey, JsonNode> getSourceDocuments(Date rangeStart, Date rangeEnd) throws SQLException, IOException {
+        DataFindRequest sourceRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+        sourceRequest.where(createSourceRangeQuery(rangeStart, rangeEnd));
+        sourceRequest.select(getComparisonProjection());
+        return findSourceData(sourceRequest);
+    }
+
+    private DataFindRequest createSourceRequest() {
+        DataFindRequest sourceRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+        sourceRequest.where(createSourceWindowQuery());
+        sourceRequest.select(getComparisonProjection());
+        return sourceRequest;
+    }
+
+    private Query createSourceWindowQuery() {
+        return createSourceRangeQuery(getWindowStartDate(), getEndDate());
+    }
+
+    private Query createSourceRangeQuery(Date rangeStart, Date rangeEnd) {
+        List<Query> conditions = new LinkedList<>();
+        conditions.add(withValue(getJobConfiguration().getSourceTimestampPath() + " >= " + rangeStart));
+        conditions.add(withValue(getJobConfiguration().getSourceTimestampPath() + " <= " + rangeEnd));
+        return and(conditions);
+    }
+
+    /**
+     * @return true if documents are read for comparison with only the fields
+     * that are compared, which is always the case with comparison inclusion
+     * paths and optional with only exclusion paths
+     */
+    protected boolean isComparisonProjected() {
+        MigrationConfiguration configuration = getJobConfiguration();
+        if (configuration.getComparisonInclusionPaths() != null && !configuration.getComparisonInclusionPaths().isEmpty()) {
+            return true;
+        }
+        return configuration.isComparisonProjectionEnabled()
+                && configuration.getComparisonExclusionPaths() != null && !configuration.getComparisonExclusionPaths().isEmpty();
+    }
+
+    /**
+     * Builds the projection used to read documents for comparison. Unless the
+     * comparison is projected it includes everything. Otherwise it includes the
+     * comparison inclusion paths (or everything if there are none), leaves out
+     * the comparison exclusion paths and always includes the identity fields
+     * and the source timestamp the documents are keyed and sorted by.
+     */
+    protected Projection[] getComparisonProjection() {
+        if (!isComparisonProjected()) {
+            return new Projection[]{includeFieldRecursively("*")};
+        }
+
+        MigrationConfiguration configuration = getJobConfiguration();
+        List<Projection> projections = new ArrayList<>();
+        if (configuration.getComparisonInclusionPaths() == null || configuration.getComparisonInclusionPaths().isEmpty()) {
+            projections.add(includeFieldRecursively("*"));
+        } else {
+            for (String path : configuration.getComparisonInclusionPaths()) {
+                projections.add(includeFieldRecursively(path));
+            }
+        }
+        if (configuration.getComparisonExclusionPaths() != null) {
+            for (String path : configuration.getComparisonExclusionPaths()) {
+                projections.add(new FieldProjection(path, false, true));
+            }
+        }
+        // later projections win, so these are kept even if excluded above
+        if (configuration.getDestinationIdentityFields() != null) {
+            for (String identityField : configuration.getDestinationIdentityFields()) {
+                projections.add(includeFieldRecursively(identityField));
+            }
+        }
+        projections.add(includeFieldRecursively(configuration.getSourceTimestampPath()));
+        return projections.toArray(new Projection[projections.size()]);
+    }
+
+    /**
+     * Reads the complete source documents of documents that were read with
+     * the comparison projection, so that overwrites don't drop the fields left
+     * out of the comparison. Documents no longer in the source are left out.
+     *
+     * @param documents source documents read with the comparison projection
+     * @return the complete source documents
+     */
+    protected List<JsonNode> getFullSourceDocuments(List<JsonNode> documents) throws IOException {
+        List<JsonNode> fullDocuments = new ArrayList<>(documents.size());
+        for (int position = 0; position < documents.size(); position += BATCH_SIZE) {
+            checkLease();
+            List<JsonNode> batch = documents.subList(position, Math.min(position + BATCH_SIZE, documents.size()));
+            DataFindRequest sourceRequest = new DataFindRequest(getJobConfiguration().getSourceEntityName(), getJobConfiguration().getSourceEntityVersion());
+            sourceRequest.where(buildIdentityQuery(getJobConfiguration().getSourceEntityName(), batch));
+            sourceRequest.select(includeFieldRecursively("*"));
+            for (JsonNode fullDocument : findSourceData(sourceRequest).values()) {
+                // these are never compared
+                fingerprints.remove(fullDocument);
+                fullDocuments.add(fullDocument);
+            }
+        }
+        return fullDocuments;
+    }
+
+    protected Map<IdentityKey, JsonNode> getDestinationDocuments(Map<IdentityKey, JsonNode> sourceDocuments) throws IOException {
+        return fetchDestinationDocuments(sourceDocuments, new DestinationFetch<JsonNode>() {
+            @Override
+            Map<IdentityKey, JsonNode> fetch(DataFindRequest destinationRequest) throws IOException {
+                return findDestinationData(destinationRequest);
+            }
+
+            @Override
+            long estimateBytes(Collection<JsonNode> destinationDocuments) {
+                return AdaptiveBatchSize.estimateBytes(destinationDocuments);
+            }
+        });
+    }
+
+    /**
+     * Looks up the destination documents like
+     * {@link #getDestinationDocuments(Map)}, keeping them in their compact
+     * encoding instead of parsing them into trees.
+     */
+    protected Map<IdentityKey, CompactDocument> getCompactDestinationDocuments(Map<IdentityKey, JsonNode> sourceDocuments) throws IOException {
+        return fetchDestinationDocuments(sourceDocuments, new DestinationFetch<CompactDocument>() {
+            @Override
+            Map<IdentityKey, CompactDocument> fetch(DataFindRequest destinationRequest) throws IOException {
+                return findCompactDestinationData(destinationRequest);
+            }
+
+            @Override
+            long estimateBytes(Collection<CompactDocument> destinationDocuments) {
+                long bytes = 0;
+                for (CompactDocument destinationDocument : destinationDocuments) {
+                    bytes += destinationDocument.getEncodedSize();
+                }
+                return bytes;
+            }
+        });
+    }
+
+    private <T> Map<IdentityKey, T> fetchDestinationDocuments(Map<IdentityKey, JsonNode> sourceDocuments, final DestinationFetch<T> fetch) throws IOException {
+        Map<IdentityKey, T> destinationDocuments = new LinkedHashMap<>();
+        if (sourceDocuments == null || sourceDocuments.isEmpty()) {
+            LOGGER.debug("Unable to fetch any destination documents as there are no source documents");
+            return destinationDocuments;
+        }
+
+        final AdaptiveBatchSize batchSize = getDestinationLookupBatchSize();
+        int size = batchSize.getBatchSize();
+        if (sourceDocuments.size() <= size) {
+            return timeDestinationDocumentFetch(batchSize, sourceDocuments, fetch);
+        }
+
+        List<Map<IdentityKey, JsonNode>> batches = new ArrayList<>();
+        List<IdentityKey> keys = Arrays.asList(sourceDocuments.keySet().toArray(new IdentityKey[0]));
+        int position = 0;
+        while (position < keys.size()) {
+            int limitedPosition = position + size;
+            if (limitedPosition > keys.size()) {
+                limitedPosition = keys.size();
+            }
+
+            List<IdentityKey> subKeys = keys.subList(position, limitedPosition);
+            Map<IdentityKey, JsonNode> batch = new HashMap<>();
+            for (IdentityKey subKey : subKeys) {
+                batch.put(subKey, sourceDocuments.get(subKey));
+            }
+            batches.add(batch);
+            position = limitedPosition;
+        }
+
+        if (getJobConfiguration().getDestinationLookupThreadCount() <= 1) {
+            for (Map<IdentityKey, JsonNode> batch : batches) {
+                destinationDocuments.putAll(timeDestinationDocumentFetch(batchSize, batch, fetch));
+            }
+            return destinationDocuments;
+        }
+
+        // fan the batches out and merge them in batch order, so the result is
+        // the same as if they were fetched one after another
+        List<Future<Map<IdentityKey, T>>> futures = new ArrayList<>(batches.size());
+        ExecutorService executor = getDestinationLookupExecutor();
+        for (final Map<IdentityKey, JsonNode> batch : batches) {
+            futures.add(executor.submit(new Callable<Map<IdentityKey, T>>() {
+                @Override
+                public Map<IdentityKey, T> call() throws IOException {
+                    return timeDestinationDocumentFetch(batchSize, batch, fetch);
+                }
+            }));
+        }
+        try {
+            for (Future<Map<IdentityKey, T>> future : futures) {
+                destinationDocuments.putAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching destination documents", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Unable to fetch destination documents", e.getCause());
+        } finally {
+            for (Future<Map<IdentityKey, T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return destinationDocuments;
+    }
+
+    /**
+     * @return the executor running concurrent destination lookups for this
+     * job, sized from the destinationLookupThreadCount of the configuration
+     */
+    private synchronized ExecutorService getDestinationLookupExecutor() {
+        if (destinationLookupExecutor == null) {
+            destinationLookupExecutor = Executors.newFixedThreadPool(getJobConfiguration().getDestinationLookupThreadCount(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "destinationLookup-" + _id + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return destinationLookupExecutor;
+    }
+
+    private synchronized void shutdownDestinationLookupExecutor() {
+        if (destinationLookupExecutor != null) {
+            destinationLookupExecutor.shutdownNow();
+            destinationLookupExecutor = null;
+        }
+    }
+
+    /**
+     * Fetches one batch and lets the batch size adapt to how the fetch
+     * performed.
+     */
+    private <T> Map<IdentityKey, T> timeDestinationDocumentFetch(AdaptiveBatchSize batchSize, Map<IdentityKey, JsonNode> sourceDocuments, DestinationFetch<T> fetch) throws IOException {
+        checkLease();
+        long start = System.currentTimeMillis();
+        try {
+            Map<IdentityKey, T> destinationDocuments = doDestinationDocumentFetch(sourceDocuments, fetch);
+            batchSize.recordSuccess(sourceDocuments.size(), System.currentTimeMillis() - start, fetch.estimateBytes(destinationDocuments.values()));
+            return destinationDocuments;
+        } catch (IOException | RuntimeException e) {
+            batchSize.recordFailure(sourceDocuments.size());
+            throw e;
+        }
+    }
+
+    private <T> Map<IdentityKey, T> doDestinationDocumentFetch(Map<IdentityKey, JsonNode> sourceDocuments, DestinationFetch<T> fetch) throws IOException {
+        if (sourceDocuments == null || sourceDocuments.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        DataFindRequest destinationRequest = new DataFindRequest(getJobConfiguration().getDestinationEntityName(), getJobConfiguration().getDestinationEntityVersion());
+        destinationRequest.where(buildIdentityKeyQuery(getJobConfiguration().getDestinationEntityName(), sourceDocuments.keySet()));
+        destinationRequest.select(getComparisonProjection());
+        destinationRequest.sort(new SortCondition(getJobConfiguration().getSourceTimestampPath(), SortDirection.ASC));
+        return fetch.fetch(destinationRequest);
+    }
+
+    /**
+     * How one batch of destination documents is read and held.
+     */
+    private abstract static class DestinationFetch<T> {
+        abstract Map<IdentityKey, T> fetch(DataFindRequest destinationRequest) throws IOException;
+
+        abstract long estimateBytes(Collection<T> destinationDocuments);
+    }
+
+    /**
+     * Builds the query matching the given documents by their identity fields.
+     * A single identity field becomes one $in query. Composite identities are
+     * grouped by their leading field so each group needs one equality on the
+     * leading field and one $in on the remaining field. An or of equalities
+     * per document is only used for values that can't go in an $in list.
+     * Without identity fields documents can't be told apart, and every
+     * document of the entity is matched.
+     *
+     * @param entityName the entity queried
+     * @param documents the documents to match
+     * @return the query
+     */
+    protected Query buildIdentityQuery(String entityName, Collection<JsonNode> documents) {
+        IdentityExtractor identity = getJobConfiguration().getIdentityExtractor();
+        List<IdentityKey> keys = new ArrayList<>(documents.size());
+        for (JsonNode document : documents) {
+            keys.add(identity.getKey(document));
+        }
+        return buildIdentityKeyQuery(entityName, keys);
+    }
+
+    /**
+     * Same as {@link #buildIdentityQuery(String, Collection)} for documents
+     * whose identities were already extracted.
+     *
+     * @param entityName the entity queried
+     * @param keys the identities of the documents to match
+     * @return the query
+     */
+    protected Query buildIdentityKeyQuery(String entityName, Collection<IdentityKey> keys) {
+        if (!hasIdentityFields()) {
+            // every lightblue document carries the name of its entity
+            return withValue("objectType = " + entityName);
+        }
+        List<String> identityFields = getJobConfiguration().getDestinationIdentityFields();
+
+        List<String[]> identities = new ArrayList<>(keys.size());
+        for (IdentityKey key : keys) {
+            String[] identity = new String[key.size()];
+            for (int i = 0; i < identity.length; i++) {
+                identity[i] = key.getValue(i);
+            }
+            identities.add(identity);
+        }
+        return buildIdentityQuery(identityFields, identities, 0);
+    }
+
+    private Query buildIdentityQuery(List<String> identityFields, List<String[]> identities, int fieldIndex) {
+        String field = identityFields.get(fieldIndex);
+
+        if (fieldIndex == identityFields.size() - 1) {
+            Set<String> values = new LinkedHashSet<>();
+            for (String[] identity : identities) {
+                values.add(identity[fieldIndex]);
+            }
+            if (values.size() == 1) {
+                return withValue(field + " = " + values.iterator().next());
+            }
+            if (isInListSafe(values)) {
+                return withValue(field + " $in [" + StringUtils.join(values, ", ") + "]");
+            }
+            List<Query> conditions = new ArrayList<>(values.size());
+            for (String value : values) {
+                conditions.add(withValue(field + " = " + value));
+            }
+            return or(conditions);
+        }
+
+        // group by the leading field and plan the remaining fields per group
+        Map<String, List<String[]>> groups = new LinkedHashMap<>();
+        for (String[] identity : identities) {
+            List<String[]> group = groups.get(identity[fieldIndex]);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(identity[fieldIndex], group);
+            }
+            group.add(identity);
+        }
+        List<Query> groupConditions = new ArrayList<>(groups.size());
+        for (Map.Entry<String, List<String[]>> group : groups.entrySet()) {
+            groupConditions.add(and(withValue(field + " = " + group.getKey()),
+                    buildIdentityQuery(identityFields, group.getValue(), fieldIndex + 1)));
+        }
+        return groupConditions.size() == 1 ? groupConditions.get(0) : or(groupConditions);
+    }
+
+    private boolean hasIdentityFields() {
+        List<String> identityFields = getJobConfiguration().getDestinationIdentityFields();
+        return identityFields != null && !identityFields.isEmpty();
+    }
+
+    /**
+     * Values can be listed in an $in expression if they can't be mistaken for
+     * the list syntax.
+     */
+    private static boolean isInListSafe(Collection<String> values) {
+        for (String value : values) {
+            if (value.isEmpty() || StringUtils.containsAny(value, ",[] \t\r\n")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected List<JsonNode> getDocumentsToOverwrite(Map<IdentityKey, JsonNode> sourceDocuments, Map<IdentityKey, JsonNode> destinationDocuments) {
         List<JsonNode> documentsToOverwrite = new ArrayList<>();
-        for (Map.Entry<String, JsonNode> sourceDocument : sourceDocuments.entrySet()) {
+        for (Map.Entry<IdentityKey, JsonNode> sourceDocument : sourceDocuments.entrySet()) {
             JsonNode destinationDocument = destinationDocuments.get(sourceDocument.getKey());
+            DocumentFingerprint sourceFingerprint = fingerprints.remove(sourceDocument.getValue());
             if (destinationDocument == null) {
                 // doc never existed in dest, don't log, just overwrite
                 documentsToOverwrite.add(sourceDocument.getValue());
-            } else {
+            } else if (!getFingerprint(sourceDocument.getValue(), sourceFingerprint).equals(getFingerprint(destinationDocument, fingerprints.remove(destinationDocument)))) {
+                // only documents with different fingerprints can have inconsistent paths
                 List<String> inconsistentPaths = getInconsistentPaths(sourceDocument.getValue(), destinationDocument);
                 if (inconsistentPaths.size() > 0) {
                     // log what was inconsistent and add to docs to overwrite
-                    List<String> idValues = new ArrayList<>();
-                    for (String idField : migrationConfiguration.getDestinationIdentityFields()) {
-                        //TODO this assumes keys at root, this might not always be true.  fix it..
-                        idValues.add(sourceDocument.getValue().get(idField).asText());
-                    }
-
-                    // log as key=value to make parsing easy
-                    // fields to log: config name, job id, dest entity name & version, id field names & values, list of inconsistent paths
-                    LOGGER.error("configurationName={} destinationEntityName={} destinationEntityVersion={} migrationJobId={} identityFields=\"{}\" identityFieldValues=\"{}\" inconsistentPaths=\"{}\"",
-                            migrationConfiguration.getConfigurationName(),
-                            migrationConfiguration.getDestinationEntityName(),
-                            migrationConfiguration.getDestinationEntityVersion(),
-                            this._id,
-                            StringUtils.join(migrationConfiguration.getDestinationIdentityFields(), ","),
-                            StringUtils.join(idValues, ","),
-                            StringUtils.join(inconsistentPaths, ","));
+                    logInconsistentDocument(sourceDocument.getValue(), inconsistentPaths);
+                    recordRepairPaths(sourceDocument.getValue(), inconsistentPaths);
+                    documentsToOverwrite.add(sourceDocument.getValue());
+                }
+            }
+        }
+        // destination documents without a source document are never compared
+        for (JsonNode destinationDocument : destinationDocuments.values()) {
+            fingerprints.remove(destinationDocument);
+        }
+        return documentsToOverwrite;
+    }
 
+    /**
+     * Like {@link #getDocumentsToOverwrite(Map, Map)} for destination documents
+     * in their compact encoding.
+     */
+    protected List<JsonNode> getCompactDocumentsToOverwrite(Map<IdentityKey, JsonNode> sourceDocuments, Map<IdentityKey, CompactDocument> destinationDocuments) {
+        List<JsonNode> documentsToOverwrite = new ArrayList<>();
+        for (Map.Entry<IdentityKey, JsonNode> sourceDocument : sourceDocuments.entrySet()) {
+            CompactDocument destinationDocument = destinationDocuments.get(sourceDocument.getKey());
+            if (destinationDocument == null) {
+                // doc never existed in dest, don't log, just overwrite
+                documentsToOverwrite.add(sourceDocument.getValue());
+            } else {
+                List<String> inconsistentPaths = getCompactInconsistentPaths(sourceDocument.getValue(), destinationDocument);
+                if (inconsistentPaths.size() > 0) {
+                    logInconsistentDocument(sourceDocument.getValue(), inconsistentPaths);
+                    recordRepairPaths(sourceDocument.getValue(), inconsistentPaths);
                     documentsToOverwrite.add(sourceDocument.getValue());
                 }
             }
@@ -674,6 +2615,86 @@ public class MigrationJob implements Runnable {
         return documentsToOverwrite;
     }
 
+    /**
+     * @return true if inconsistent documents are repaired with updates, which
+     * need identity fields to only update the repaired documents
+     */
+    private boolean isDeltaRepairing() {
+        return getJobConfiguration().isDeltaRepairEnabled() && hasIdentityFields();
+    }
+
+    private void recordRepairPaths(JsonNode sourceDocument, List<String> inconsistentPaths) {
+        if (isDeltaRepairing() && shouldOverwriteDestinationDocuments()) {
+            repairPaths.put(sourceDocument, inconsistentPaths);
+        }
+    }
+
+    private void logInconsistentDocument(JsonNode sourceDocument, List<String> inconsistentPaths) {
+        IdentityKey identity = migrationConfiguration.getIdentityExtractor().getKey(sourceDocument);
+        List<String> identityValues = new ArrayList<>(identity.size());
+        for (int i = 0; i < identity.size(); i++) {
+            identityValues.add(identity.getValue(i));
+        }
+
+        InconsistencyReport report = new InconsistencyReport();
+        report.setConfigurationName(migrationConfiguration.getConfigurationName());
+        report.setMigrationJobId(_id);
+        report.setDestinationEntityName(migrationConfiguration.getDestinationEntityName());
+        report.setDestinationEntityVersion(migrationConfiguration.getDestinationEntityVersion());
+        report.setIdentityFields(migrationConfiguration.getIdentityExtractor().getFields());
+        report.setIdentityValues(identityValues);
+        report.setInconsistentPaths(inconsistentPaths);
+        report.setReportDate(new Date());
+        try {
+            getInconsistencySink().report(report);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to report " + report, e);
+        }
+    }
+
+    /**
+     * @return the sink inconsistencies are reported to, which writes them on
+     * a thread of its own so comparisons never wait for it
+     */
+    protected synchronized InconsistencySink getInconsistencySink() {
+        if (inconsistencySink == null) {
+            MigrationConfiguration configuration = getJobConfiguration();
+            InconsistencySink sink;
+            if (configuration.getInconsistencyReportDirectory() == null) {
+                sink = new LoggingInconsistencySink();
+            } else {
+                sink = new NdjsonInconsistencySink(new File(configuration.getInconsistencyReportDirectory()),
+                        configuration.getConfigurationName() + "-" + _id + "-" + System.currentTimeMillis(),
+                        configuration.isInconsistencyReportCompressed(), configuration.getInconsistencyReportMaxFileBytes());
+            }
+            inconsistencySink = new AsyncInconsistencySink(sink, configuration.getInconsistencyQueueDepth(), "inconsistencies-" + _id);
+        }
+        return inconsistencySink;
+    }
+
+    /**
+     * @param inconsistencySink the sink inconsistencies are reported to, used
+     * as is and closed at the end of the job's run
+     */
+    public synchronized void setInconsistencySink(InconsistencySink inconsistencySink) {
+        this.inconsistencySink = inconsistencySink;
+    }
+
+    private synchronized void closeInconsistencySink() {
+        if (inconsistencySink != null) {
+            try {
+                inconsistencySink.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close inconsistency reports of job " + _id, e);
+            }
+            inconsistencySink = null;
+        }
+    }
+
+    private DocumentFingerprint getFingerprint(JsonNode document, DocumentFingerprint fingerprint) {
+        return fingerprint != null ? fingerprint : DocumentFingerprint.of(document, getJobConfiguration().getComparisonExclusionMatcher());
+    }
+
     /**
      *
      * @param sourceDocument
@@ -682,28 +2703,29 @@ public class MigrationJob implements Runnable {
      */
     protected List<String> getInconsistentPaths(JsonNode sourceDocument, JsonNode destinationDocument) {
         List<String> inconsistentPaths = new ArrayList<>();
-        doInconsistentPaths(inconsistentPaths, sourceDocument, destinationDocument, null);
+        doInconsistentPaths(inconsistentPaths, sourceDocument, destinationDocument,
+                getJobConfiguration().getComparisonExclusionMatcher().root(), new ArrayList<String>());
         return inconsistentPaths;
     }
 
-    //Recursive method
-    private void doInconsistentPaths(List<String> inconsistentPaths, final JsonNode sourceDocument, final JsonNode destinationDocument, final String path) {
-        List<String> excludes = getJobConfiguration().getComparisonExclusionPaths();
-        if (excludes != null && excludes.contains(path)) {
+    //Recursive method, path holds the field names leading to the documents and is only joined when a difference is found
+    private void doInconsistentPaths(List<String> inconsistentPaths, final JsonNode sourceDocument, final JsonNode destinationDocument,
+            final ExclusionPathMatcher.State exclusions, final List<String> path) {
+        if (exclusions.isExcluded()) {
             return;
         }
 
         if (sourceDocument == null && destinationDocument == null) {
             return;
         } else if (sourceDocument == null || destinationDocument == null) {
-            inconsistentPaths.add(StringUtils.isEmpty(path) ? "*" : path);
+            inconsistentPaths.add(toPath(path));
             return;
         }
 
         // for each field compare to destination
         if (JsonNodeType.ARRAY.equals(sourceDocument.getNodeType())) {
             if (!JsonNodeType.ARRAY.equals(destinationDocument.getNodeType())) {
-                inconsistentPaths.add(StringUtils.isEmpty(path) ? "*" : path);
+                inconsistentPaths.add(toPath(path));
                 return;
             }
 
@@ -711,17 +2733,17 @@ public class MigrationJob implements Runnable {
             ArrayNode destinationArray = (ArrayNode) destinationDocument;
 
             if (sourceArray.size() != destinationArray.size()) {
-                inconsistentPaths.add(StringUtils.isEmpty(path) ? "*" : path);
+                inconsistentPaths.add(toPath(path));
                 return;
             }
 
             // compare array contents
             for (int x = 0; x < sourceArray.size(); x++) {
-                doInconsistentPaths(inconsistentPaths, sourceArray.get(x), destinationArray.get(x), path);
+                doInconsistentPaths(inconsistentPaths, sourceArray.get(x), destinationArray.get(x), exclusions.element(x), path);
             }
         } else if (JsonNodeType.OBJECT.equals(sourceDocument.getNodeType())) {
             if (!JsonNodeType.OBJECT.equals(destinationDocument.getNodeType())) {
-                inconsistentPaths.add(StringUtils.isEmpty(path) ? "*" : path);
+                inconsistentPaths.add(toPath(path));
                 return;
             }
 
@@ -731,33 +2753,164 @@ public class MigrationJob implements Runnable {
             while (itr.hasNext()) {
                 Entry<String, JsonNode> entry = itr.next();
 
+                path.add(entry.getKey());
                 doInconsistentPaths(inconsistentPaths, entry.getValue(), destinationDocument.get(entry.getKey()),
-                        StringUtils.isEmpty(path) ? entry.getKey() : path + "." + entry.getKey());
+                        exclusions.field(entry.getKey()), path);
+                path.remove(path.size() - 1);
             }
 
         } else if (!sourceDocument.asText().equals(destinationDocument.asText())) {
-            inconsistentPaths.add(StringUtils.isEmpty(path) ? "*" : path);
+            inconsistentPaths.add(toPath(path));
+        }
+    }
+
+    /**
+     * Same as {@link #getInconsistentPaths(JsonNode, JsonNode)} for a
+     * destination document in its compact encoding.
+     *
+     * @param sourceDocument
+     * @param destinationDocument
+     * @return list of inconsistent paths
+     */
+    protected List<String> getCompactInconsistentPaths(JsonNode sourceDocument, CompactDocument destinationDocument) {
+        List<String> inconsistentPaths = new ArrayList<>();
+        doInconsistentPaths(inconsistentPaths, sourceDocument, destinationDocument, destinationDocument == null ? -1 : CompactDocument.ROOT,
+                getJobConfiguration().getComparisonExclusionMatcher().root(), new ArrayList<String>());
+        return inconsistentPaths;
+    }
+
+    //Recursive method walking the source tree and the compact destination in lockstep, -1 is a missing destination value
+    private void doInconsistentPaths(List<String> inconsistentPaths, final JsonNode sourceDocument, final CompactDocument destinationDocument,
+            final int destinationPosition, final ExclusionPathMatcher.State exclusions, final List<String> path) {
+        if (exclusions.isExcluded()) {
+            return;
+        }
+
+        if (sourceDocument == null && destinationPosition < 0) {
+            return;
+        } else if (sourceDocument == null || destinationPosition < 0) {
+            inconsistentPaths.add(toPath(path));
+            return;
+        }
+
+        JsonNodeType destinationType = destinationDocument.getNodeType(destinationPosition);
+        if (JsonNodeType.ARRAY.equals(sourceDocument.getNodeType())) {
+            if (!JsonNodeType.ARRAY.equals(destinationType)
+                    || sourceDocument.size() != destinationDocument.size(destinationPosition)) {
+                inconsistentPaths.add(toPath(path));
+                return;
+            }
+
+            int element = destinationDocument.firstElement(destinationPosition);
+            for (int x = 0; x < sourceDocument.size(); x++) {
+                doInconsistentPaths(inconsistentPaths, sourceDocument.get(x), destinationDocument, element, exclusions.element(x), path);
+                element = destinationDocument.next(element);
+            }
+        } else if (JsonNodeType.OBJECT.equals(sourceDocument.getNodeType())) {
+            if (!JsonNodeType.OBJECT.equals(destinationType)) {
+                inconsistentPaths.add(toPath(path));
+                return;
+            }
+
+            Iterator<Entry<String, JsonNode>> itr = sourceDocument.fields();
+            while (itr.hasNext()) {
+                Entry<String, JsonNode> entry = itr.next();
+
+                path.add(entry.getKey());
+                doInconsistentPaths(inconsistentPaths, entry.getValue(), destinationDocument,
+                        destinationDocument.field(destinationPosition, entry.getKey()), exclusions.field(entry.getKey()), path);
+                path.remove(path.size() - 1);
+            }
+        } else if (!sourceDocument.asText().equals(destinationDocument.asText(destinationPosition))) {
+            inconsistentPaths.add(toPath(path));
         }
     }
 
-    protected Map<String, JsonNode> findSourceData(AbstractLightblueDataRequest findRequest) throws IOException {
+    private static String toPath(List<String> path) {
+        String joined = StringUtils.join(path, ".");
+        return StringUtils.isEmpty(joined) ? "*" : joined;
+    }
+
+    protected Map<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest findRequest) throws IOException {
+        configureClients();
+        return getJsonNodeMap(parseProcessed(getSourceClient().data(findRequest), findRequest), getJobConfiguration().getIdentityExtractor());
+    }
+
+    protected Map<IdentityKey, JsonNode> findDestinationData(AbstractLightblueDataRequest findRequest) throws IOException {
         configureClients();
-        return getJsonNodeMap(getSourceClient().data(findRequest, JsonNode[].class), getJobConfiguration().getDestinationIdentityFields());
+        throttle("readRequests", getJobConfiguration().getDestinationReadRequestsPerSecond(), 1);
+        JsonNode[] results = parseProcessed(getDestinationClient().data(findRequest), findRequest);
+        throttle("readDocuments", getJobConfiguration().getDestinationReadDocumentsPerSecond(), results.length);
+        return getJsonNodeMap(results, getJobConfiguration().getIdentityExtractor());
+    }
+
+    /**
+     * Reads the documents of a find response, fingerprinting them as they are
+     * parsed unless comparisons are compact, which don't use fingerprints.
+     */
+    private JsonNode[] parseProcessed(LightblueResponse response, AbstractLightblueDataRequest findRequest) throws IOException {
+        if (response.hasError()) {
+            throw new RuntimeException("Error returned in response " + response.getText() + " for request " + findRequest.getBody());
+        }
+        ExclusionPathMatcher exclusions = getJobConfiguration().isCompactComparisonEnabled() ? null : getJobConfiguration().getComparisonExclusionMatcher();
+        List<JsonNode> documents = DocumentFingerprint.parseProcessed(response.getText(), exclusions, fingerprints);
+        return documents.toArray(new JsonNode[documents.size()]);
     }
 
-    protected Map<String, JsonNode> findDestinationData(AbstractLightblueDataRequest findRequest) throws IOException {
+    /**
+     * Reads destination documents without building trees for them.
+     */
+    protected Map<IdentityKey, CompactDocument> findCompactDestinationData(AbstractLightblueDataRequest findRequest) throws IOException {
         configureClients();
-        return getJsonNodeMap(getDestinationClient().data(findRequest, JsonNode[].class), getJobConfiguration().getDestinationIdentityFields());
+        throttle("readRequests", getJobConfiguration().getDestinationReadRequestsPerSecond(), 1);
+        LightblueResponse response = getDestinationClient().data(findRequest);
+        if (response.hasError()) {
+            throw new RuntimeException("Error returned in response " + response.getText() + " for request " + findRequest.getBody());
+        }
+
+        IdentityExtractor identity = getJobConfiguration().getIdentityExtractor();
+        Map<IdentityKey, CompactDocument> resultsMap = new LinkedHashMap<>();
+        for (CompactDocument result : CompactDocument.parseProcessed(response.getText())) {
+            resultsMap.put(identity.getKey(result), result);
+        }
+        throttle("readDocuments", getJobConfiguration().getDestinationReadDocumentsPerSecond(), resultsMap.size());
+        return resultsMap;
+    }
+
+    /**
+     * Waits for the destination entity's rate limit of the given kind, if the
+     * configuration has one. Documents read are only known once they are
+     * read, so the next request waits for them instead.
+     *
+     * @param kind the kind of limit, see {@link TokenBucket#forDestination}
+     * @param permitsPerSecond the configured limit
+     * @param permits the requests or documents about to be, or just, sent
+     */
+    protected void throttle(String kind, double permitsPerSecond, int permits) throws IOException {
+        TokenBucket bucket = TokenBucket.forDestination(getJobConfiguration(), kind, permitsPerSecond);
+        if (bucket == null || permits < 1) {
+            return;
+        }
+        try {
+            throttledMilliseconds.addAndGet(bucket.acquire(permits));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on destination rate limit " + kind);
+        }
+    }
+
+    /**
+     * @return time this job's current execution has waited on destination
+     * rate limits so far, in milliseconds
+     */
+    public long getThrottledMilliseconds() {
+        return throttledMilliseconds.get();
     }
 
-    protected LinkedHashMap<String, JsonNode> getJsonNodeMap(JsonNode[] results, List<String> entityKeyFields) {
-        LinkedHashMap<String, JsonNode> resultsMap = new LinkedHashMap<>();
+    protected LinkedHashMap<IdentityKey, JsonNode> getJsonNodeMap(JsonNode[] results, IdentityExtractor identity) {
+        LinkedHashMap<IdentityKey, JsonNode> resultsMap = new LinkedHashMap<>();
         for (JsonNode result : results) {
-            StringBuilder resultKey = new StringBuilder();
-            for (String keyField : entityKeyFields) {
-                resultKey.append(result.findValue(keyField)).append("|||");
-            }
-            resultsMap.put(resultKey.toString(), result);
+            resultsMap.put(identity.getKey(result), result);
         }
         return resultsMap;
     }
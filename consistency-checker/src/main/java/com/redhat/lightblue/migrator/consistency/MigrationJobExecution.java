@@ -1,6 +1,7 @@
 package com.redhat.lightblue.migrator.consistency;
 
 import java.util.Date;
+import java.util.List;
 
 public class MigrationJobExecution {
 
@@ -22,6 +23,36 @@ public class MigrationJobExecution {
     private int inconsistentDocumentCount = 0;
     private int overwrittenDocumentCount = 0;
 
+    // batches that could not be overwritten and the identities of their documents, for a targeted retry
+    private int failedBatchCount = 0;
+    private List<String> failedDocumentIdentities;
+
+    // time spent waiting on the destination rate limits
+    private long throttledMilliseconds = 0;
+
+    // source timestamp up to which the window has been processed, saved periodically so a later execution can resume
+    private Date progressWatermark;
+
+    // summary of the source window checked by this execution, a re-check is skipped while it doesn't change
+    private int sourceDocumentCount = 0;
+    private Date maxSourceTimestamp;
+    private String sourceDigest;
+    private boolean skippedUnchanged = false;
+
+    // time ranges of the window whose digests differed between source and destination, only these were compared
+    private int differingRangeCount = 0;
+
+    // for a sampled check, the part of the window compared and the inconsistency rate of the whole window
+    // estimated from it, with its confidence interval
+    private double samplingFraction = 0;
+    private double estimatedInconsistencyRate = 0;
+    private double inconsistencyRateLowerBound = 0;
+    private double inconsistencyRateUpperBound = 0;
+
+    // child jobs created by a COMPLETED_SPLIT execution and how many of them are aggregated into the counts above
+    private int childJobCount = 0;
+    private int completedChildJobCount = 0;
+
     public String getOwnerName() {
         return ownerName;
     }
@@ -102,6 +133,126 @@ public class MigrationJobExecution {
         this.overwrittenDocumentCount = overwrittenDocumentCount;
     }
 
+    public int getFailedBatchCount() {
+        return failedBatchCount;
+    }
+
+    public void setFailedBatchCount(int failedBatchCount) {
+        this.failedBatchCount = failedBatchCount;
+    }
+
+    public long getThrottledMilliseconds() {
+        return throttledMilliseconds;
+    }
+
+    public void setThrottledMilliseconds(long throttledMilliseconds) {
+        this.throttledMilliseconds = throttledMilliseconds;
+    }
+
+    public List<String> getFailedDocumentIdentities() {
+        return failedDocumentIdentities;
+    }
+
+    public void setFailedDocumentIdentities(List<String> failedDocumentIdentities) {
+        this.failedDocumentIdentities = failedDocumentIdentities;
+    }
+
+    public Date getProgressWatermark() {
+        return progressWatermark;
+    }
+
+    public void setProgressWatermark(Date progressWatermark) {
+        this.progressWatermark = progressWatermark;
+    }
+
+    public int getSourceDocumentCount() {
+        return sourceDocumentCount;
+    }
+
+    public void setSourceDocumentCount(int sourceDocumentCount) {
+        this.sourceDocumentCount = sourceDocumentCount;
+    }
+
+    public Date getMaxSourceTimestamp() {
+        return maxSourceTimestamp;
+    }
+
+    public void setMaxSourceTimestamp(Date maxSourceTimestamp) {
+        this.maxSourceTimestamp = maxSourceTimestamp;
+    }
+
+    public String getSourceDigest() {
+        return sourceDigest;
+    }
+
+    public void setSourceDigest(String sourceDigest) {
+        this.sourceDigest = sourceDigest;
+    }
+
+    public boolean isSkippedUnchanged() {
+        return skippedUnchanged;
+    }
+
+    public void setSkippedUnchanged(boolean skippedUnchanged) {
+        this.skippedUnchanged = skippedUnchanged;
+    }
+
+    public int getDifferingRangeCount() {
+        return differingRangeCount;
+    }
+
+    public void setDifferingRangeCount(int differingRangeCount) {
+        this.differingRangeCount = differingRangeCount;
+    }
+
+    public double getSamplingFraction() {
+        return samplingFraction;
+    }
+
+    public void setSamplingFraction(double samplingFraction) {
+        this.samplingFraction = samplingFraction;
+    }
+
+    public double getEstimatedInconsistencyRate() {
+        return estimatedInconsistencyRate;
+    }
+
+    public void setEstimatedInconsistencyRate(double estimatedInconsistencyRate) {
+        this.estimatedInconsistencyRate = estimatedInconsistencyRate;
+    }
+
+    public double getInconsistencyRateLowerBound() {
+        return inconsistencyRateLowerBound;
+    }
+
+    public void setInconsistencyRateLowerBound(double inconsistencyRateLowerBound) {
+        this.inconsistencyRateLowerBound = inconsistencyRateLowerBound;
+    }
+
+    public double getInconsistencyRateUpperBound() {
+        return inconsistencyRateUpperBound;
+    }
+
+    public void setInconsistencyRateUpperBound(double inconsistencyRateUpperBound) {
+        this.inconsistencyRateUpperBound = inconsistencyRateUpperBound;
+    }
+
+    public int getChildJobCount() {
+        return childJobCount;
+    }
+
+    public void setChildJobCount(int childJobCount) {
+        this.childJobCount = childJobCount;
+    }
+
+    public int getCompletedChildJobCount() {
+        return completedChildJobCount;
+    }
+
+    public void setCompletedChildJobCount(int completedChildJobCount) {
+        this.completedChildJobCount = completedChildJobCount;
+    }
+
     public JobStatus getJobStatus() {
         return jobStatus;
     }
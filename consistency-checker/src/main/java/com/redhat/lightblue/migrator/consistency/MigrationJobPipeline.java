@@ -0,0 +1,183 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Runs the steps of a {@link MigrationJob} as a pipeline of stages connected
+ * by bounded queues: source pages are read, destination documents are looked
+ * up, documents are compared and inconsistent documents are overwritten
+ * concurrently, each stage working on a different page. The source, lookup
+ * and compare stages run on their own threads while the overwrite stage runs
+ * on the calling thread.
+ */
+public class MigrationJobPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationJobPipeline.class);
+
+    /**
+     * How often the overwrite stage checks the other stages for failures while
+     * waiting for work.
+     */
+    private static final int STAGE_POLL_MSEC = 100;
+
+    /**
+     * Marks the end of the stream of batches.
+     */
+    private static final Batch END = new Batch(null);
+
+    private final MigrationJob job;
+    private final OverwriteStatus overwriteStatus;
+
+    public MigrationJobPipeline(MigrationJob job, OverwriteStatus overwriteStatus) {
+        this.job = job;
+        this.overwriteStatus = overwriteStatus;
+    }
+
+    /**
+     * Processes the whole job window, returning once every page has been
+     * overwritten or rethrowing the first failure of any stage.
+     */
+    public void run() throws SQLException, IOException {
+        MigrationConfiguration configuration = job.getJobConfiguration();
+        final int pageSize = configuration.getSourcePageSize() > 0 ? configuration.getSourcePageSize() : MigrationJob.BATCH_SIZE;
+        final BlockingQueue<Batch> sourceQueue = new ArrayBlockingQueue<>(Math.max(1, configuration.getSourceQueueDepth()));
+        final BlockingQueue<Batch> destinationQueue = new ArrayBlockingQueue<>(Math.max(1, configuration.getDestinationQueueDepth()));
+        final BlockingQueue<Batch> overwriteQueue = new ArrayBlockingQueue<>(Math.max(1, configuration.getOverwriteQueueDepth()));
+
+        ExecutorService stages = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            futures.add(stages.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    JsonNode last = null;
+                    Map<IdentityKey, JsonNode> page;
+                    do {
+                        job.checkLease();
+                        page = job.getSourceDocuments(last, pageSize);
+                        LOGGER.debug("Loaded source page with {} documents", page.size());
+                        last = MigrationJob.getLastDocument(page);
+                        Batch batch = new Batch(page);
+                        batch.watermark = job.getPageWatermark(page);
+                        sourceQueue.put(batch);
+                    } while (page.size() >= pageSize);
+                    sourceQueue.put(END);
+                    return null;
+                }
+            }));
+            futures.add(stages.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Batch batch;
+                    while ((batch = sourceQueue.take()) != END) {
+                        if (job.getJobConfiguration().isCompactComparisonEnabled()) {
+                            batch.compactDestinationDocuments = job.getCompactDestinationDocuments(batch.sourceDocuments);
+                        } else {
+                            batch.destinationDocuments = job.getDestinationDocuments(batch.sourceDocuments);
+                        }
+                        destinationQueue.put(batch);
+                    }
+                    destinationQueue.put(END);
+                    return null;
+                }
+            }));
+            futures.add(stages.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Batch batch;
+                    while ((batch = destinationQueue.take()) != END) {
+                        if (batch.compactDestinationDocuments != null) {
+                            batch.documentsToOverwrite = job.compareCompactDocuments(batch.sourceDocuments, batch.compactDestinationDocuments);
+                        } else {
+                            batch.documentsToOverwrite = job.compareSourceDocuments(batch.sourceDocuments, batch.destinationDocuments);
+                        }
+                        batch.comparedCount = batch.sourceDocuments.size();
+                        // release the documents that no longer need to be held
+                        batch.sourceDocuments = null;
+                        batch.destinationDocuments = null;
+                        batch.compactDestinationDocuments = null;
+                        overwriteQueue.put(batch);
+                    }
+                    overwriteQueue.put(END);
+                    return null;
+                }
+            }));
+
+            Batch batch;
+            while ((batch = overwriteQueue.poll(STAGE_POLL_MSEC, TimeUnit.MILLISECONDS)) != END) {
+                if (batch == null) {
+                    checkStages(futures);
+                } else {
+                    job.overwriteDocuments(batch.documentsToOverwrite, overwriteStatus);
+                    // count the batch only once it is overwritten, together with its watermark
+                    job.countDocuments(batch.comparedCount, batch.documentsToOverwrite.size());
+                    job.recordProgress(batch.watermark);
+                }
+            }
+            checkStages(futures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running pipeline for job " + job.get_id(), e);
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Rethrows the failure of any stage that has already finished.
+     */
+    private void checkStages(List<Future<Void>> futures) throws SQLException, IOException, InterruptedException {
+        for (Future<Void> future : futures) {
+            if (future.isDone()) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException("Pipeline stage failed for job " + job.get_id(), cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * One page of source documents travelling through the stages.
+     */
+    private static class Batch {
+        private Map<IdentityKey, JsonNode> sourceDocuments;
+        private Map<IdentityKey, JsonNode> destinationDocuments;
+        private Map<IdentityKey, CompactDocument> compactDestinationDocuments;
+        private List<JsonNode> documentsToOverwrite;
+        private int comparedCount;
+        // source timestamp up to which the window is processed once this batch is overwritten
+        private Date watermark;
+
+        Batch(Map<IdentityKey, JsonNode> sourceDocuments) {
+            this.sourceDocuments = sourceDocuments;
+        }
+    }
+}
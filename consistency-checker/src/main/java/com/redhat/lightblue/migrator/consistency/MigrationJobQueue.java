@@ -0,0 +1,119 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The jobs of a configuration that are available to run, read a page at a
+ * time in whenAvailableDate and _id order. Each page starts after the last job
+ * of the previous one, and the next page is read in the background once half
+ * of the current one has been taken. When the last job has been taken,
+ * {@link #poll()} returns null once and the next poll starts over from the
+ * first job, so jobs that could not run earlier are seen again.
+ */
+public class MigrationJobQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationJobQueue.class);
+
+    /**
+     * Reads the jobs that follow a job.
+     */
+    public interface JobSource {
+
+        /**
+         * @param after the last job read, null to read from the first one
+         * @param count the number of jobs to read
+         * @return the jobs after the given one, fewer than count only if there
+         * are no more
+         */
+        List<MigrationJob> getJobs(MigrationJob after, int count);
+    }
+
+    private final JobSource source;
+    private final int pageSize;
+    private final ExecutorService prefetchExecutor;
+
+    private final Deque<MigrationJob> jobs = new ArrayDeque<>();
+
+    // the last job read, where the next page starts
+    private MigrationJob cursor;
+
+    // the last page has been read
+    private boolean lastPage = false;
+
+    private Future<List<MigrationJob>> prefetch;
+
+    /**
+     * @param source reads the pages
+     * @param pageSize number of jobs read at a time
+     * @param prefetchExecutor where pages are read in the background
+     */
+    public MigrationJobQueue(JobSource source, int pageSize, ExecutorService prefetchExecutor) {
+        this.source = source;
+        this.pageSize = Math.max(1, pageSize);
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the next job, or null when all jobs have been taken
+     */
+    public synchronized MigrationJob poll() {
+        if (jobs.isEmpty()) {
+            fill();
+        }
+        MigrationJob job = jobs.pollFirst();
+        if (job == null) {
+            cursor = null;
+            lastPage = false;
+            return null;
+        }
+        if (jobs.size() <= pageSize / 2 && !lastPage && prefetch == null) {
+            final MigrationJob after = cursor;
+            prefetch = prefetchExecutor.submit(new Callable<List<MigrationJob>>() {
+                @Override
+                public List<MigrationJob> call() {
+                    return source.getJobs(after, pageSize);
+                }
+            });
+        }
+        return job;
+    }
+
+    private void fill() {
+        List<MigrationJob> page;
+        if (prefetch != null) {
+            try {
+                page = prefetch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                page = Collections.emptyList();
+            } catch (ExecutionException e) {
+                LOGGER.error("Problem prefetching migrationJobs", e.getCause());
+                page = Collections.emptyList();
+            }
+            prefetch = null;
+        } else if (!lastPage) {
+            page = source.getJobs(cursor, pageSize);
+        } else {
+            return;
+        }
+        jobs.addAll(page);
+        if (!page.isEmpty()) {
+            cursor = page.get(page.size() - 1);
+        }
+        lastPage = page.size() < pageSize;
+    }
+}
@@ -0,0 +1,90 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.redhat.lightblue.client.util.ClientConstants;
+
+/**
+ * Writes reports to files in a directory, one JSON object per line, each
+ * file optionally gzip compressed. A new file is started once the reports
+ * written to the current one reach maxFileBytes, counted before compression.
+ * Files are named after the given base name and numbered from 0, ie
+ * "name-0.ndjson.gz".
+ */
+public class NdjsonInconsistencySink implements InconsistencySink {
+
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final ObjectMapper mapper = new ObjectMapper().setDateFormat(ClientConstants.getDateFormat());
+
+    private final File directory;
+    private final String baseName;
+    private final boolean compressed;
+    private final long maxFileBytes;
+
+    private OutputStream out;
+    private long fileBytes = 0;
+    private int fileCount = 0;
+
+    /**
+     * @param directory where the files are written, created if missing
+     * @param baseName start of the file names
+     * @param compressed true to gzip the files
+     * @param maxFileBytes size at which a new file is started, 0 for a single
+     * file
+     */
+    public NdjsonInconsistencySink(File directory, String baseName, boolean compressed, long maxFileBytes) {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.compressed = compressed;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    @Override
+    public void report(InconsistencyReport report) throws IOException {
+        byte[] line = mapper.writeValueAsBytes(report);
+        if (out != null && maxFileBytes > 0 && fileBytes + line.length + 1 > maxFileBytes) {
+            close();
+        }
+        if (out == null) {
+            out = open();
+        }
+        out.write(line);
+        out.write(NEWLINE);
+        fileBytes += line.length + 1;
+    }
+
+    private OutputStream open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create report directory " + directory);
+        }
+        File file = new File(directory, baseName + "-" + fileCount++ + (compressed ? ".ndjson.gz" : ".ndjson"));
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        fileBytes = 0;
+        return compressed ? new GZIPOutputStream(stream) : stream;
+    }
+
+    /**
+     * @return the number of files started so far
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+}
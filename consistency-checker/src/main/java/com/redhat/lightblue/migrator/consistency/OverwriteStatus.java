@@ -0,0 +1,133 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.redhat.lightblue.client.response.LightblueResponse;
+
+/**
+ * Accumulates the statuses of the save responses sent while overwriting
+ * destination documents and derives the final status of the job execution
+ * from them. A job that does not overwrite anything completes successfully.
+ * Batches that could not be saved at all fail the execution, so the job is
+ * loaded again later, and are recorded with the identities of their documents,
+ * up to MAX_FAILED_DOCUMENT_IDENTITIES of them. The next execution checks only
+ * those documents again if all of them were recorded, the whole window
+ * otherwise.
+ */
+public class OverwriteStatus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OverwriteStatus.class);
+
+    public static final int MAX_FAILED_DOCUMENT_IDENTITIES = 1000; // most identities kept in the job execution
+
+    private boolean allComplete = true;
+    private boolean anyPartial = false;
+    private boolean anyAsync = false;
+
+    private int overwrittenDocumentCount = 0;
+
+    private int savedBatchCount = 0;
+    private int failedBatchCount = 0;
+    private final List<String> failedDocumentIdentities = new ArrayList<>();
+    private int failedDocumentCount = 0;
+
+    /**
+     * Records the status of one save response.
+     *
+     * @param response the lightblue response to the save request
+     * @return the number of documents modified by the request
+     */
+    public synchronized int record(LightblueResponse response) {
+        int modifiedCount = response.parseModifiedCount();
+        overwrittenDocumentCount += modifiedCount;
+
+        JsonNode jsonNode = response.getJson();
+        JsonNode jsStatus = jsonNode.findValue("status");
+        if (jsStatus == null || jsStatus instanceof NullNode || jsStatus instanceof MissingNode) {
+            // It should not reach here as is expected lightblue to throw an exception
+            LOGGER.error("In sourceDocuments: Found 'error' in response's status in one of the documents!");
+            throw new RuntimeException("Found 'error' in response's status!");
+        }
+        String status = jsStatus.asText(); // TODO lightblue client should have a better way to handle this
+        if (!MigrationJob.STATUS_COMPLETE.equalsIgnoreCase(status)) {
+            allComplete = false;
+            if (MigrationJob.STATUS_PARTIAL.equalsIgnoreCase(status)) {
+                anyPartial = true;
+            } else if (MigrationJob.STATUS_ASYNC.equalsIgnoreCase(status)) {
+                anyAsync = true;
+            } else if (MigrationJob.STATUS_ERROR.equalsIgnoreCase(status)) {
+                // It should not reach here as is expected lightblue to throw an exception
+                LOGGER.error("In sourceDocuments: Found 'error' in response's status in one of the documents!");
+                throw new RuntimeException("Found 'error' in response's status!");
+            } else {
+                // It should not reach here as lightblue response should always have a status
+                LOGGER.error("In sourceDocuments: One of the JSON returned doesn't have a valid status. Status set on the response was \"{}\"", status);
+                throw new RuntimeException("Invalid status from the response: " + status);
+            }
+        }
+        savedBatchCount++;
+        return modifiedCount;
+    }
+
+    /**
+     * Records a batch that could not be saved.
+     *
+     * @param documentIdentities the identities of the documents in the batch
+     */
+    public synchronized void recordFailure(List<String> documentIdentities) {
+        failedBatchCount++;
+        failedDocumentCount += documentIdentities.size();
+        int room = MAX_FAILED_DOCUMENT_IDENTITIES - failedDocumentIdentities.size();
+        failedDocumentIdentities.addAll(documentIdentities.subList(0, Math.max(0, Math.min(room, documentIdentities.size()))));
+    }
+
+    public synchronized int getOverwrittenDocumentCount() {
+        return overwrittenDocumentCount;
+    }
+
+    public synchronized int getFailedBatchCount() {
+        return failedBatchCount;
+    }
+
+    /**
+     * @return the number of documents in failed batches, which can be more
+     * than the identities kept
+     */
+    public synchronized int getFailedDocumentCount() {
+        return failedDocumentCount;
+    }
+
+    /**
+     * @return the identities of the first MAX_FAILED_DOCUMENT_IDENTITIES
+     * documents in failed batches
+     */
+    public synchronized List<String> getFailedDocumentIdentities() {
+        return new ArrayList<>(failedDocumentIdentities);
+    }
+
+    /**
+     * @return the status the job execution completes with given the responses
+     * recorded so far
+     */
+    public synchronized JobStatus getJobStatus() {
+        if (failedBatchCount > 0) {
+            // unlike a partial one, a failed execution doesn't complete the job, it is loaded again
+            return JobStatus.COMPLETED_FAILED;
+        } else if (allComplete) {
+            return JobStatus.COMPLETED_SUCCESS;
+        } else if (anyPartial) {
+            return JobStatus.COMPLETED_PARTIAL;
+        } else if (anyAsync) {
+            return JobStatus.COMPLETED_IGNORED;
+        } else {
+            return JobStatus.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the parts of a window where the source and destination differ
+ * without comparing documents. Both sides are summarized by a
+ * {@link WindowDigest} of the identities and timestamps in a time range, and
+ * a range whose digests differ is divided into fanout sub-ranges that are
+ * compared the same way, like the nodes of a Merkle tree. Only ranges that
+ * differ and hold no more than leafSize source documents are left to be
+ * compared document by document.
+ */
+public final class RangeReconciler {
+
+    private static final Comparator<Map.Entry<IdentityKey, Date>> BY_TIMESTAMP = new Comparator<Map.Entry<IdentityKey, Date>>() {
+        @Override
+        public int compare(Map.Entry<IdentityKey, Date> a, Map.Entry<IdentityKey, Date> b) {
+            return a.getValue().compareTo(b.getValue());
+        }
+    };
+
+    private final int fanout;
+    private final int leafSize;
+
+    /**
+     * @param fanout number of sub-ranges a differing range is divided into
+     * @param leafSize number of source documents under which a differing range
+     * is compared instead of divided
+     */
+    public RangeReconciler(int fanout, int leafSize) {
+        this.fanout = Math.max(2, fanout);
+        this.leafSize = Math.max(1, leafSize);
+    }
+
+    /**
+     * Reconciles the documents of a window, both ends included. Documents
+     * without a timestamp are ignored.
+     *
+     * @param startDate start of the window
+     * @param endDate end of the window
+     * @param source source timestamp of each source document by identity
+     * @param destination source timestamp of each destination document by
+     * identity
+     * @return the differing ranges and the source documents that match
+     */
+    public Result reconcile(Date startDate, Date endDate, Map<IdentityKey, Date> source, Map<IdentityKey, Date> destination) {
+        Result result = new Result();
+        List<Map.Entry<IdentityKey, Date>> sourceEntries = sortByTimestamp(source);
+        List<Map.Entry<IdentityKey, Date>> destinationEntries = sortByTimestamp(destination);
+        reconcile(startDate.getTime(), endDate.getTime(),
+                sourceEntries, 0, sourceEntries.size(),
+                destinationEntries, 0, destinationEntries.size(), result);
+        return result;
+    }
+
+    private void reconcile(long start, long end,
+            List<Map.Entry<IdentityKey, Date>> source, int sourceFrom, int sourceTo,
+            List<Map.Entry<IdentityKey, Date>> destination, int destinationFrom, int destinationTo,
+            Result result) {
+        result.comparedRangeCount++;
+        if (digest(source, sourceFrom, sourceTo).equals(digest(destination, destinationFrom, destinationTo))) {
+            for (Map.Entry<IdentityKey, Date> entry : source.subList(sourceFrom, sourceTo)) {
+                result.matchedSourceDocuments.put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        long span = end - start + 1;
+        if (sourceTo == sourceFrom) {
+            // only the destination has documents here, there is nothing to overwrite them with
+            return;
+        }
+        if (sourceTo - sourceFrom <= leafSize || span < fanout) {
+            result.addDifferingRange(start, end, sourceTo - sourceFrom, leafSize);
+            return;
+        }
+
+        int sourcePosition = sourceFrom;
+        int destinationPosition = destinationFrom;
+        for (int i = 0; i < fanout; i++) {
+            // ranges include both ends, so each sub-range ends just before the next one starts
+            long subStart = start + span * i / fanout;
+            long subEnd = start + span * (i + 1) / fanout - 1;
+            int sourceEnd = i == fanout - 1 ? sourceTo : endOf(source, sourcePosition, sourceTo, subEnd);
+            int destinationEnd = i == fanout - 1 ? destinationTo : endOf(destination, destinationPosition, destinationTo, subEnd);
+            reconcile(subStart, subEnd, source, sourcePosition, sourceEnd, destination, destinationPosition, destinationEnd, result);
+            sourcePosition = sourceEnd;
+            destinationPosition = destinationEnd;
+        }
+    }
+
+    private static int endOf(List<Map.Entry<IdentityKey, Date>> entries, int from, int to, long end) {
+        int position = from;
+        while (position < to && entries.get(position).getValue().getTime() <= end) {
+            position++;
+        }
+        return position;
+    }
+
+    private static String digest(List<Map.Entry<IdentityKey, Date>> entries, int from, int to) {
+        WindowDigest digest = new WindowDigest();
+        for (Map.Entry<IdentityKey, Date> entry : entries.subList(from, to)) {
+            digest.add(entry.getKey(), entry.getValue());
+        }
+        return digest.getDigest();
+    }
+
+    private static List<Map.Entry<IdentityKey, Date>> sortByTimestamp(Map<IdentityKey, Date> documents) {
+        List<Map.Entry<IdentityKey, Date>> entries = new ArrayList<>(documents.size());
+        for (Map.Entry<IdentityKey, Date> entry : documents.entrySet()) {
+            if (entry.getValue() != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, BY_TIMESTAMP);
+        return entries;
+    }
+
+    /**
+     * A time range, both ends included.
+     */
+    public static final class Range {
+        private final long start;
+        private long end;
+        private int sourceDocumentCount;
+
+        Range(long start, long end, int sourceDocumentCount) {
+            this.start = start;
+            this.end = end;
+            this.sourceDocumentCount = sourceDocumentCount;
+        }
+
+        public Date getStartDate() {
+            return new Date(start);
+        }
+
+        public Date getEndDate() {
+            return new Date(end);
+        }
+
+        /**
+         * @return the number of source documents in the range
+         */
+        public int getSourceDocumentCount() {
+            return sourceDocumentCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Range [start=" + start + ", end=" + end + ", sourceDocumentCount=" + sourceDocumentCount + "]";
+        }
+    }
+
+    /**
+     * What a reconciliation found.
+     */
+    public static final class Result {
+        private final List<Range> differingRanges = new ArrayList<>();
+        private final Map<IdentityKey, Date> matchedSourceDocuments = new LinkedHashMap<>();
+        private int comparedRangeCount = 0;
+
+        private void addDifferingRange(long start, long end, int sourceDocumentCount, int leafSize) {
+            Range last = differingRanges.isEmpty() ? null : differingRanges.get(differingRanges.size() - 1);
+            // adjacent ranges are read together while they stay small
+            if (last != null && last.end == start - 1 && last.sourceDocumentCount + sourceDocumentCount <= leafSize) {
+                last.end = end;
+                last.sourceDocumentCount += sourceDocumentCount;
+            } else {
+                differingRanges.add(new Range(start, end, sourceDocumentCount));
+            }
+        }
+
+        /**
+         * @return the ranges to compare document by document, in time order
+         */
+        public List<Range> getDifferingRanges() {
+            return differingRanges;
+        }
+
+        /**
+         * @return the source documents in ranges that match the destination,
+         * with their timestamps
+         */
+        public Map<IdentityKey, Date> getMatchedSourceDocuments() {
+            return matchedSourceDocuments;
+        }
+
+        /**
+         * @return the number of ranges whose digests were compared
+         */
+        public int getComparedRangeCount() {
+            return comparedRangeCount;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.redhat.lightblue.migrator.consistency;
+
+/**
+ * Chooses which documents of a window a sampled check compares and estimates
+ * the inconsistency rate of the whole window from them. A document is
+ * selected by a hash of its identity, so the same documents are sampled every
+ * time the window is checked with the same fraction, and a larger fraction
+ * samples the documents of a smaller one and more.
+ */
+public final class SamplingPlan {
+
+    private static final long SEED = 0x6a09e667f3bcc909L;
+
+    /**
+     * Confidence of the reported interval when sampling by fraction.
+     */
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+
+    private final double fraction;
+    private final double confidence;
+
+    private SamplingPlan(double fraction, double confidence) {
+        this.fraction = Math.min(1, Math.max(0, fraction));
+        this.confidence = confidence;
+    }
+
+    /**
+     * @param fraction part of the window to compare, between 0 and 1
+     */
+    public static SamplingPlan ofFraction(double fraction) {
+        return new SamplingPlan(fraction, DEFAULT_CONFIDENCE);
+    }
+
+    /**
+     * Samples enough documents to estimate the inconsistency rate within the
+     * margin of error at the given confidence, assuming the worst case rate
+     * of one half and correcting for the size of the window.
+     *
+     * @param confidence confidence of the estimate, ie 0.95
+     * @param marginOfError half the width of the interval, ie 0.01
+     * @param documentCount number of documents in the window
+     */
+    public static SamplingPlan ofConfidence(double confidence, double marginOfError, int documentCount) {
+        if (documentCount <= 0) {
+            return new SamplingPlan(1, confidence);
+        }
+        double z = zScore(confidence);
+        double sampleSize = z * z * 0.25 / (marginOfError * marginOfError);
+        // finite population correction
+        sampleSize = sampleSize / (1 + (sampleSize - 1) / documentCount);
+        return new SamplingPlan(Math.ceil(sampleSize) / documentCount, confidence);
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * @return true if the document with the given identity is compared
+     */
+    public boolean isSampled(IdentityKey identity) {
+        if (fraction >= 1) {
+            return true;
+        }
+        // top 53 bits of the hash as a uniform value in [0, 1)
+        double position = (DocumentFingerprint.hashText(identity.toString(), SEED) >>> 11) / (double) (1L << 53);
+        return position < fraction;
+    }
+
+    /**
+     * Wilson score interval of the inconsistency rate.
+     *
+     * @param inconsistentCount inconsistent documents in the sample
+     * @param sampleSize documents compared
+     * @return the lower and upper bound of the rate
+     */
+    public double[] getInterval(int inconsistentCount, int sampleSize) {
+        if (sampleSize <= 0) {
+            return new double[]{0, 1};
+        }
+        double z = zScore(confidence);
+        double rate = (double) inconsistentCount / sampleSize;
+        double z2 = z * z;
+        double center = (rate + z2 / (2 * sampleSize)) / (1 + z2 / sampleSize);
+        double halfWidth = z / (1 + z2 / sampleSize) * Math.sqrt(rate * (1 - rate) / sampleSize + z2 / (4.0 * sampleSize * sampleSize));
+        return new double[]{Math.max(0, center - halfWidth), Math.min(1, center + halfWidth)};
+    }
+
+    /**
+     * Two sided critical value of the standard normal distribution, from the
+     * rational approximation of Abramowitz and Stegun 26.2.23, which is within
+     * 0.00045 of the exact value.
+     *
+     * @param confidence between 0 and 1, exclusive
+     */
+    static double zScore(double confidence) {
+        double p = (1 - confidence) / 2;
+        double t = Math.sqrt(-2 * Math.log(p));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+                / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingPlan [fraction=" + fraction + ", confidence=" + confidence + "]";
+    }
+}
@@ -0,0 +1,148 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limit. Tokens are added at a steady rate up to a second's
+ * worth, and taking more tokens than the bucket holds puts it in debt, making
+ * the caller, and everyone after it, wait until the debt is paid back. This
+ * lets a caller take tokens for what it only knows afterwards, ie the number
+ * of documents a find returned.
+ *
+ * Instances are shared by all jobs in the JVM that use the same destination
+ * entity, see {@link #forDestination(MigrationConfiguration, String, double)}.
+ * Configurations of the same entity with different limits share the lowest of
+ * the limits they last reported, so a limit raised or removed by one of them
+ * takes effect as soon as no other configuration's limit is lower.
+ */
+public class TokenBucket {
+
+    private static final ConcurrentMap<String, TokenBucket> BUCKETS = new ConcurrentHashMap<>();
+
+    // limit last reported by each configuration sharing the bucket
+    private final Map<String, Double> limits = new HashMap<>();
+
+    private double permitsPerSecond;
+    private double capacity;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, permitsPerSecond);
+        this.tokens = capacity;
+        this.lastRefillNanos = nanoTime();
+    }
+
+    /**
+     * Returns the rate limit of the given kind of request on the
+     * configuration's destination entity, shared with every other
+     * configuration writing to or reading from that entity. The given limit
+     * replaces the one the configuration reported before, and the bucket's
+     * rate becomes the lowest limit reported, keeping its tokens and debt.
+     *
+     * @param configuration the migration configuration
+     * @param kind the kind of limit, ie "readRequests" or "writeDocuments"
+     * @param permitsPerSecond the limit, 0 or less for none
+     * @return the bucket, or null if there is no limit
+     */
+    public static TokenBucket forDestination(MigrationConfiguration configuration, String kind, double permitsPerSecond) {
+        String key = configuration.getDestinationEntityName() + "|" + kind;
+        TokenBucket bucket = BUCKETS.get(key);
+        if (permitsPerSecond <= 0) {
+            if (bucket != null) {
+                // no longer holds back the configurations that still have a limit
+                bucket.setLimit(configuration.getConfigurationName(), 0);
+            }
+            return null;
+        }
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(permitsPerSecond);
+            bucket = BUCKETS.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        bucket.setLimit(configuration.getConfigurationName(), permitsPerSecond);
+        return bucket;
+    }
+
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Records a configuration's limit, 0 or less to remove it, and sets the
+     * rate to the lowest limit left. Does not change the rate if no limit is
+     * left, as nobody takes tokens then.
+     */
+    synchronized void setLimit(String configurationName, double limit) {
+        if (limit > 0) {
+            limits.put(configurationName, limit);
+        } else {
+            limits.remove(configurationName);
+        }
+        if (!limits.isEmpty()) {
+            setPermitsPerSecond(Collections.min(limits.values()));
+        }
+    }
+
+    /**
+     * Changes the rate, keeping the tokens and debt. A lower rate also caps
+     * the tokens to its second's worth.
+     */
+    synchronized void setPermitsPerSecond(double newPermitsPerSecond) {
+        if (newPermitsPerSecond != permitsPerSecond) {
+            refill();
+            permitsPerSecond = newPermitsPerSecond;
+            capacity = Math.max(1, newPermitsPerSecond);
+            tokens = Math.min(capacity, tokens);
+        }
+    }
+
+    /**
+     * Takes tokens, waiting until the bucket is out of debt.
+     *
+     * @param permits the number of tokens to take
+     * @return how long the caller waited, in milliseconds
+     */
+    public long acquire(int permits) throws InterruptedException {
+        long waitMillis = reserve(permits);
+        if (waitMillis > 0) {
+            sleep(waitMillis);
+        }
+        return waitMillis;
+    }
+
+    /**
+     * Takes tokens without waiting.
+     *
+     * @return how long the caller has to wait for the bucket to be out of
+     * debt, in milliseconds
+     */
+    synchronized long reserve(int permits) {
+        refill();
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / permitsPerSecond);
+    }
+
+    private void refill() {
+        long now = nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected void sleep(long milliseconds) throws InterruptedException {
+        Thread.sleep(milliseconds);
+    }
+}
@@ -0,0 +1,58 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+
+/**
+ * Summary of the source documents in a job's window: how many there are, the
+ * latest source timestamp and a 128 bit hash of every document's identity
+ * and timestamp. Documents are added in any order, so a summary built while
+ * comparing the window matches one built from a lean read of the identities
+ * and timestamps alone, and equal summaries mean no document of the window
+ * was added, removed or updated in between.
+ */
+public final class WindowDigest {
+
+    private static final long SEED = 0x2545f4914f6cdd1dL;
+
+    private int documentCount = 0;
+    private Date maxTimestamp;
+    private long high = 0;
+    private long low = 0;
+
+    /**
+     * Adds a document to the summary.
+     *
+     * @param identity the identity key of the document
+     * @param timestamp the source timestamp of the document, may be null
+     */
+    public synchronized void add(IdentityKey identity, Date timestamp) {
+        String text = identity + "@" + (timestamp == null ? "" : timestamp.getTime());
+        // combined by addition so the order documents are added in doesn't matter
+        high += DocumentFingerprint.hashText(text, SEED);
+        low += DocumentFingerprint.hashText(text, ~SEED);
+        documentCount++;
+        if (timestamp != null && (maxTimestamp == null || timestamp.after(maxTimestamp))) {
+            maxTimestamp = timestamp;
+        }
+    }
+
+    public synchronized int getDocumentCount() {
+        return documentCount;
+    }
+
+    public synchronized Date getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * @return the hash of the documents' identities and timestamps as hex
+     */
+    public synchronized String getDigest() {
+        return String.format("%016x%016x", DocumentFingerprint.mix(high ^ documentCount), DocumentFingerprint.mix(low ^ ~documentCount));
+    }
+
+    @Override
+    public String toString() {
+        return "WindowDigest [documentCount=" + getDocumentCount() + ", maxTimestamp=" + getMaxTimestamp() + ", digest=" + getDigest() + "]";
+    }
+}
@@ -0,0 +1,88 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+    @Test
+    public void testFixedWithoutBounds() {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName("fixed");
+        AdaptiveBatchSize batchSize = AdaptiveBatchSize.forConfiguration(configuration, "save");
+
+        batchSize.recordSuccess(MigrationJob.BATCH_SIZE, 1, 1);
+        batchSize.recordFailure(MigrationJob.BATCH_SIZE);
+
+        Assert.assertEquals(MigrationJob.BATCH_SIZE, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testGrowsWhenFast() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 10, 1000, 1000, 1000000);
+
+        batchSize.recordSuccess(100, 100, 1000);
+        Assert.assertEquals(125, batchSize.getBatchSize());
+
+        // smaller batches than the current size say nothing about growing
+        batchSize.recordSuccess(50, 100, 1000);
+        Assert.assertEquals(125, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksWhenSlow() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 10, 1000, 1000, 1000000);
+
+        batchSize.recordSuccess(100, 1250, 1000);
+        Assert.assertEquals(80, batchSize.getBatchSize());
+
+        // never shrinks by more than half at once
+        batchSize.recordSuccess(80, 10000, 1000);
+        Assert.assertEquals(40, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksWhenLarge() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 10, 1000, 1000, 1000000);
+
+        batchSize.recordSuccess(100, 100, 2000000);
+        Assert.assertEquals(50, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testHalvesOnFailure() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 10, 1000, 1000, 1000000);
+
+        batchSize.recordFailure(100);
+        Assert.assertEquals(50, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(100, 40, 120, 1000, 1000000);
+
+        batchSize.recordFailure(100);
+        batchSize.recordFailure(50);
+        Assert.assertEquals(40, batchSize.getBatchSize());
+
+        for (int i = 0; i < 10; i++) {
+            batchSize.recordSuccess(batchSize.getBatchSize(), 1, 1);
+        }
+        Assert.assertEquals(120, batchSize.getBatchSize());
+    }
+
+    @Test
+    public void testSharedPerConfiguration() {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName("shared");
+        configuration.setMinBatchSize(10);
+        configuration.setMaxBatchSize(1000);
+
+        AdaptiveBatchSize batchSize = AdaptiveBatchSize.forConfiguration(configuration, "lookup");
+        Assert.assertSame(batchSize, AdaptiveBatchSize.forConfiguration(configuration, "lookup"));
+        Assert.assertNotSame(batchSize, AdaptiveBatchSize.forConfiguration(configuration, "save"));
+
+        configuration.setMaxBatchSize(500);
+        Assert.assertEquals(500, AdaptiveBatchSize.forConfiguration(configuration, "lookup").getMaxBatchSize());
+    }
+}
@@ -0,0 +1,69 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncInconsistencySinkTest {
+
+    private static class BlockingSink implements InconsistencySink {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<InconsistencyReport> reports = Collections.synchronizedList(new ArrayList<InconsistencyReport>());
+        private boolean closed = false;
+
+        @Override
+        public void report(InconsistencyReport report) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reports.add(report);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testReportNeverBlocks() throws Exception {
+        BlockingSink delegate = new BlockingSink();
+        AsyncInconsistencySink sink = new AsyncInconsistencySink(delegate, 2, "test");
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            sink.report(new InconsistencyReport());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        // one report is being written, two wait in the queue
+        Assert.assertTrue(sink.getDroppedCount() >= 7);
+
+        delegate.release.countDown();
+        sink.close();
+
+        Assert.assertTrue(delegate.closed);
+        Assert.assertEquals(10 - sink.getDroppedCount(), delegate.reports.size());
+    }
+
+    @Test
+    public void testCloseWritesQueuedReports() throws Exception {
+        BlockingSink delegate = new BlockingSink();
+        delegate.release.countDown();
+        AsyncInconsistencySink sink = new AsyncInconsistencySink(delegate, 100, "test");
+
+        for (int i = 0; i < 50; i++) {
+            sink.report(new InconsistencyReport());
+        }
+        sink.close();
+
+        Assert.assertEquals(0, sink.getDroppedCount());
+        Assert.assertEquals(50, delegate.reports.size());
+    }
+}
@@ -0,0 +1,76 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import static com.redhat.lightblue.util.test.FileUtil.readFile;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class CompactDocumentTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private CompactDocument compact(String json) throws Exception {
+        return CompactDocument.parseProcessed("{\"processed\":[" + json + "]}").get(0);
+    }
+
+    @Test
+    public void testParseProcessed() throws Exception {
+        String response = readFile("multipleFindResponseSource.json");
+        JsonNode processed = mapper.readTree(response).get("processed");
+
+        List<CompactDocument> documents = CompactDocument.parseProcessed(response);
+
+        Assert.assertEquals(processed.size(), documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            Assert.assertEquals(processed.get(i), documents.get(i).toJsonNode());
+        }
+        Assert.assertEquals("\"CAN\"", documents.get(0).findValue("iso3code").toString());
+        Assert.assertNull(documents.get(1).findValue("lastUpdateTime"));
+    }
+
+    @Test
+    public void testToJsonNodeMatchesTree() throws Exception {
+        String json = "{\"s\":\"x\",\"i\":1,\"l\":12345678901,\"b\":123456789012345678901234,\"d\":1.50,"
+                + "\"t\":true,\"f\":false,\"n\":null,\"o\":{\"a\":[1,{\"c\":\"y\"},[]]},\"e\":{}}";
+
+        Assert.assertEquals(mapper.readTree(json), compact(json).toJsonNode());
+    }
+
+    @Test
+    public void testFindValueSearchesNestedFields() throws Exception {
+        CompactDocument document = compact("{\"a\":[{\"b\":{\"id\":5}}],\"id\":6}");
+
+        Assert.assertEquals(mapper.readTree("{\"a\":[{\"b\":{\"id\":5}}],\"id\":6}").findValue("id"), document.findValue("id"));
+        Assert.assertNull(document.findValue("missing"));
+    }
+
+    @Test
+    public void testInconsistentPathsMatchTreeComparison() throws Exception {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setComparisonExclusionPaths(Arrays.asList("array.something", "ignored"));
+        MigrationJob job = new MigrationJob(configuration);
+
+        String[][] pairs = {
+            {"{\"a\":1,\"b\":\"x\"}", "{\"b\":\"x\",\"a\":1,\"c\":2}"},
+            {"{\"a\":1.0,\"b\":\"1\"}", "{\"a\":1.00,\"b\":1}"},
+            {"{\"a\":{\"b\":[1,2,{\"c\":3}]}}", "{\"a\":{\"b\":[1,2,{\"c\":4}]}}"},
+            {"{\"a\":[1,2]}", "{\"a\":[1,2,3]}"},
+            {"{\"a\":{\"b\":1}}", "{\"a\":[1]}"},
+            {"{\"a\":null,\"b\":\"\"}", "{\"b\":{}}"},
+            {"{\"array\":[{\"something\":1,\"other\":2}],\"ignored\":1}", "{\"array\":[{\"something\":3,\"other\":4}],\"ignored\":2}"},
+            {"[1,2]", "{\"a\":1}"}
+        };
+        for (String[] pair : pairs) {
+            JsonNode source = mapper.readTree(pair[0]);
+            Assert.assertEquals(pair[0] + " vs " + pair[1],
+                    job.getInconsistentPaths(source, mapper.readTree(pair[1])),
+                    job.getCompactInconsistentPaths(source, compact(pair[1])));
+        }
+    }
+}
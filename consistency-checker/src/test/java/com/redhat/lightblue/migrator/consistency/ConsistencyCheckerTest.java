@@ -1,9 +1,19 @@
 package com.redhat.lightblue.migrator.consistency;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
 
 import org.apache.commons.lang.time.DateUtils;
 import org.junit.Assert;
@@ -12,6 +22,9 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.http.LightblueHttpClient;
 import com.redhat.lightblue.client.request.AbstractLightblueDataRequest;
@@ -116,7 +129,7 @@ public class ConsistencyCheckerTest {
             public int numRuns = 0;
 
             @Override
-            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration) {
+            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
                 ArrayList<MigrationJob> jobs = new ArrayList<>();
                 if (numRuns == 0 || numRuns == 2) {
                     for (int i = 0; i < 10; i++) {
@@ -151,10 +164,10 @@ public class ConsistencyCheckerTest {
             }
 
             @Override
-            protected MigrationJob getNextAvailableJob() {
+            protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
                 MigrationJob job = new MigrationJob();
                 job.setWhenAvailableDate(DateUtils.addSeconds(new Date(), 5));
-                return job;
+                return Arrays.asList(job);
             }
 
         };
@@ -162,6 +175,131 @@ public class ConsistencyCheckerTest {
 
     }
 
+    @Test
+    public void testExecuteSubmitsOnlyExecutableJobs() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        ConsistencyChecker checker = new ConsistencyChecker() {
+            private int numRuns = 0;
+
+            @Override
+            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
+                ArrayList<MigrationJob> jobs = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    MigrationJob job = new MigrationJob() {
+                        @Override
+                        public void run() {
+                            executed.incrementAndGet();
+                        }
+                    };
+                    job.set_id("job" + i);
+                    if (i % 2 == 1) {
+                        // started recently, not executable yet
+                        MigrationJobExecution execution = new MigrationJobExecution();
+                        execution.setActualStartDate(new Date());
+                        job.setExpectedExecutionMilliseconds(60000);
+                        job.setJobExecutions(new ArrayList<>(Arrays.asList(execution)));
+                    }
+                    jobs.add(job);
+                }
+                return jobs;
+            }
+
+            @Override
+            protected List<MigrationConfiguration> getJobConfigurations() {
+                MigrationConfiguration config = new MigrationConfiguration();
+                config.setThreadCount(2);
+                setRun(++numRuns < 1);
+                return Arrays.asList(config);
+            }
+
+            @Override
+            protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
+                return new ArrayList<>();
+            }
+        };
+        checker.run();
+
+        Assert.assertEquals(2, executed.get());
+    }
+
+    @Test
+    public void testWakeUpThroughJmx() throws Exception {
+        final CountDownLatch secondPass = new CountDownLatch(2);
+        final ConsistencyChecker checker = new ConsistencyChecker() {
+            @Override
+            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
+                return new ArrayList<>();
+            }
+
+            @Override
+            protected List<MigrationConfiguration> getJobConfigurations() {
+                secondPass.countDown();
+                MigrationConfiguration config = new MigrationConfiguration();
+                config.setThreadCount(1);
+                return Arrays.asList(config);
+            }
+
+            @Override
+            protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
+                return new ArrayList<>();
+            }
+        };
+        checker.setConsistencyCheckerName("wakeUpChecker");
+        Thread thread = new Thread(checker);
+        thread.start();
+        try {
+            ObjectName name = new ObjectName("com.redhat.lightblue.migrator:type=ConsistencyChecker,name=\"wakeUpChecker\"");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!ManagementFactory.getPlatformMBeanServer().isRegistered(name) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(secondPass.await(200, TimeUnit.MILLISECONDS));
+
+            ManagementFactory.getPlatformMBeanServer().invoke(name, "wakeUp", new Object[0], new String[0]);
+            Assert.assertTrue(secondPass.await(10, TimeUnit.SECONDS));
+        } finally {
+            checker.setRun(false);
+            checker.wakeUp();
+            thread.join(10000);
+        }
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testExecuteReadsJobsWithLatestConfiguration() throws Exception {
+        final List<Long> leases = new ArrayList<>();
+        ConsistencyChecker checker = new ConsistencyChecker() {
+            private int numRuns = 0;
+
+            @Override
+            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
+                leases.add(configuration.getLeaseMilliseconds());
+                return new ArrayList<>();
+            }
+
+            @Override
+            protected List<MigrationConfiguration> getJobConfigurations() {
+                // the lease changes between passes, the page size does not
+                MigrationConfiguration config = new MigrationConfiguration();
+                config.setConfigurationName("config");
+                config.setThreadCount(1);
+                config.setLeaseMilliseconds(++numRuns == 1 ? 0 : 60000);
+                setRun(numRuns < 2);
+                return Arrays.asList(config);
+            }
+
+            @Override
+            protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
+                MigrationJob job = new MigrationJob();
+                job.setWhenAvailableDate(new Date(System.currentTimeMillis() - 1000));
+                return Arrays.asList(job);
+            }
+        };
+        checker.run();
+
+        Assert.assertEquals(Arrays.asList(0L, 60000L), leases);
+    }
+
     @Test
     public void isJobExecutable_NoExecutions() {
         MigrationJob job = new MigrationJob();
@@ -196,32 +334,188 @@ public class ConsistencyCheckerTest {
     }
 
     @Test
-    public void getNextAvailableJob() {
-        final String pid = "jewzaam was here";
+    public void isJobExecutable_ExpiredLease() {
+        MigrationJob job = new MigrationJob();
+        MigrationJobExecution exec = new MigrationJobExecution();
+        // started recently, but its lease was not renewed
+        job.setExpectedExecutionMilliseconds(30000);
+        exec.setActualStartDate(new Date());
+        job.setJobExecutions(new ArrayList<>(Arrays.asList(exec)));
+        job.setLeaseExpirationDate(new Date(System.currentTimeMillis() - 1000));
 
+        Assert.assertTrue(ConsistencyChecker.isJobExecutable(job));
+    }
+
+    @Test
+    public void isJobExecutable_HeldLease() {
+        MigrationJob job = new MigrationJob();
+        MigrationJobExecution exec = new MigrationJobExecution();
+        // running longer than expected, but still renewing its lease
+        job.setExpectedExecutionMilliseconds(30000);
+        exec.setActualStartDate(new Date(System.currentTimeMillis() - job.getExpectedExecutionMilliseconds() * 2));
+        job.setJobExecutions(new ArrayList<>(Arrays.asList(exec)));
+        job.setLeaseExpirationDate(new Date(System.currentTimeMillis() + 60000));
+
+        Assert.assertFalse(ConsistencyChecker.isJobExecutable(job));
+    }
+
+    @Test
+    public void getMigrationJobs_AfterJob() throws Exception {
+        final List<String> bodies = new ArrayList<>();
+        checker.setClient(new LightblueClient() {
+            @Override
+            public LightblueResponse metadata(AbstractLightblueMetadataRequest lr) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public LightblueResponse data(AbstractLightblueDataRequest lr) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public <T> T data(AbstractLightblueDataRequest lr, Class<T> type) throws IOException {
+                bodies.add(lr.getBody());
+                return (T) new MigrationJob[0];
+            }
+        });
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName("config");
+        MigrationJob after = new MigrationJob();
+        after.set_id("job1");
+        after.setWhenAvailableDate(new Date());
+
+        checker.getMigrationJobs(configuration, after, 8);
+
+        Assert.assertEquals(1, bodies.size());
+        Assert.assertTrue(bodies.get(0).contains("_id > job1"));
+        Assert.assertTrue(bodies.get(0).contains("jobExecutions.*.jobStatus"));
+        Assert.assertFalse(bodies.get(0).contains("\"*\""));
+        Assert.assertTrue(bodies.get(0).contains("[0,7]"));
+        // completed jobs queued for a re-check are read again
+        Assert.assertTrue(bodies.get(0).contains("recheck = true"));
+    }
+
+    @Test
+    public void testExecuteSkipsRequeuedUnchangedWindow() throws Exception {
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        final MigrationJob job = new MigrationJob() {
+            @Override
+            protected int countSourceDocuments() {
+                return 1;
+            }
+
+            @Override
+            protected Date findMaxSourceTimestamp() {
+                return null;
+            }
+
+            @Override
+            protected Map<IdentityKey, JsonNode> findSourceIdentities() {
+                Map<IdentityKey, JsonNode> identities = new LinkedHashMap<>();
+                identities.put(IdentityKey.of("CAN"), JsonNodeFactory.instance.objectNode().put("iso3code", "CAN"));
+                return identities;
+            }
+
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
+                throw new AssertionError("unchanged window must not be read");
+            }
+
+            @Override
+            protected LightblueResponse callLightblue(AbstractLightblueDataRequest request) {
+                bodies.add(request.getBody());
+                LightblueResponse response = new LightblueResponse();
+                ObjectNode json = JsonNodeFactory.instance.objectNode().put("status", "COMPLETE").put("modifiedCount", 1);
+                json.putArray("processed").addObject();
+                response.setJson(json);
+                return response;
+            }
+        };
+        job.set_id("job1");
+        job.setRecheck(true);
+        job.setSourceClient(new LightblueHttpClient());
+        job.setDestinationClient(new LightblueHttpClient());
+        // verified by an earlier execution, then queued again
+        WindowDigest digest = new WindowDigest();
+        digest.add(IdentityKey.of("CAN"), null);
+        MigrationJobExecution verified = new MigrationJobExecution();
+        verified.setJobStatus(JobStatus.COMPLETED_SUCCESS);
+        verified.setActualStartDate(DateUtils.addDays(new Date(), -1));
+        verified.setSourceDocumentCount(digest.getDocumentCount());
+        verified.setSourceDigest(digest.getDigest());
+        job.setJobExecutions(new ArrayList<>(Arrays.asList(verified)));
+
+        ConsistencyChecker checker = new ConsistencyChecker() {
+            private boolean read = false;
+
+            @Override
+            protected List<MigrationJob> getMigrationJobs(MigrationConfiguration configuration, MigrationJob after, int count) {
+                List<MigrationJob> jobs = new ArrayList<>();
+                if (!read) {
+                    read = true;
+                    jobs.add(job);
+                }
+                return jobs;
+            }
+
+            @Override
+            protected List<MigrationConfiguration> getJobConfigurations() {
+                MigrationConfiguration config = new MigrationConfiguration();
+                config.setConfigurationName("recheck");
+                config.setThreadCount(1);
+                config.setIncrementalRecheckEnabled(true);
+                config.setSourceTimestampPath("sourceTimestamp");
+                config.setDestinationIdentityFields(Arrays.asList("iso3code"));
+                setRun(false);
+                return Arrays.asList(config);
+            }
+
+            @Override
+            protected List<MigrationJob> getUpcomingJobs(List<MigrationConfiguration> configurations, Date after, int count) {
+                return new ArrayList<>();
+            }
+        };
+        checker.run();
+
+        Assert.assertEquals(2, job.getJobExecutions().size());
+        Assert.assertTrue(job.getJobExecutions().get(1).isSkippedUnchanged());
+        Assert.assertEquals(JobStatus.COMPLETED_SUCCESS, job.getJobExecutions().get(1).getJobStatus());
+        String save = bodies.get(bodies.size() - 1);
+        Assert.assertTrue(save.contains("skippedUnchanged"));
+        // done until it is queued for a re-check again
+        Assert.assertTrue(save.contains("\"recheck\""));
+    }
+
+    @Test
+    public void getUpcomingJobs_IncludesJobsCreatedSince() throws Exception {
+        final List<String> bodies = new ArrayList<>();
         checker.setClient(new LightblueClient() {
             @Override
             public LightblueResponse metadata(AbstractLightblueMetadataRequest lr) {
-                throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+                throw new UnsupportedOperationException();
             }
 
             @Override
             public LightblueResponse data(AbstractLightblueDataRequest lr) {
-                throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+                throw new UnsupportedOperationException();
             }
 
             @Override
             public <T> T data(AbstractLightblueDataRequest lr, Class<T> type) throws IOException {
-                MigrationJob[] jobs = new MigrationJob[1];
-                jobs[0] = new MigrationJob();
-                jobs[0].setPid(pid);
-                return (T) jobs;
+                bodies.add(lr.getBody());
+                return (T) new MigrationJob[0];
             }
         });
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName("config");
 
-        MigrationJob job = checker.getNextAvailableJob();
+        checker.getUpcomingJobs(Arrays.asList(configuration), new Date(), 10);
 
-        Assert.assertNotNull(job);
-        Assert.assertEquals(pid, job.getPid());
+        // a job inserted as available right away is found by its creationDate
+        Assert.assertEquals(1, bodies.size());
+        Assert.assertTrue(bodies.get(0).contains("whenAvailableDate > "));
+        Assert.assertTrue(bodies.get(0).contains("creationDate > "));
+        Assert.assertTrue(bodies.get(0).contains("[0,9]"));
     }
 }
@@ -0,0 +1,83 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DocumentFingerprintTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private DocumentFingerprint fingerprint(String json, String... exclusionPaths) throws IOException {
+        JsonNode document = mapper.readTree(json.replace('\'', '"'));
+        return DocumentFingerprint.of(document, ExclusionPathMatcher.compile(Arrays.asList(exclusionPaths)));
+    }
+
+    @Test
+    public void testFieldOrderIgnored() throws IOException {
+        Assert.assertEquals(fingerprint("{'a':1,'b':{'c':'x','d':[1,2]}}"), fingerprint("{'b':{'d':[1,2],'c':'x'},'a':1}"));
+    }
+
+    @Test
+    public void testArrayOrderMatters() throws IOException {
+        Assert.assertNotEquals(fingerprint("{'a':[1,2]}"), fingerprint("{'a':[2,1]}"));
+    }
+
+    @Test
+    public void testValuesComparedAsText() throws IOException {
+        Assert.assertEquals(fingerprint("{'a':1}"), fingerprint("{'a':'1'}"));
+        Assert.assertNotEquals(fingerprint("{'a':1}"), fingerprint("{'a':2}"));
+    }
+
+    @Test
+    public void testStructureMatters() throws IOException {
+        Assert.assertNotEquals(fingerprint("{'a':{'b':1}}"), fingerprint("{'a':[1]}"));
+        Assert.assertNotEquals(fingerprint("{'a':1}"), fingerprint("{'a':1,'b':1}"));
+        Assert.assertNotEquals(fingerprint("{'a':'b'}"), fingerprint("{'b':'a'}"));
+    }
+
+    @Test
+    public void testExclusionPathsSkipped() throws IOException {
+        Assert.assertEquals(fingerprint("{'a':1,'b':{'c':[{'d':1,'e':2}]}}", "b.c.d"),
+                fingerprint("{'a':1,'b':{'c':[{'d':5,'e':2}]}}", "b.c.d"));
+        Assert.assertNotEquals(fingerprint("{'a':1,'b':{'c':[{'d':1,'e':2}]}}", "b.c.d"),
+                fingerprint("{'a':1,'b':{'c':[{'d':1,'e':3}]}}", "b.c.d"));
+    }
+
+    @Test
+    public void testParseProcessedFingerprintsWhileParsing() throws IOException {
+        String response = "{'status':'COMPLETE','processed':[{'a':1,'b':{'c':[{'d':1,'e':2.5}],'f':null}},{'a':[true,'x',12345678901]}],'matchCount':2}"
+                .replace('\'', '"');
+        ExclusionPathMatcher exclusions = ExclusionPathMatcher.compile(Arrays.asList("b.c.d"));
+        Map<JsonNode, DocumentFingerprint> fingerprints = new IdentityHashMap<>();
+
+        List<JsonNode> documents = DocumentFingerprint.parseProcessed(response, exclusions, fingerprints);
+
+        Assert.assertEquals(2, documents.size());
+        Assert.assertEquals(2, fingerprints.size());
+        JsonNode processed = mapper.readTree(response).get("processed");
+        for (int i = 0; i < documents.size(); i++) {
+            // the same documents and fingerprints as a separate walk of the parsed tree
+            Assert.assertEquals(processed.get(i), documents.get(i));
+            Assert.assertEquals(DocumentFingerprint.of(processed.get(i), exclusions), fingerprints.get(documents.get(i)));
+        }
+    }
+
+    @Test
+    public void testParseProcessedWithoutExclusions() throws IOException {
+        Map<JsonNode, DocumentFingerprint> fingerprints = new IdentityHashMap<>();
+
+        List<JsonNode> documents = DocumentFingerprint.parseProcessed("{\"processed\":[{\"a\":1}]}", null, fingerprints);
+
+        Assert.assertEquals(1, documents.size());
+        Assert.assertTrue(fingerprints.isEmpty());
+    }
+}
@@ -0,0 +1,59 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExclusionPathMatcherTest {
+
+    private ExclusionPathMatcher.State root(String... paths) {
+        return ExclusionPathMatcher.compile(Arrays.asList(paths)).root();
+    }
+
+    @Test
+    public void testFieldPaths() {
+        ExclusionPathMatcher.State root = root("a.b", "c");
+
+        Assert.assertFalse(root.isExcluded());
+        Assert.assertTrue(root.field("c").isExcluded());
+        Assert.assertFalse(root.field("a").isExcluded());
+        Assert.assertTrue(root.field("a").field("b").isExcluded());
+        Assert.assertFalse(root.field("a").field("c").isExcluded());
+        Assert.assertTrue(root.field("d").isEmpty());
+    }
+
+    @Test
+    public void testNoPaths() {
+        Assert.assertTrue(ExclusionPathMatcher.compile(null).root().isEmpty());
+        Assert.assertFalse(ExclusionPathMatcher.compile(null).root().field("a").isExcluded());
+    }
+
+    @Test
+    public void testArrayElementsShareArrayPath() {
+        ExclusionPathMatcher.State root = root("a.b");
+
+        Assert.assertTrue(root.field("a").element(3).field("b").isExcluded());
+        Assert.assertFalse(root.field("a").element(3).isExcluded());
+    }
+
+    @Test
+    public void testFieldWildcard() {
+        ExclusionPathMatcher.State root = root("*.b", "a.c");
+
+        Assert.assertTrue(root.field("x").field("b").isExcluded());
+        Assert.assertTrue(root.field("a").field("b").isExcluded());
+        Assert.assertTrue(root.field("a").field("c").isExcluded());
+        Assert.assertFalse(root.field("x").field("c").isExcluded());
+    }
+
+    @Test
+    public void testArrayIndexWildcards() {
+        ExclusionPathMatcher.State root = root("a.*.b", "c.1");
+
+        Assert.assertTrue(root.field("a").element(0).field("b").isExcluded());
+        Assert.assertTrue(root.field("a").element(7).field("b").isExcluded());
+        Assert.assertFalse(root.field("c").element(0).isExcluded());
+        Assert.assertTrue(root.field("c").element(1).isExcluded());
+    }
+}
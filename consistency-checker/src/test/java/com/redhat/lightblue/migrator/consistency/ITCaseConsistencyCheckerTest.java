@@ -3,7 +3,6 @@ package com.redhat.lightblue.migrator.consistency;
 import static com.redhat.lightblue.util.test.AbstractJsonNodeTest.loadJsonNode;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
 
 import java.util.List;
 
@@ -52,19 +51,10 @@ public class ITCaseConsistencyCheckerTest extends AbstractMigratorController {
     public void testGetMigrationJobs() {
         MigrationConfiguration config = new MigrationConfiguration();
         config.setConfigurationName("customers");
-        List<MigrationJob> jobs = consistencyChecker.getMigrationJobs(config);
+        List<MigrationJob> jobs = consistencyChecker.getMigrationJobs(config, null, ConsistencyChecker.MAX_JOBS_PER_ENTITY);
 
         assertNotNull(jobs);
         assertEquals(1, jobs.size());
     }
 
-    /**
-     * Assert that null is returned when there is not a next available job.
-     */
-    @Test
-    public void testGetNextAvailableJob() {
-        MigrationJob job = consistencyChecker.getNextAvailableJob();
-        assertNull(job);
-    }
-
 }
@@ -0,0 +1,62 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class IdentityExtractorTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private CompactDocument compact(String json) throws Exception {
+        return CompactDocument.parseProcessed("{\"processed\":[" + json + "]}").get(0);
+    }
+
+    @Test
+    public void testFieldsFollowPathFromRoot() throws Exception {
+        IdentityExtractor extractor = IdentityExtractor.compile(Arrays.asList("key.id", "name"));
+        String json = "{\"other\":{\"name\":\"nested\"},\"key\":{\"id\":5},\"name\":\"top\"}";
+
+        Assert.assertEquals(IdentityKey.of("5", "top"), extractor.getKey(mapper.readTree(json)));
+        Assert.assertEquals(IdentityKey.of("5", "top"), extractor.getKey(compact(json)));
+    }
+
+    @Test
+    public void testNestedFieldWithSameNameNotMatched() throws Exception {
+        IdentityExtractor extractor = IdentityExtractor.compile(Arrays.asList("id"));
+        String json = "{\"child\":{\"id\":1},\"value\":null}";
+
+        Assert.assertEquals(IdentityKey.of((String) null), extractor.getKey(mapper.readTree(json)));
+        Assert.assertEquals(IdentityKey.of((String) null), extractor.getKey(compact(json)));
+    }
+
+    @Test
+    public void testArrayIndex() throws Exception {
+        IdentityExtractor extractor = IdentityExtractor.compile(Arrays.asList("ids.1.value", "ids.5.value"));
+        String json = "{\"ids\":[{\"value\":\"a\"},{\"value\":\"b\"}]}";
+
+        Assert.assertEquals(IdentityKey.of("b", null), extractor.getKey(mapper.readTree(json)));
+        Assert.assertEquals(IdentityKey.of("b", null), extractor.getKey(compact(json)));
+    }
+
+    @Test
+    public void testValuesAsText() throws Exception {
+        IdentityExtractor extractor = IdentityExtractor.compile(Arrays.asList("i", "d", "b", "n"));
+        String json = "{\"i\":12345678901,\"d\":1.5,\"b\":true,\"n\":null}";
+
+        Assert.assertEquals(IdentityKey.of("12345678901", "1.5", "true", null), extractor.getKey(mapper.readTree(json)));
+        Assert.assertEquals(extractor.getKey(mapper.readTree(json)), extractor.getKey(compact(json)));
+        Assert.assertEquals("12345678901,1.5,true,", extractor.getKey(compact(json)).toString());
+    }
+
+    @Test
+    public void testNoFields() throws Exception {
+        IdentityExtractor extractor = IdentityExtractor.compile(null);
+
+        Assert.assertEquals(0, extractor.getKey(mapper.readTree("{\"id\":1}")).size());
+        Assert.assertEquals(extractor.getKey(mapper.readTree("{\"id\":1}")), extractor.getKey(compact("{\"id\":2}")));
+    }
+}
@@ -0,0 +1,203 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JobSchedulerTest {
+
+    private static class BlockingJob extends MigrationJob {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingJob(String id) {
+            set_id(id);
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static MigrationConfiguration configuration(String name, int threadCount) {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName(name);
+        configuration.setThreadCount(threadCount);
+        return configuration;
+    }
+
+    private static MigrationConfiguration configuration(String name, int weight, int priority) {
+        MigrationConfiguration configuration = configuration(name, 10);
+        configuration.setWeight(weight);
+        configuration.setPriority(priority);
+        return configuration;
+    }
+
+    /**
+     * Submits jobs to the configurations the scheduler picks until it picks
+     * none, and returns the configuration names in the order they were picked.
+     */
+    private static List<String> fill(JobScheduler scheduler, List<MigrationConfiguration> configurations, Set<String> idle, List<BlockingJob> jobs) {
+        List<String> picked = new ArrayList<>();
+        MigrationConfiguration configuration;
+        while ((configuration = scheduler.nextConfiguration(configurations, idle)) != null) {
+            BlockingJob job = new BlockingJob(String.valueOf(jobs.size()));
+            jobs.add(job);
+            scheduler.submit(configuration, job);
+            picked.add(configuration.getConfigurationName());
+        }
+        return picked;
+    }
+
+    private static void release(List<BlockingJob> jobs) {
+        for (BlockingJob job : jobs) {
+            job.release.countDown();
+        }
+    }
+
+    private static void awaitAvailableSlot(JobScheduler scheduler, MigrationConfiguration configuration) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        // the job may finish before awaitCompletion is called, so check the slots too
+        while (scheduler.getAvailableSlots(configuration) == 0 && System.currentTimeMillis() < deadline) {
+            scheduler.awaitCompletion(100);
+        }
+    }
+
+    @Test
+    public void testSlotsFreeWhenJobsFinish() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        MigrationConfiguration configuration = configuration("a", 2);
+        BlockingJob first = new BlockingJob("1");
+        BlockingJob second = new BlockingJob("2");
+
+        scheduler.submit(configuration, first);
+        scheduler.submit(configuration, second);
+        Assert.assertEquals(0, scheduler.getAvailableSlots(configuration));
+        Assert.assertTrue(scheduler.isScheduled(first));
+        Assert.assertFalse(scheduler.isScheduled(new BlockingJob("3")));
+        Assert.assertTrue(second.started.await(10, TimeUnit.SECONDS));
+
+        first.release.countDown();
+        awaitAvailableSlot(scheduler, configuration);
+        Assert.assertEquals(1, scheduler.getAvailableSlots(configuration));
+        Assert.assertFalse(scheduler.isScheduled(first));
+        Assert.assertEquals(1, scheduler.getActiveJobCount());
+
+        second.release.countDown();
+        Assert.assertTrue(scheduler.shutdown(10000));
+        Assert.assertEquals(0, scheduler.getActiveJobCount());
+    }
+
+    @Test
+    public void testConfigurationsDoNotShareWorkers() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        MigrationConfiguration slow = configuration("slow", 1);
+        MigrationConfiguration fast = configuration("fast", 1);
+        BlockingJob blocked = new BlockingJob("1");
+        BlockingJob other = new BlockingJob("2");
+        other.release.countDown();
+
+        scheduler.submit(slow, blocked);
+        scheduler.submit(fast, other);
+
+        awaitAvailableSlot(scheduler, fast);
+        Assert.assertEquals(0, scheduler.getAvailableSlots(slow));
+        Assert.assertEquals(1, scheduler.getAvailableSlots(fast));
+
+        blocked.release.countDown();
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+
+    @Test
+    public void testAwaitCompletionTimesOut() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+
+        Assert.assertFalse(scheduler.awaitCompletion(10));
+    }
+
+    @Test
+    public void testPoolFollowsThreadCount() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        BlockingJob first = new BlockingJob("1");
+        BlockingJob second = new BlockingJob("2");
+
+        scheduler.submit(configuration("a", 1), first);
+        Assert.assertEquals(1, scheduler.getAvailableSlots(configuration("a", 2)));
+        scheduler.submit(configuration("a", 2), second);
+
+        // runs next to the first job on the grown pool
+        Assert.assertTrue(second.started.await(10, TimeUnit.SECONDS));
+        first.release.countDown();
+        second.release.countDown();
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+
+    @Test
+    public void testBudgetSharedByWeight() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        scheduler.setWorkerBudget(4);
+        List<BlockingJob> jobs = new ArrayList<>();
+
+        List<String> picked = fill(scheduler, Arrays.asList(configuration("a", 3, 0), configuration("b", 1, 0)), new HashSet<String>(), jobs);
+
+        Assert.assertEquals(3, Collections.frequency(picked, "a"));
+        Assert.assertEquals(1, Collections.frequency(picked, "b"));
+        Assert.assertEquals(4, scheduler.getActiveJobCount());
+        release(jobs);
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+
+    @Test
+    public void testIdleShareIsRedistributed() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        scheduler.setWorkerBudget(4);
+        List<BlockingJob> jobs = new ArrayList<>();
+
+        List<String> picked = fill(scheduler, Arrays.asList(configuration("a", 1, 0), configuration("b", 1, 0)), new HashSet<>(Arrays.asList("b")), jobs);
+
+        Assert.assertEquals(Arrays.asList("a", "a", "a", "a"), picked);
+        release(jobs);
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+
+    @Test
+    public void testPriorityDoesNotStarveOthers() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        scheduler.setWorkerBudget(3);
+        List<BlockingJob> jobs = new ArrayList<>();
+
+        List<String> picked = fill(scheduler, Arrays.asList(configuration("backfill", 1, 0), configuration("urgent", 1, 1)), new HashSet<String>(), jobs);
+
+        // the urgent configuration comes first and gets the odd worker, the backfill still gets its share
+        Assert.assertEquals(Arrays.asList("urgent", "urgent", "backfill"), picked);
+        release(jobs);
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+
+    @Test
+    public void testNoBudgetBoundsByThreadCount() throws Exception {
+        JobScheduler scheduler = new JobScheduler();
+        List<BlockingJob> jobs = new ArrayList<>();
+
+        List<String> picked = fill(scheduler, Arrays.asList(configuration("a", 2), configuration("b", 1)), new HashSet<String>(), jobs);
+
+        Assert.assertEquals(3, picked.size());
+        Assert.assertEquals(2, Collections.frequency(picked, "a"));
+        release(jobs);
+        Assert.assertTrue(scheduler.shutdown(10000));
+    }
+}
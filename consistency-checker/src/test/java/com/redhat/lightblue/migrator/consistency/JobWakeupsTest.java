@@ -0,0 +1,67 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JobWakeupsTest {
+
+    private static MigrationJob job(String id, long availableInMilliseconds) {
+        MigrationJob job = new MigrationJob();
+        job.set_id(id);
+        job.setWhenAvailableDate(new Date(System.currentTimeMillis() + availableInMilliseconds));
+        return job;
+    }
+
+    @Test
+    public void testAwaitReturnsWhenJobBecomesAvailable() throws Exception {
+        JobWakeups wakeups = new JobWakeups();
+        wakeups.schedule(job("late", 60000));
+        wakeups.schedule(job("soon", 50));
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(wakeups.await(10000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(1, wakeups.getPendingCount());
+    }
+
+    @Test
+    public void testAwaitTimesOut() throws Exception {
+        JobWakeups wakeups = new JobWakeups();
+        wakeups.schedule(job("late", 60000));
+
+        Assert.assertFalse(wakeups.await(10));
+    }
+
+    @Test
+    public void testScheduleIgnoresKnownJobs() throws Exception {
+        JobWakeups wakeups = new JobWakeups();
+        wakeups.schedule(job("a", 60000));
+        wakeups.schedule(job("a", 60000));
+
+        Assert.assertEquals(1, wakeups.getPendingCount());
+    }
+
+    @Test
+    public void testWakeUpWhileWaiting() throws Exception {
+        final JobWakeups wakeups = new JobWakeups();
+        wakeups.schedule(job("late", 60000));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wakeups.wakeUp();
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(wakeups.await(10000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(1, wakeups.getPendingCount());
+    }
+}
@@ -137,4 +137,22 @@ public class MigrationConfigurationTest {
         Assert.assertEquals(true, configuration.shouldOverwriteDestinationDocuments());
     }
 
+
+    @Test
+    public void testCompiledOnceUntilSet() {
+        IdentityExtractor extractor = configuration.getIdentityExtractor();
+        Assert.assertSame(extractor, configuration.getIdentityExtractor());
+        Assert.assertEquals(destinationEntityKeyFields, extractor.getFields());
+
+        configuration.setDestinationIdentityFields(Arrays.asList("id"));
+        Assert.assertEquals(Arrays.asList("id"), configuration.getIdentityExtractor().getFields());
+
+        configuration.setComparisonExclusionPaths(Arrays.asList("a"));
+        ExclusionPathMatcher matcher = configuration.getComparisonExclusionMatcher();
+        Assert.assertSame(matcher, configuration.getComparisonExclusionMatcher());
+        Assert.assertTrue(matcher.root().field("a").isExcluded());
+
+        configuration.setComparisonExclusionPaths(Arrays.asList("b"));
+        Assert.assertFalse(configuration.getComparisonExclusionMatcher().root().field("a").isExcluded());
+    }
 }
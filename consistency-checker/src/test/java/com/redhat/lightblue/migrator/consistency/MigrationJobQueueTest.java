@@ -0,0 +1,81 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MigrationJobQueueTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Serves jobs "0" to "count - 1" and records where each page started.
+     */
+    private static class NumberedJobs implements MigrationJobQueue.JobSource {
+        private final int count;
+        private final List<String> pageStarts = Collections.synchronizedList(new ArrayList<String>());
+
+        NumberedJobs(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public List<MigrationJob> getJobs(MigrationJob after, int pageSize) {
+            pageStarts.add(after == null ? null : after.get_id());
+            int first = after == null ? 0 : Integer.parseInt(after.get_id()) + 1;
+            List<MigrationJob> jobs = new ArrayList<>();
+            for (int i = first; i < Math.min(count, first + pageSize); i++) {
+                MigrationJob job = new MigrationJob();
+                job.set_id(String.valueOf(i));
+                jobs.add(job);
+            }
+            return jobs;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPollReadsPagesAfterTheLastJob() {
+        NumberedJobs source = new NumberedJobs(10);
+        MigrationJobQueue queue = new MigrationJobQueue(source, 4, executor);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(String.valueOf(i), queue.poll().get_id());
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(Arrays.asList(null, "3", "7"), source.pageStarts);
+    }
+
+    @Test
+    public void testPollStartsOverAfterTheLastJob() {
+        NumberedJobs source = new NumberedJobs(3);
+        MigrationJobQueue queue = new MigrationJobQueue(source, 4, executor);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(String.valueOf(i), queue.poll().get_id());
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals("0", queue.poll().get_id());
+    }
+
+    @Test
+    public void testPollEmpty() {
+        NumberedJobs source = new NumberedJobs(0);
+        MigrationJobQueue queue = new MigrationJobQueue(source, 4, executor);
+
+        Assert.assertNull(queue.poll());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(2, source.pageStarts.size());
+    }
+}
@@ -1,5 +1,8 @@
 package com.redhat.lightblue.migrator.consistency;
 
+import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.and;
+import static com.redhat.lightblue.client.expression.query.NaryLogicalQuery.or;
+import static com.redhat.lightblue.client.expression.query.ValueQuery.withValue;
 import static com.redhat.lightblue.util.test.FileUtil.readFile;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -15,6 +18,8 @@ import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -27,10 +32,13 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -38,10 +46,17 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.expression.update.ObjectRValue;
+import com.redhat.lightblue.client.expression.update.PathValuePair;
+import com.redhat.lightblue.client.expression.update.SetUpdate;
+import com.redhat.lightblue.client.expression.update.UnsetUpdate;
+import com.redhat.lightblue.client.expression.update.Update;
 import com.redhat.lightblue.client.http.LightblueHttpClient;
+import com.redhat.lightblue.client.projection.Projection;
 import com.redhat.lightblue.client.request.AbstractLightblueDataRequest;
 import com.redhat.lightblue.client.response.LightblueResponse;
 import com.redhat.lightblue.client.response.LightblueResponseParseException;
+import com.redhat.lightblue.client.util.ClientConstants;
 import com.redhat.lightblue.util.test.FileUtil;
 
 public class MigrationJobTest {
@@ -78,12 +93,12 @@ public class MigrationJobTest {
         }
 
         @Override
-        protected LinkedHashMap<String, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
+        protected LinkedHashMap<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
             return getProcessedContentsFrom(sourceDataResource);
         }
 
         @Override
-        protected LinkedHashMap<String, JsonNode> findDestinationData(AbstractLightblueDataRequest dataRequest) {
+        protected LinkedHashMap<IdentityKey, JsonNode> findDestinationData(AbstractLightblueDataRequest dataRequest) {
             return getProcessedContentsFrom(destinationDataResource);
         }
 
@@ -104,6 +119,10 @@ public class MigrationJobTest {
             response.setJson(node);
             return response;
         }
+
+        public String getLastRequestBody() {
+            return requestBodyList.get(requestBodyList.size() - 1);
+        }
     };
 
     @Before
@@ -356,6 +375,24 @@ public class MigrationJobTest {
         assertTrue(inconsistentPaths.isEmpty());
     }
 
+    /**
+     * Ensures wildcards in exclusion paths match any field and any array
+     * element.
+     */
+    @Test
+    public void testDocumentsConsistent_WithWildcardExclude() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode sourceNode = mapper.readTree("{\"a\":{\"x\":{\"t\":1},\"y\":{\"t\":2}},\"b\":[{\"t\":1,\"u\":1},{\"t\":2,\"u\":2}]}");
+        JsonNode destNode = mapper.readTree("{\"a\":{\"x\":{\"t\":3},\"y\":{\"t\":4}},\"b\":[{\"t\":3,\"u\":1},{\"t\":4,\"u\":5}]}");
+
+        MigrationConfiguration jobConfiguration = new MigrationConfiguration();
+        jobConfiguration.setComparisonExclusionPaths(Arrays.asList("a.*.t", "b.*.t"));
+        migrationJob.setJobConfiguration(jobConfiguration);
+
+        List<String> inconsistentPaths = migrationJob.getInconsistentPaths(sourceNode, destNode);
+        assertEquals(Arrays.asList("b.u"), inconsistentPaths);
+    }
+
     /**
      * Ensures that a more complex json document, with a deep invalid field but
      * where that field is excluded. Should pass.
@@ -486,6 +523,14 @@ public class MigrationJobTest {
         assertTrue(inconsistentPaths.isEmpty());
     }
 
+    private static LightblueResponse createFindResponse(JsonNode... documents) {
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        response.put("status", "COMPLETE");
+        response.put("matchCount", documents.length);
+        response.putArray("processed").addAll(Arrays.asList(documents));
+        return new LightblueResponse(response.toString());
+    }
+
     @Test
     public void testGetDestinationDocuments_UnderBatchingLimit() throws IOException {
         String key = "id";
@@ -497,18 +542,18 @@ public class MigrationJobTest {
         ObjectNode document = factory.objectNode();
         document.put(key, factory.textNode(value));
 
-        Map<String, JsonNode> sourceDocuments = new HashMap<>();
-        sourceDocuments.put(value, document);
+        Map<IdentityKey, JsonNode> sourceDocuments = new HashMap<>();
+        sourceDocuments.put(IdentityKey.of(value), document);
 
         JsonNode[] destinationDocuments = new JsonNode[]{document};
-        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class), eq(JsonNode[].class))).thenReturn(destinationDocuments);
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class))).thenReturn(createFindResponse(destinationDocuments));
 
-        Map<String, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
+        Map<IdentityKey, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
 
         assertNotNull(actual);
-        assertTrue(actual.containsKey("\"" + value + "\"|||"));
+        assertTrue(actual.containsKey(IdentityKey.of(value)));
 
-        assertEquals(sourceDocuments.get(value), actual.get("\"" + value + "\"|||"));
+        assertEquals(sourceDocuments.get(IdentityKey.of(value)), actual.get(IdentityKey.of(value)));
     }
 
     @Test
@@ -519,11 +564,11 @@ public class MigrationJobTest {
         JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
         migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList(key));
 
-        Map<String, JsonNode> sourceDocuments = new HashMap<>();
+        Map<IdentityKey, JsonNode> sourceDocuments = new HashMap<>();
         for (int x = 0; x < (MigrationJob.BATCH_SIZE * 2); x++) {
             ObjectNode document = factory.objectNode();
             document.put(key, factory.textNode(value + x));
-            sourceDocuments.put(value + x, document);
+            sourceDocuments.put(IdentityKey.of(value + x), document);
         }
 
         ObjectNode dd1 = factory.objectNode();
@@ -532,15 +577,15 @@ public class MigrationJobTest {
         ObjectNode dd2 = factory.objectNode();
         dd2.put(key, value + 101);
         JsonNode[] destinationDocumentsBatch2 = new JsonNode[]{dd2};
-        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class), eq(JsonNode[].class)))
-                .thenReturn(destinationDocumentsBatch1)
-                .thenReturn(destinationDocumentsBatch2);
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class)))
+                .thenReturn(createFindResponse(destinationDocumentsBatch1))
+                .thenReturn(createFindResponse(destinationDocumentsBatch2));
 
-        Map<String, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
+        Map<IdentityKey, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
 
         assertNotNull(actual);
-        assertTrue(actual.containsKey("\"" + value + "1\"|||"));
-        assertTrue(actual.containsKey("\"" + value + "101\"|||"));
+        assertTrue(actual.containsKey(IdentityKey.of(value + "1")));
+        assertTrue(actual.containsKey(IdentityKey.of(value + "101")));
     }
 
     @Test
@@ -551,11 +596,11 @@ public class MigrationJobTest {
         JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
         migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList(key));
 
-        Map<String, JsonNode> sourceDocuments = new HashMap<>();
+        Map<IdentityKey, JsonNode> sourceDocuments = new HashMap<>();
         for (int x = 0; x < (MigrationJob.BATCH_SIZE + 1); x++) {
             ObjectNode document = factory.objectNode();
             document.put(key, factory.textNode(value + x));
-            sourceDocuments.put(value + x, document);
+            sourceDocuments.put(IdentityKey.of(value + x), document);
         }
 
         ObjectNode dd1 = factory.objectNode();
@@ -564,15 +609,134 @@ public class MigrationJobTest {
         ObjectNode dd2 = factory.objectNode();
         dd2.put(key, value + 101);
         JsonNode[] destinationDocumentsBatch2 = new JsonNode[]{dd2};
-        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class), eq(JsonNode[].class)))
-                .thenReturn(destinationDocumentsBatch1)
-                .thenReturn(destinationDocumentsBatch2);
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class)))
+                .thenReturn(createFindResponse(destinationDocumentsBatch1))
+                .thenReturn(createFindResponse(destinationDocumentsBatch2));
 
-        Map<String, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
+        Map<IdentityKey, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
 
         assertNotNull(actual);
-        assertTrue(actual.containsKey("\"" + value + "1\"|||"));
-        assertTrue(actual.containsKey("\"" + value + "101\"|||"));
+        assertTrue(actual.containsKey(IdentityKey.of(value + "1")));
+        assertTrue(actual.containsKey(IdentityKey.of(value + "101")));
+    }
+
+    @Test
+    public void testGetDestinationDocuments_ConcurrentLookups() throws IOException {
+        final String key = "id";
+        String value = "uniqueId";
+
+        final JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList(key));
+        migrationJob.getJobConfiguration().setDestinationLookupThreadCount(3);
+
+        Map<IdentityKey, JsonNode> sourceDocuments = new LinkedHashMap<>();
+        for (int x = 0; x < (MigrationJob.BATCH_SIZE * 3); x++) {
+            ObjectNode document = factory.objectNode();
+            document.put(key, factory.textNode(value + x));
+            sourceDocuments.put(IdentityKey.of(value + x), document);
+        }
+
+        final AtomicInteger lookups = new AtomicInteger(0);
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class))).thenAnswer(new Answer<LightblueResponse>() {
+            @Override
+            public LightblueResponse answer(InvocationOnMock invocation) {
+                ObjectNode document = factory.objectNode();
+                document.put(key, "lookup" + lookups.incrementAndGet());
+                return createFindResponse(document);
+            }
+        });
+
+        Map<IdentityKey, JsonNode> actual = migrationJob.getDestinationDocuments(sourceDocuments);
+
+        assertEquals(3, lookups.get());
+        assertEquals(3, actual.size());
+        for (int x = 1; x <= 3; x++) {
+            assertTrue(actual.containsKey(IdentityKey.of("lookup" + x)));
+        }
+    }
+
+    @Test
+    public void testGetCompactDestinationDocuments() throws Exception {
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("iso3code"));
+        migrationJob.getJobConfiguration().setCompactComparisonEnabled(true);
+
+        JsonNode sourceResponse = fromFileToJsonNode("multipleFindResponseSource.json");
+        Map<IdentityKey, JsonNode> sourceDocuments = new LinkedHashMap<>();
+        for (JsonNode document : sourceResponse.get("processed")) {
+            sourceDocuments.put(IdentityKey.of(document.get("iso3code").asText()), document);
+        }
+
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class)))
+                .thenReturn(new LightblueResponse(readFile("multipleFindResponseDestination.json")));
+
+        Map<IdentityKey, CompactDocument> destinationDocuments = migrationJob.getCompactDestinationDocuments(sourceDocuments);
+
+        assertEquals(sourceDocuments.keySet(), destinationDocuments.keySet());
+        List<JsonNode> documentsToOverwrite = migrationJob.getCompactDocumentsToOverwrite(sourceDocuments, destinationDocuments);
+        JsonNode destinationResponse = fromFileToJsonNode("multipleFindResponseDestination.json");
+        Map<IdentityKey, JsonNode> treeDestinationDocuments = new LinkedHashMap<>();
+        for (JsonNode document : destinationResponse.get("processed")) {
+            treeDestinationDocuments.put(IdentityKey.of(document.get("iso3code").asText()), document);
+        }
+        assertEquals(migrationJob.getDocumentsToOverwrite(sourceDocuments, treeDestinationDocuments), documentsToOverwrite);
+    }
+
+    @Test
+    public void testGetComparisonProjection_Unprojected() {
+        migrationJob.getJobConfiguration().setComparisonExclusionPaths(Arrays.asList("lastUpdateTime"));
+
+        assertFalse(migrationJob.isComparisonProjected());
+        assertEquals(1, migrationJob.getComparisonProjection().length);
+        assertTrue(migrationJob.getComparisonProjection()[0].toJson().contains("\"*\""));
+    }
+
+    @Test
+    public void testGetComparisonProjection_Projected() {
+        MigrationConfiguration configuration = migrationJob.getJobConfiguration();
+        configuration.setComparisonInclusionPaths(Arrays.asList("name", "address"));
+        configuration.setComparisonExclusionPaths(Arrays.asList("address.lastUpdateTime"));
+        configuration.setDestinationIdentityFields(Arrays.asList("iso3code"));
+        configuration.setSourceTimestampPath("lastUpdateTime");
+
+        assertTrue(migrationJob.isComparisonProjected());
+        List<String> projections = new ArrayList<>();
+        for (Projection projection : migrationJob.getComparisonProjection()) {
+            projections.add(projection.toJson());
+        }
+        assertEquals(5, projections.size());
+        assertFalse(projections.get(0).contains("\"*\""));
+        assertTrue(projections.get(2).contains("address.lastUpdateTime"));
+        assertTrue(projections.get(2).contains("false"));
+        assertTrue(projections.get(3).contains("iso3code"));
+        assertTrue(projections.get(4).contains("lastUpdateTime"));
+    }
+
+    @Test
+    public void testOverwriteDocuments_ProjectedReadsFullDocuments() throws Exception {
+        MigrationConfiguration configuration = migrationJob.getJobConfiguration();
+        configuration.setComparisonInclusionPaths(Arrays.asList("name"));
+        configuration.setDestinationIdentityFields(Arrays.asList("iso3code"));
+        configuration.setComparisonExclusionPaths(new ArrayList<String>());
+        migrationJob.setOverwriteDestinationDocuments(true);
+
+        final JsonNode fullDocument = new ObjectMapper().readTree("{\"iso3code\":\"CAN\",\"name\":\"Canada\",\"population\":35}");
+        when(sourceClientMock.data(any(AbstractLightblueDataRequest.class))).thenReturn(createFindResponse(fullDocument));
+        final List<JsonNode> saved = new ArrayList<>();
+        MigrationJob job = new MigrationJob(configuration) {
+            @Override
+            protected List<LightblueResponse> overwriteLightblue(List<JsonNode> documentsToOverwrite, OverwriteStatus overwriteStatus) {
+                saved.addAll(documentsToOverwrite);
+                return new ArrayList<>();
+            }
+        };
+        job.setSourceClient(sourceClientMock);
+        job.setDestinationClient(destinationClientMock);
+        job.setOverwriteDestinationDocuments(true);
+
+        JsonNode projectedDocument = new ObjectMapper().readTree("{\"iso3code\":\"CAN\",\"name\":\"Canada\"}");
+        job.overwriteDocuments(Arrays.asList(projectedDocument), new OverwriteStatus());
+
+        assertEquals(Arrays.asList(fullDocument), saved);
     }
 
     @Test
@@ -582,7 +746,114 @@ public class MigrationJobTest {
 
     @Test
     public void testGetDestinationDocuments_EmptyMap() throws IOException {
-        assertTrue(migrationJob.getDestinationDocuments(new HashMap<String, JsonNode>()).isEmpty());
+        assertTrue(migrationJob.getDestinationDocuments(new HashMap<IdentityKey, JsonNode>()).isEmpty());
+    }
+
+    @Test
+    public void testGetDocumentsToOverwrite_ComparesOnlyDifferentFingerprints() throws IOException {
+        final AtomicInteger comparisons = new AtomicInteger(0);
+        MigrationJob job = new MigrationJob(new MigrationConfiguration()) {
+            @Override
+            protected List<String> getInconsistentPaths(JsonNode sourceDocument, JsonNode destinationDocument) {
+                comparisons.incrementAndGet();
+                return super.getInconsistentPaths(sourceDocument, destinationDocument);
+            }
+        };
+        job.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+        job.getJobConfiguration().setComparisonExclusionPaths(new ArrayList<String>());
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode[] sourceResults = new JsonNode[]{
+            mapper.readTree("{\"id\":1,\"a\":\"x\",\"b\":[1,2]}"),
+            mapper.readTree("{\"id\":2,\"a\":\"x\"}")};
+        JsonNode[] destinationResults = new JsonNode[]{
+            mapper.readTree("{\"b\":[1,2],\"a\":\"x\",\"id\":1}"),
+            mapper.readTree("{\"id\":2,\"a\":\"y\"}")};
+
+        List<JsonNode> documentsToOverwrite = job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(sourceResults, IdentityExtractor.compile(Arrays.asList("id"))),
+                job.getJsonNodeMap(destinationResults, IdentityExtractor.compile(Arrays.asList("id"))));
+
+        assertEquals(1, comparisons.get());
+        assertEquals(1, documentsToOverwrite.size());
+        assertEquals(sourceResults[1], documentsToOverwrite.get(0));
+    }
+
+    @Test
+    public void testBuildIdentityQuery_SingleField() {
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+
+        List<JsonNode> documents = new ArrayList<>();
+        for (int x = 0; x < 3; x++) {
+            ObjectNode document = factory.objectNode();
+            document.put("id", "uniqueId" + x);
+            documents.add(document);
+        }
+
+        String query = migrationJob.buildIdentityQuery("destinationEntity", documents).toJson();
+
+        assertEquals(withValue("id $in [uniqueId0, uniqueId1, uniqueId2]").toJson(), query);
+    }
+
+    @Test
+    public void testBuildIdentityQuery_CompositeFieldsGroupedByLeadingField() {
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("country", "id"));
+
+        List<JsonNode> documents = new ArrayList<>();
+        for (int x = 0; x < 4; x++) {
+            ObjectNode document = factory.objectNode();
+            document.put("country", "country" + (x % 2));
+            document.put("id", "uniqueId" + x);
+            documents.add(document);
+        }
+
+        String query = migrationJob.buildIdentityQuery("destinationEntity", documents).toJson();
+
+        // one group per leading value, each looking up its ids with one $in
+        assertEquals(or(
+                and(withValue("country = country0"), withValue("id $in [uniqueId0, uniqueId2]")),
+                and(withValue("country = country1"), withValue("id $in [uniqueId1, uniqueId3]"))
+        ).toJson(), query);
+
+        // a single group and a single value need no or and no $in
+        query = migrationJob.buildIdentityQuery("destinationEntity", documents.subList(0, 1)).toJson();
+        assertEquals(and(withValue("country = country0"), withValue("id = uniqueId0")).toJson(), query);
+    }
+
+    @Test
+    public void testBuildIdentityQuery_UnsafeValuesFallBackToEqualities() {
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("name"));
+
+        List<JsonNode> documents = new ArrayList<>();
+        for (String name : Arrays.asList("first name", "second name")) {
+            ObjectNode document = factory.objectNode();
+            document.put("name", name);
+            documents.add(document);
+        }
+
+        String query = migrationJob.buildIdentityQuery("destinationEntity", documents).toJson();
+
+        assertEquals(or(withValue("name = first name"), withValue("name = second name")).toJson(), query);
+    }
+
+    @Test
+    public void testBuildIdentityQuery_NoIdentityFieldsMatchesEntity() {
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(new ArrayList<String>());
+
+        List<JsonNode> documents = new ArrayList<>();
+        for (int x = 0; x < 3; x++) {
+            ObjectNode document = factory.objectNode();
+            document.put("id", "uniqueId" + x);
+            documents.add(document);
+        }
+
+        String query = migrationJob.buildIdentityQuery("destinationEntity", documents).toJson();
+
+        assertEquals(withValue("objectType = destinationEntity").toJson(), query);
     }
 
     @Test
@@ -608,6 +879,30 @@ public class MigrationJobTest {
         Assert.assertEquals((int) Math.ceil(((double) documentCount) / (double) MigrationJob.BATCH_SIZE), responses.size());
     }
 
+    @Test
+    public void testOverwriteLightblue_WriteRateLimit() throws IOException {
+        MigrationConfiguration configuration = migrationJob.getJobConfiguration();
+        configuration.setDestinationEntityName("rateLimitedDestination");
+        configuration.setDestinationWriteRequestsPerSecond(20);
+        // another job has just used up the bucket, so the batches wait about 50 ms each
+        TokenBucket.forDestination(configuration, "writeRequests", 20).reserve(20);
+
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        List<JsonNode> documentsToOverwrite = new ArrayList<>();
+        for (int x = 0; x < MigrationJob.BATCH_SIZE * 2; x++) {
+            ObjectNode document = factory.objectNode();
+            document.put("id", factory.textNode("uniqueId" + x));
+            documentsToOverwrite.add(document);
+        }
+
+        when(destinationClientMock.data(any(AbstractLightblueDataRequest.class))).thenReturn(new LightblueResponse("{\"modifiedCount\":2}"));
+
+        List<LightblueResponse> responses = migrationJob.overwriteLightblue(documentsToOverwrite);
+
+        Assert.assertEquals(2, responses.size());
+        Assert.assertTrue(migrationJob.getThrottledMilliseconds() >= 50);
+    }
+
     @Test
     public void testOverwriteLightblue_OverBatchingLimit() throws IOException {
         String key = "id";
@@ -631,6 +926,114 @@ public class MigrationJobTest {
         Assert.assertEquals((int) Math.ceil(((double) documentCount) / (double) MigrationJob.BATCH_SIZE), responses.size());
     }
 
+    private List<JsonNode> createDocumentsToOverwrite(int documentCount) {
+        JsonNodeFactory factory = JsonNodeFactory.withExactBigDecimals(false);
+        List<JsonNode> documentsToOverwrite = new ArrayList<>();
+        for (int x = 0; x < documentCount; x++) {
+            ObjectNode document = factory.objectNode();
+            document.put("id", factory.textNode("uniqueId" + x));
+            documentsToOverwrite.add(document);
+        }
+        return documentsToOverwrite;
+    }
+
+    /**
+     * Job whose saves fail for the given (zero based) calls to lightblue.
+     */
+    private MigrationJob createFailingSaveJob(final AtomicInteger calls, final Integer... failingCalls) {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setDestinationIdentityFields(Arrays.asList("id"));
+        configuration.setOverwriteRetryBackoffMilliseconds(1);
+        return new MigrationJob(configuration) {
+            @Override
+            protected LightblueResponse callLightblue(AbstractLightblueDataRequest request) throws IOException {
+                if (Arrays.asList(failingCalls).contains(calls.getAndIncrement())) {
+                    throw new IOException("forced failure for testing");
+                }
+                return new LightblueResponse("{\"modifiedCount\":1,\"status\":\"COMPLETE\"}");
+            }
+        };
+    }
+
+    @Test
+    public void testOverwriteLightblue_RetriesFailedBatch() throws IOException {
+        AtomicInteger calls = new AtomicInteger(0);
+        MigrationJob job = createFailingSaveJob(calls, 0);
+        job.getJobConfiguration().setOverwriteRetryCount(1);
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<LightblueResponse> responses = job.overwriteLightblue(createDocumentsToOverwrite(10), overwriteStatus);
+
+        assertEquals(2, calls.get());
+        assertEquals(1, responses.size());
+        assertEquals(0, overwriteStatus.getFailedBatchCount());
+        assertEquals(JobStatus.COMPLETED_SUCCESS, overwriteStatus.getJobStatus());
+    }
+
+    @Test
+    public void testOverwriteLightblue_IsolatesFailedBatch() throws IOException {
+        AtomicInteger calls = new AtomicInteger(0);
+        MigrationJob job = createFailingSaveJob(calls, 1);
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<LightblueResponse> responses = job.overwriteLightblue(createDocumentsToOverwrite(MigrationJob.BATCH_SIZE * 3), overwriteStatus);
+
+        assertEquals(3, calls.get());
+        assertEquals(2, responses.size());
+        assertEquals(2, overwriteStatus.getOverwrittenDocumentCount());
+        assertEquals(1, overwriteStatus.getFailedBatchCount());
+        List<String> failedIdentities = overwriteStatus.getFailedDocumentIdentities();
+        assertEquals(MigrationJob.BATCH_SIZE, failedIdentities.size());
+        assertEquals("uniqueId" + MigrationJob.BATCH_SIZE, failedIdentities.get(0));
+        // the job is loaded again instead of being completed
+        assertEquals(JobStatus.COMPLETED_FAILED, overwriteStatus.getJobStatus());
+    }
+
+    @Test
+    public void testOverwriteStatus_CapsFailedIdentities() {
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<String> identities = new ArrayList<>();
+        for (int i = 0; i < OverwriteStatus.MAX_FAILED_DOCUMENT_IDENTITIES - 1; i++) {
+            identities.add("id" + i);
+        }
+        overwriteStatus.recordFailure(identities);
+        overwriteStatus.recordFailure(Arrays.asList("a", "b", "c"));
+
+        assertEquals(2, overwriteStatus.getFailedBatchCount());
+        assertEquals(OverwriteStatus.MAX_FAILED_DOCUMENT_IDENTITIES + 2, overwriteStatus.getFailedDocumentCount());
+        assertEquals(OverwriteStatus.MAX_FAILED_DOCUMENT_IDENTITIES, overwriteStatus.getFailedDocumentIdentities().size());
+        assertEquals("a", overwriteStatus.getFailedDocumentIdentities().get(OverwriteStatus.MAX_FAILED_DOCUMENT_IDENTITIES - 1));
+    }
+
+    @Test
+    public void testOverwriteLightblue_AllBatchesFailed() throws IOException {
+        AtomicInteger calls = new AtomicInteger(0);
+        MigrationJob job = createFailingSaveJob(calls, 0, 1);
+        job.getJobConfiguration().setOverwriteThreadCount(2);
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<LightblueResponse> responses = job.overwriteLightblue(createDocumentsToOverwrite(MigrationJob.BATCH_SIZE * 2), overwriteStatus);
+
+        assertTrue(responses.isEmpty());
+        assertEquals(2, overwriteStatus.getFailedBatchCount());
+        assertEquals(JobStatus.COMPLETED_FAILED, overwriteStatus.getJobStatus());
+    }
+
+    @Test
+    public void testOverwriteLightblue_ConcurrentBatches() throws IOException {
+        AtomicInteger calls = new AtomicInteger(0);
+        MigrationJob job = createFailingSaveJob(calls);
+        job.getJobConfiguration().setOverwriteThreadCount(3);
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<LightblueResponse> responses = job.overwriteLightblue(createDocumentsToOverwrite(MigrationJob.BATCH_SIZE * 5), overwriteStatus);
+
+        assertEquals(5, calls.get());
+        assertEquals(5, responses.size());
+        assertEquals(5, overwriteStatus.getOverwrittenDocumentCount());
+        assertEquals(JobStatus.COMPLETED_SUCCESS, overwriteStatus.getJobStatus());
+    }
+
     @Test
     public void testExecuteExistsInSourceAndDestination() {
         TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
@@ -649,18 +1052,245 @@ public class MigrationJobTest {
         Assert.assertTrue(migrationJob.requestBodyList.get(2).contains(JobStatus.COMPLETED_SUCCESS.toString()));
     }
 
-    private LinkedHashMap<String, JsonNode> getProcessedContentsFrom(String filename) {
-        LinkedHashMap<String, JsonNode> output = new LinkedHashMap<>();
+    @Test
+    public void testExecuteLeanJobState() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[{}]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setLeanJobStateEnabled(true);
+        migrationJob.run();
+        Assert.assertEquals(1, migrationJob.getConsistentDocuments());
+        Assert.assertEquals(2, migrationJob.callCounter.get());
+
+        String claim = migrationJob.requestBodyList.get(0);
+        Assert.assertTrue(claim.contains(JobStatus.RUNNING.toString()));
+        Assert.assertFalse(claim.contains(JobStatus.STARTING.toString()));
+        Assert.assertTrue(claim.contains("jobExecutions.*.pid"));
+        Assert.assertTrue(claim.contains("jobExecutions.*.jobStatus"));
+        Assert.assertFalse(claim.contains("\"*\""));
+
+        String save = migrationJob.requestBodyList.get(1);
+        Assert.assertTrue(save.contains(JobStatus.COMPLETED_SUCCESS.toString()));
+        Assert.assertFalse(save.contains("ownerName"));
+        Assert.assertFalse(save.contains("\"*\""));
+    }
+
+    @Test
+    public void testExecuteLeanJobStateDuplicate() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":0,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"other\",\"jobStatus\":\"RUNNING\"},{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeanJobStateEnabled(true);
+        migrationJob.run();
+        Assert.assertEquals(0, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(2, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("jobExecutions.-1.jobStatus"));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.ABORTED_DUPLICATE.toString()));
+    }
+
+    @Test
+    public void testExecuteWithLease() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"dead\",\"jobStatus\":\"RUNNING\"},{\"pid\":\"other\",\"jobStatus\":\"COMPLETED_FAILED\"},{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}",
+                    "{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(60000);
+        migrationJob.run();
+        Assert.assertEquals(1, migrationJob.getConsistentDocuments());
+        Assert.assertFalse(migrationJob.isLeaseHeld());
+        Assert.assertEquals(3, migrationJob.callCounter.get());
+
+        String claim = migrationJob.requestBodyList.get(0);
+        Assert.assertTrue(claim.contains("leaseExpirationDate >"));
+        Assert.assertTrue(claim.contains("leaseOwner"));
+        Assert.assertTrue(claim.contains(JobStatus.RUNNING.toString()));
+
+        // the execution whose lease expired
+        Assert.assertTrue(migrationJob.requestBodyList.get(1).contains("jobExecutions.0.jobStatus"));
+        Assert.assertTrue(migrationJob.requestBodyList.get(1).contains(JobStatus.COMPLETED_DEAD.toString()));
+        Assert.assertFalse(migrationJob.requestBodyList.get(1).contains("leaseExpirationDate"));
+
+        String save = migrationJob.requestBodyList.get(2);
+        Assert.assertTrue(save.contains("jobExecutions.2.jobStatus"));
+        Assert.assertTrue(save.contains(JobStatus.COMPLETED_SUCCESS.toString()));
+        Assert.assertTrue(save.contains("leaseExpirationDate"));
+        // only written while the lease is still ours
+        Assert.assertTrue(migrationJob.requestBodyList.get(1).contains("leaseOwner = mine"));
+        Assert.assertTrue(save.contains("leaseOwner = mine"));
+    }
+
+    @Test
+    public void testExecuteWithLeaseSplitsAfterClaimedTimeouts() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"timedOut\",\"jobStatus\":\"COMPLETED_DEAD\"},{\"pid\":\"dead\",\"jobStatus\":\"RUNNING\"},{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}",
+                    "{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}"}) {
+            @Override
+            protected int splitWindow() {
+                return 2;
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(60000);
+        migrationJob.getJobConfiguration().setMaxTimeoutsPerJob(2);
+        migrationJob.getJobConfiguration().setSplitWindowCount(2);
+        migrationJob.run();
+
+        // neither timeout is in the executions read with the job, one is only marked dead by the claim
+        Assert.assertEquals(JobStatus.COMPLETED_SPLIT, migrationJob.currentRun.getJobStatus());
+        Assert.assertEquals(2, migrationJob.currentRun.getChildJobCount());
+    }
+
+    @Test
+    public void testExecuteStopsWhenLeaseCannotBeRenewed() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}"}) {
+            @Override
+            protected boolean renewLease() throws IOException {
+                // lightblue can't be reached
+                throw new IOException("forced failure for testing");
+            }
+
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findDestinationData(AbstractLightblueDataRequest dataRequest) {
+                try {
+                    // longer than the lease lasts
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.findDestinationData(dataRequest);
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(30);
+        migrationJob.run();
+        // only the claim, the lease may belong to another checker by the time the job is done
+        Assert.assertEquals(1, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("leaseExpirationDate >"));
+    }
+
+    @Test
+    public void testExecuteWithLeaseTakenBeforeSave() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}",
+                    "{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(60000);
+        migrationJob.run();
+        Assert.assertFalse(migrationJob.isLeaseHeld());
+        // the save matched nothing, the job isn't marked aborted over the new owner's execution either
+        Assert.assertEquals(2, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("leaseOwner = mine"));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+    }
+
+    @Test
+    public void testExecuteWithLeaseHeldElsewhere() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(60000);
+        migrationJob.run();
+        Assert.assertEquals(0, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(1, migrationJob.callCounter.get());
+    }
+
+    @Test
+    public void testExecuteStopsWhenLeaseLost() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{\"jobExecutions\":["
+                    + "{\"pid\":\"mine\",\"jobStatus\":\"RUNNING\"}]}]}"}) {
+            @Override
+            protected boolean renewLease() {
+                // taken by another checker
+                return false;
+            }
+
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findDestinationData(AbstractLightblueDataRequest dataRequest) {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (isLeaseHeld() && System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.findDestinationData(dataRequest);
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(3);
+        migrationJob.run();
+        Assert.assertFalse(migrationJob.isLeaseHeld());
+        // only the claim, neither the results nor an aborted status are saved over the new owner's execution
+        Assert.assertEquals(1, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("leaseOwner"));
+    }
+
+    @Test
+    public void testGetLeaseReleaseDate() {
+        migrationJob.setExpectedExecutionMilliseconds(60000);
+        long now = System.currentTimeMillis();
+
+        Assert.assertTrue(migrationJob.getLeaseReleaseDate(JobStatus.COMPLETED_SUCCESS).getTime() < now + 30000);
+        Assert.assertTrue(migrationJob.getLeaseReleaseDate(JobStatus.COMPLETED_SPLIT).getTime() < now + 30000);
+        // failed runs are retried after the expected execution time, as without leases
+        Assert.assertTrue(migrationJob.getLeaseReleaseDate(JobStatus.COMPLETED_FAILED).getTime() >= now + 60000);
+        Assert.assertTrue(migrationJob.getLeaseReleaseDate(JobStatus.ABORTED_UNKNOWN).getTime() >= now + 60000);
+    }
+
+    @Test
+    public void testRenewLease() throws Exception {
+        TestMigrationJob migrationJob = new TestMigrationJob(null, null,
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[]}",
+                    "{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[]}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.set_id("job");
+        migrationJob.setPid("mine");
+        migrationJob.getJobConfiguration().setLeaseMilliseconds(60000);
+
+        Assert.assertTrue(migrationJob.renewLease());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("leaseOwner = mine"));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("leaseExpirationDate"));
+        Assert.assertFalse(migrationJob.renewLease());
+    }
+
+    private LinkedHashMap<IdentityKey, JsonNode> getProcessedContentsFrom(String filename) {
+        LinkedHashMap<IdentityKey, JsonNode> output = new LinkedHashMap<>();
 
         JsonNode processedNode = fromFileToJsonNode(filename).findValue("processed");
         if (processedNode instanceof ArrayNode) {
             Iterator<JsonNode> i = ((ArrayNode) processedNode).iterator();
             while (i.hasNext()) {
                 JsonNode node = i.next();
-                output.put(node.findValue("iso3code").textValue(), node);
+                output.put(IdentityKey.of(node.findValue("iso3code").textValue()), node);
             }
         } else {
-            output.put(processedNode.findValue("iso3code").textValue(), processedNode);
+            output.put(IdentityKey.of(processedNode.findValue("iso3code").textValue()), processedNode);
         }
 
         return output;
@@ -839,6 +1469,740 @@ public class MigrationJobTest {
         Assert.assertTrue(migrationJob.requestBodyList.get(3).contains(JobStatus.COMPLETED_SUCCESS.toString()));
     }
 
+    /**
+     * Serves the source resource one page at a time and remembers which pages
+     * were requested.
+     */
+    protected class PagedTestMigrationJob extends TestMigrationJob {
+        private final String sourceDataResource;
+        private final List<Integer> pagePositions = new ArrayList<>();
+
+        public PagedTestMigrationJob(String sourceDataResource, String destinationDataResource, String[] jsonResponses) {
+            super(sourceDataResource, destinationDataResource, jsonResponses);
+            this.sourceDataResource = sourceDataResource;
+        }
+
+        @Override
+        protected Map<IdentityKey, JsonNode> getSourceDocuments(JsonNode after, int pageSize) {
+            List<Map.Entry<IdentityKey, JsonNode>> all = new ArrayList<>(getProcessedContentsFrom(sourceDataResource).entrySet());
+            // the position of the page in the resource, which the keyset query doesn't need
+            int position = 0;
+            if (after != null) {
+                while (!all.get(position++).getValue().equals(after)) {
+                }
+            }
+            synchronized (pagePositions) {
+                pagePositions.add(position);
+            }
+            Map<IdentityKey, JsonNode> page = new LinkedHashMap<>();
+            for (int i = position; i < all.size() && i < position + pageSize; i++) {
+                page.put(all.get(i).getKey(), all.get(i).getValue());
+            }
+            return page;
+        }
+    }
+
+    @Test
+    public void testGetSourceDocumentsAfterDocument() throws Exception {
+        final List<String> requests = new ArrayList<>();
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json", null) {
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
+                requests.add(dataRequest.getBody());
+                return super.findSourceData(dataRequest);
+            }
+        };
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("iso3code"));
+
+        JsonNode after = new ObjectMapper().readTree("{\"iso3code\":\"CAN\",\"sourceTimestamp\":\"20150101T00:00:00.000-0000\"}");
+        migrationJob.getSourceDocuments(after, 10);
+
+        // the page starts after the document instead of skipping over the earlier pages
+        Assert.assertEquals(1, requests.size());
+        Assert.assertTrue(requests.get(0).contains("sourceTimestamp > 20150101T00:00:00.000-0000"));
+        Assert.assertTrue(requests.get(0).contains("sourceTimestamp = 20150101T00:00:00.000-0000"));
+        Assert.assertTrue(requests.get(0).contains("iso3code > CAN"));
+        Assert.assertTrue(requests.get(0).contains("[0,9]"));
+    }
+
+    @Test
+    public void testExecutePagedSource() {
+        PagedTestMigrationJob migrationJob = new PagedTestMigrationJob("multipleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setSourcePageSize(1);
+        migrationJob.run();
+        Assert.assertEquals(Arrays.asList(0, 1, 2), migrationJob.pagePositions);
+        Assert.assertTrue(migrationJob.hasInconsistentDocuments());
+        Assert.assertEquals(2, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(1, migrationJob.getConsistentDocuments());
+        Assert.assertEquals(1, migrationJob.getInconsistentDocuments());
+        Assert.assertEquals(1, migrationJob.getRecordsOverwritten());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+    }
+
+    @Test
+    public void testExecutePipelined() {
+        PagedTestMigrationJob migrationJob = new PagedTestMigrationJob("multipleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setSourcePageSize(1);
+        migrationJob.getJobConfiguration().setPipelineEnabled(true);
+        migrationJob.getJobConfiguration().setSourceQueueDepth(1);
+        migrationJob.run();
+        Assert.assertEquals(Arrays.asList(0, 1, 2), migrationJob.pagePositions);
+        Assert.assertTrue(migrationJob.hasInconsistentDocuments());
+        Assert.assertEquals(2, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(1, migrationJob.getConsistentDocuments());
+        Assert.assertEquals(1, migrationJob.getInconsistentDocuments());
+        Assert.assertEquals(1, migrationJob.getRecordsOverwritten());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+    }
+
+    @Test
+    public void testExecutePipelined_CountsOnlyRecordedBatches() {
+        final List<Integer> processedAtWatermark = new ArrayList<>();
+        PagedTestMigrationJob migrationJob = new PagedTestMigrationJob("multipleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"}) {
+            @Override
+            protected void overwriteDocuments(List<JsonNode> documentsToOverwrite, OverwriteStatus overwriteStatus) throws IOException {
+                try {
+                    // let the compare stage run ahead of the overwrites
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.overwriteDocuments(documentsToOverwrite, overwriteStatus);
+            }
+
+            @Override
+            protected void recordProgress(Date watermark) throws IOException {
+                processedAtWatermark.add(getDocumentsProcessed());
+                super.recordProgress(watermark);
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setSourcePageSize(1);
+        migrationJob.getJobConfiguration().setPipelineEnabled(true);
+        migrationJob.getJobConfiguration().setOverwriteQueueDepth(2);
+        migrationJob.run();
+        // a checkpoint never counts documents of batches still waiting to be overwritten
+        Assert.assertEquals(Arrays.asList(1, 2, 2), processedAtWatermark);
+        Assert.assertEquals(2, migrationJob.getDocumentsProcessed());
+    }
+
+    @Test
+    public void testExecutePipelined_StageFailure() {
+        PagedTestMigrationJob migrationJob = new PagedTestMigrationJob("multipleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"}) {
+            @Override
+            protected Map<IdentityKey, JsonNode> getDestinationDocuments(Map<IdentityKey, JsonNode> sourceDocuments) throws IOException {
+                throw new IOException("forced failure for testing");
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setSourcePageSize(1);
+        migrationJob.getJobConfiguration().setPipelineEnabled(true);
+        migrationJob.run();
+        Assert.assertEquals(JobStatus.ABORTED_UNKNOWN, migrationJob.currentRun.getJobStatus());
+        Assert.assertEquals(0, migrationJob.getDocumentsProcessed());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.ABORTED_UNKNOWN.toString()));
+    }
+
+    @Test
+    public void testExecuteSplitsOversizedWindow() {
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[{}]}"}) {
+            @Override
+            protected int countSourceDocuments() {
+                return 11;
+            }
+        };
+
+        configureMigrationJob(migrationJob);
+        migrationJob.set_id("job1");
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.getJobConfiguration().setMaxDocumentsPerJob(10);
+        migrationJob.getJobConfiguration().setSplitWindowCount(2);
+        migrationJob.run();
+
+        Assert.assertEquals(0, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(4, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.requestBodyList.get(1).contains(JobStatus.RUNNING.toString()));
+        String insertBody = migrationJob.requestBodyList.get(2);
+        Assert.assertTrue(insertBody.contains("\"parentJobId\":\"job1\""));
+        Assert.assertTrue(insertBody.contains("\"startDate\":\"" + ClientConstants.getDateFormat().format(new Date(0)) + "\""));
+        Assert.assertTrue(insertBody.contains("\"endDate\":\"" + ClientConstants.getDateFormat().format(new Date(4999)) + "\""));
+        Assert.assertTrue(insertBody.contains("\"startDate\":\"" + ClientConstants.getDateFormat().format(new Date(5000)) + "\""));
+        Assert.assertTrue(insertBody.contains("\"endDate\":\"" + ClientConstants.getDateFormat().format(new Date(9999)) + "\""));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SPLIT.toString()));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("childJobCount"));
+    }
+
+    @Test
+    public void testShouldSplitWindow_AfterTimeouts() throws IOException {
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.getJobConfiguration().setMaxTimeoutsPerJob(2);
+        MigrationJobExecution dead = new MigrationJobExecution();
+        dead.setJobStatus(JobStatus.COMPLETED_DEAD);
+        migrationJob.getJobExecutions().add(dead);
+
+        Assert.assertFalse(migrationJob.shouldSplitWindow());
+
+        MigrationJobExecution timedOut = new MigrationJobExecution();
+        timedOut.setJobStatus(JobStatus.ABORTED_TIMEOUT);
+        migrationJob.getJobExecutions().add(timedOut);
+
+        Assert.assertTrue(migrationJob.shouldSplitWindow());
+    }
+
+    @Test
+    public void testShouldSplitWindow_WindowTooShort() throws IOException {
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(1));
+        migrationJob.getJobConfiguration().setMaxTimeoutsPerJob(1);
+        migrationJob.getJobConfiguration().setSplitWindowCount(3);
+        MigrationJobExecution dead = new MigrationJobExecution();
+        dead.setJobStatus(JobStatus.COMPLETED_DEAD);
+        migrationJob.getJobExecutions().add(dead);
+
+        Assert.assertFalse(migrationJob.shouldSplitWindow());
+
+        migrationJob.getJobConfiguration().setSplitWindowCount(2);
+        Assert.assertTrue(migrationJob.shouldSplitWindow());
+    }
+
+    @Test
+    public void testAggregateIntoParentJobs() {
+        String children = "{\"_id\":\"child1\",\"parentJobId\":\"parent\",\"jobExecutions\":["
+                + "{\"jobStatus\":\"COMPLETED_DEAD\",\"processedDocumentCount\":100},"
+                + "{\"jobStatus\":\"COMPLETED_SUCCESS\",\"processedDocumentCount\":3,\"consistentDocumentCount\":2,\"inconsistentDocumentCount\":1,\"overwrittenDocumentCount\":1}]},"
+                + "{\"_id\":\"child2\",\"parentJobId\":\"parent\",\"jobExecutions\":["
+                + "{\"jobStatus\":\"COMPLETED_PARTIAL\",\"processedDocumentCount\":4,\"consistentDocumentCount\":4}]}";
+        String parent = "{\"_id\":\"parent\",\"parentJobId\":\"grandparent\",\"jobExecutions\":["
+                + "{\"jobStatus\":\"COMPLETED_DEAD\"},{\"jobStatus\":\"COMPLETED_SPLIT\",\"childJobCount\":2}]}";
+        String grandparent = "{\"_id\":\"grandparent\",\"jobExecutions\":[{\"jobStatus\":\"COMPLETED_SPLIT\",\"childJobCount\":2}]}";
+        String parentAggregated = "{\"_id\":\"parent\",\"parentJobId\":\"grandparent\",\"jobExecutions\":["
+                + "{\"jobStatus\":\"COMPLETED_DEAD\"},{\"jobStatus\":\"COMPLETED_SPLIT\",\"childJobCount\":2,\"completedChildJobCount\":2,\"processedDocumentCount\":7}]}";
+        String updated = "{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}";
+        TestMigrationJob migrationJob = new TestMigrationJob(null, null, new String[]{
+            "{\"status\":\"COMPLETE\",\"processed\":[" + parent + "," + children + "]}",
+            updated,
+            "{\"status\":\"COMPLETE\",\"processed\":[" + grandparent + "," + parentAggregated + "]}",
+            updated});
+        migrationJob.setParentJobId("parent");
+
+        migrationJob.aggregateIntoParentJobs();
+
+        Assert.assertEquals(4, migrationJob.callCounter.get());
+        String parentUpdate = migrationJob.requestBodyList.get(1);
+        Assert.assertTrue(parentUpdate.contains("\"jobExecutions.1.processedDocumentCount\":\"7\""));
+        Assert.assertTrue(parentUpdate.contains("\"jobExecutions.1.consistentDocumentCount\":\"6\""));
+        Assert.assertTrue(parentUpdate.contains("\"jobExecutions.1.inconsistentDocumentCount\":\"1\""));
+        Assert.assertTrue(parentUpdate.contains("\"jobExecutions.1.completedChildJobCount\":\"2\""));
+        // only one of the grandparent's children is complete
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("\"jobExecutions.0.processedDocumentCount\":\"7\""));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("\"jobExecutions.0.completedChildJobCount\":\"1\""));
+    }
+
+    @Test
+    public void testGetResumeWatermark() {
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.getJobConfiguration().setSourcePageSize(10);
+        MigrationJobExecution dead = new MigrationJobExecution();
+        dead.setJobStatus(JobStatus.COMPLETED_DEAD);
+        dead.setProgressWatermark(new Date(5000));
+        migrationJob.getJobExecutions().add(dead);
+
+        // checkpoints disabled
+        Assert.assertNull(migrationJob.getResumeWatermark());
+
+        migrationJob.getJobConfiguration().setCheckpointIntervalMilliseconds(60000);
+        Assert.assertEquals(new Date(5000), migrationJob.getResumeWatermark());
+
+        MigrationJobExecution duplicate = new MigrationJobExecution();
+        duplicate.setJobStatus(JobStatus.ABORTED_DUPLICATE);
+        migrationJob.getJobExecutions().add(duplicate);
+        Assert.assertEquals(new Date(5000), migrationJob.getResumeWatermark());
+
+        MigrationJobExecution success = new MigrationJobExecution();
+        success.setJobStatus(JobStatus.COMPLETED_SUCCESS);
+        migrationJob.getJobExecutions().add(success);
+        Assert.assertNull(migrationJob.getResumeWatermark());
+
+        // a failed execution checked the whole window, the next one starts over
+        MigrationJobExecution failed = new MigrationJobExecution();
+        failed.setJobStatus(JobStatus.COMPLETED_FAILED);
+        failed.setProgressWatermark(new Date(9000));
+        migrationJob.getJobExecutions().add(failed);
+        Assert.assertNull(migrationJob.getResumeWatermark());
+    }
+
+    @Test
+    public void testGetPageWatermark() throws IOException {
+        migrationJob.getJobConfiguration().setSourceTimestampPath("meta.updated");
+        ObjectMapper mapper = new ObjectMapper();
+        Map<IdentityKey, JsonNode> page = new LinkedHashMap<>();
+        page.put(IdentityKey.of("1"), mapper.readTree("{\"meta\":{\"updated\":\"" + ClientConstants.getDateFormat().format(new Date(1000)) + "\"}}"));
+        page.put(IdentityKey.of("2"), mapper.readTree("{\"meta\":{\"updated\":\"" + ClientConstants.getDateFormat().format(new Date(5000)) + "\"}}"));
+
+        Assert.assertEquals(new Date(5000), migrationJob.getPageWatermark(page));
+        Assert.assertNull(migrationJob.getPageWatermark(new LinkedHashMap<IdentityKey, JsonNode>()));
+    }
+
+    @Test
+    public void testRecordProgress_SavesCheckpointOncePerInterval() throws IOException {
+        TestMigrationJob migrationJob = new TestMigrationJob(null, null,
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}"});
+        migrationJob.getJobConfiguration().setCheckpointIntervalMilliseconds(60 * 60 * 1000);
+        migrationJob.currentRun = new MigrationJobExecution();
+
+        migrationJob.recordProgress(new Date(1000));
+        migrationJob.recordProgress(new Date(2000));
+        migrationJob.recordProgress(null);
+
+        Assert.assertEquals(1, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("progressWatermark"));
+        Assert.assertEquals(new Date(2000), migrationJob.currentRun.getProgressWatermark());
+    }
+
+    @Test
+    public void testExecutePagedSource_ResumesFromCheckpoint() {
+        PagedTestMigrationJob migrationJob = new PagedTestMigrationJob("multipleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"});
+
+        configureMigrationJob(migrationJob);
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.getJobConfiguration().setSourcePageSize(1);
+        migrationJob.getJobConfiguration().setCheckpointIntervalMilliseconds(60 * 60 * 1000);
+        MigrationJobExecution dead = new MigrationJobExecution();
+        dead.setJobStatus(JobStatus.COMPLETED_DEAD);
+        dead.setProgressWatermark(new Date(5000));
+        migrationJob.getJobExecutions().add(dead);
+        migrationJob.run();
+
+        Assert.assertEquals(new Date(5000), migrationJob.getWindowStartDate());
+        Assert.assertEquals(new Date(5000), migrationJob.currentRun.getProgressWatermark());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("progressWatermark"));
+    }
+
+    private Map<IdentityKey, JsonNode> createIdentities(long... timestamps) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Map<IdentityKey, JsonNode> identities = new LinkedHashMap<>();
+        for (int i = 0; i < timestamps.length; i++) {
+            identities.put(IdentityKey.of("id" + i), mapper.readTree("{\"id\":\"id" + i + "\",\"ts\":\""
+                    + ClientConstants.getDateFormat().format(new Date(timestamps[i])) + "\"}"));
+        }
+        return identities;
+    }
+
+    @Test
+    public void testReconcileWindow_ComparesOnlyDifferingRanges() throws Exception {
+        final Map<IdentityKey, JsonNode> sourceIdentities = createIdentities(0, 1000, 2000, 3000, 4000, 5000, 6000, 7000, 8000, 9000);
+        final Map<IdentityKey, JsonNode> destinationIdentities = createIdentities(0, 1000, 2000, 3000, 4000, 5000, 6000, 7001, 8000, 9000);
+        final List<Date[]> ranges = new ArrayList<>();
+        TestMigrationJob migrationJob = new TestMigrationJob(null, null, new String[0]) {
+            @Override
+            protected Map<IdentityKey, JsonNode> findSourceIdentities() {
+                return sourceIdentities;
+            }
+
+            @Override
+            protected Map<IdentityKey, JsonNode> findDestinationIdentities() {
+                return destinationIdentities;
+            }
+
+            @Override
+            protected Map<IdentityKey, JsonNode> getSourceDocuments(Date rangeStart, Date rangeEnd) {
+                ranges.add(new Date[]{rangeStart, rangeEnd});
+                return new LinkedHashMap<>();
+            }
+        };
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+        migrationJob.getJobConfiguration().setSourceTimestampPath("ts");
+        migrationJob.getJobConfiguration().setReconciliationFanout(2);
+        migrationJob.getJobConfiguration().setReconciliationLeafSize(2);
+        migrationJob.setStartDate(new Date(0));
+        migrationJob.setEndDate(new Date(9999));
+        migrationJob.currentRun = new MigrationJobExecution();
+
+        migrationJob.reconcileWindow(new OverwriteStatus());
+
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(new Date(6250), ranges.get(0)[0]);
+        Assert.assertEquals(new Date(7499), ranges.get(0)[1]);
+        Assert.assertEquals(1, migrationJob.currentRun.getDifferingRangeCount());
+        Assert.assertEquals(9, migrationJob.currentRun.getProcessedDocumentCount());
+        Assert.assertEquals(9, migrationJob.currentRun.getConsistentDocumentCount());
+    }
+
+    @Test
+    public void testSampleWindow_ReadsOnlySampledDocuments() throws Exception {
+        long[] timestamps = new long[300];
+        final Map<IdentityKey, JsonNode> identities = createIdentities(timestamps);
+        final List<String> sourceQueries = new ArrayList<>();
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json", new String[0]) {
+            @Override
+            protected Map<IdentityKey, JsonNode> findSourceIdentities() {
+                return identities;
+            }
+
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
+                sourceQueries.add(dataRequest.getBody());
+                return super.findSourceData(dataRequest);
+            }
+        };
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+        migrationJob.getJobConfiguration().setSamplingFraction(0.2);
+        migrationJob.currentRun = new MigrationJobExecution();
+
+        migrationJob.sampleWindow(new OverwriteStatus());
+
+        SamplingPlan plan = SamplingPlan.ofFraction(0.2);
+        List<String> sampled = new ArrayList<>();
+        for (IdentityKey identity : identities.keySet()) {
+            if (plan.isSampled(identity)) {
+                sampled.add(identity.getValue(0));
+            }
+        }
+        Assert.assertTrue(sampled.size() > 0 && sampled.size() < MigrationJob.BATCH_SIZE);
+        Assert.assertEquals(1, sourceQueries.size());
+        Assert.assertTrue(sourceQueries.get(0).contains("id $in [" + StringUtils.join(sampled, ", ") + "]"));
+        Assert.assertEquals(0.2, migrationJob.currentRun.getSamplingFraction(), 0);
+        Assert.assertEquals(0, migrationJob.currentRun.getEstimatedInconsistencyRate(), 0);
+        Assert.assertEquals(0, migrationJob.currentRun.getInconsistencyRateLowerBound(), 0);
+        Assert.assertTrue(migrationJob.currentRun.getInconsistencyRateUpperBound() > 0);
+    }
+
+    private MigrationJobExecution createFailedExecution(String... identities) {
+        MigrationJobExecution failed = new MigrationJobExecution();
+        failed.setJobStatus(JobStatus.COMPLETED_FAILED);
+        failed.setFailedBatchCount(1);
+        failed.setFailedDocumentIdentities(Arrays.asList(identities));
+        return failed;
+    }
+
+    @Test
+    public void testGetFailedIdentities() {
+        TestMigrationJob migrationJob = new TestMigrationJob(null, null, new String[0]);
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("a", "b"));
+        migrationJob.currentRun = new MigrationJobExecution();
+        Assert.assertNull(migrationJob.getFailedIdentities());
+
+        migrationJob.getJobExecutions().add(createFailedExecution("1,x", "2,y"));
+        MigrationJobExecution dead = new MigrationJobExecution();
+        dead.setJobStatus(JobStatus.COMPLETED_DEAD);
+        migrationJob.getJobExecutions().add(dead);
+        migrationJob.getJobExecutions().add(migrationJob.currentRun);
+        Assert.assertEquals(Arrays.asList(IdentityKey.of("1", "x"), IdentityKey.of("2", "y")), migrationJob.getFailedIdentities());
+
+        // queued to check the whole window again
+        migrationJob.setRecheck(true);
+        Assert.assertNull(migrationJob.getFailedIdentities());
+        migrationJob.setRecheck(false);
+
+        // a value with a comma can't be told apart from the next one
+        migrationJob.getJobExecutions().add(createFailedExecution("1,x,y"));
+        Assert.assertNull(migrationJob.getFailedIdentities());
+
+        migrationJob.getJobExecutions().add(createFailedExecution("1,x"));
+        MigrationJobExecution completed = new MigrationJobExecution();
+        completed.setJobStatus(JobStatus.COMPLETED_SUCCESS);
+        migrationJob.getJobExecutions().add(completed);
+        Assert.assertNull(migrationJob.getFailedIdentities());
+    }
+
+    @Test
+    public void testExecuteRetriesOnlyFailedDocuments() {
+        final List<String> sourceQueries = new ArrayList<>();
+        TestMigrationJob migrationJob = new TestMigrationJob("singleFindResponse.json", "singleFindResponse.json",
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\",\"processed\":[{}]}}"}) {
+            @Override
+            protected LinkedHashMap<IdentityKey, JsonNode> findSourceData(AbstractLightblueDataRequest dataRequest) {
+                sourceQueries.add(dataRequest.getBody());
+                return super.findSourceData(dataRequest);
+            }
+        };
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("iso3code"));
+        migrationJob.getJobExecutions().add(createFailedExecution("CAN", "USA"));
+        migrationJob.run();
+
+        Assert.assertEquals(1, sourceQueries.size());
+        Assert.assertTrue(sourceQueries.get(0).contains("iso3code $in [CAN, USA]"));
+        Assert.assertFalse(sourceQueries.get(0).contains("sourceTimestamp"));
+        Assert.assertEquals(JobStatus.COMPLETED_SUCCESS, migrationJob.currentRun.getJobStatus());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+    }
+
+    @Test
+    public void testCreateRepairUpdates() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode document = mapper.readTree("{\"a\":{\"b\":1,\"c\":[{\"d\":1}]},\"e\":null,\"f\":\"x\"}");
+
+        List<Update> updates = migrationJob.createRepairUpdates(document, Arrays.asList("f", "a.c.d", "a.b", "e", "a.c"));
+
+        Assert.assertEquals(2, updates.size());
+        Assert.assertEquals(new SetUpdate(
+                new PathValuePair("a.b", new ObjectRValue(1)),
+                new PathValuePair("a.c", new ObjectRValue(Arrays.asList(Collections.singletonMap("d", 1)))),
+                new PathValuePair("f", new ObjectRValue("x"))).toJson(), updates.get(0).toJson());
+        Assert.assertEquals(new UnsetUpdate("e").toJson(), updates.get(1).toJson());
+        Assert.assertNull(migrationJob.createRepairUpdates(document, Arrays.asList("*")));
+    }
+
+    @Test
+    public void testOverwriteDocuments_RepairsByPath() throws Exception {
+        TestMigrationJob job = new TestMigrationJob(null, null,
+                new String[]{"{\"errors\":[],\"matchCount\":2,\"modifiedCount\":2,\"status\":\"COMPLETE\"}"});
+        job.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+        job.getJobConfiguration().setComparisonExclusionPaths(new ArrayList<String>());
+        job.getJobConfiguration().setDeltaRepairEnabled(true);
+        job.setOverwriteDestinationDocuments(true);
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode[] sourceResults = new JsonNode[]{
+            mapper.readTree("{\"id\":1,\"status\":\"done\",\"big\":\"unchanged\"}"),
+            mapper.readTree("{\"id\":2,\"status\":\"done\",\"big\":\"unchanged\"}"),
+            mapper.readTree("{\"id\":3,\"status\":\"open\",\"big\":\"unchanged\"}"),
+            mapper.readTree("{\"id\":4,\"status\":\"new\"}")};
+        JsonNode[] destinationResults = new JsonNode[]{
+            mapper.readTree("{\"id\":1,\"status\":\"open\",\"big\":\"unchanged\"}"),
+            mapper.readTree("{\"id\":2,\"status\":\"open\",\"big\":\"unchanged\"}"),
+            mapper.readTree("{\"id\":3,\"status\":\"done\",\"big\":\"unchanged\"}")};
+        IdentityExtractor identity = IdentityExtractor.compile(Arrays.asList("id"));
+        List<JsonNode> documentsToOverwrite = job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(sourceResults, identity), job.getJsonNodeMap(destinationResults, identity));
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        List<JsonNode> documentsToSave = job.repairDocuments(documentsToOverwrite, overwriteStatus);
+
+        // one update for the two documents set to done, one for the one set to open
+        Assert.assertEquals(2, job.callCounter.get());
+        Assert.assertTrue(job.requestBodyList.get(0).contains("id $in [1, 2]"));
+        Assert.assertTrue(job.requestBodyList.get(0).contains("$set"));
+        Assert.assertFalse(job.requestBodyList.get(0).contains("big"));
+        Assert.assertTrue(job.requestBodyList.get(1).contains("id = 3"));
+        // the document missing from the destination is saved whole
+        Assert.assertEquals(1, documentsToSave.size());
+        Assert.assertEquals(sourceResults[3], documentsToSave.get(0));
+        Assert.assertEquals(JobStatus.COMPLETED_SUCCESS, overwriteStatus.getJobStatus());
+        Assert.assertEquals(4, overwriteStatus.getOverwrittenDocumentCount());
+    }
+
+    @Test
+    public void testOverwriteDocuments_RepairNeedsIdentityFields() throws Exception {
+        TestMigrationJob job = new TestMigrationJob(null, null,
+                new String[]{"{\"errors\":[],\"matchCount\":1,\"modifiedCount\":1,\"status\":\"COMPLETE\"}"});
+        job.getJobConfiguration().setDestinationIdentityFields(new ArrayList<String>());
+        job.getJobConfiguration().setComparisonExclusionPaths(new ArrayList<String>());
+        job.getJobConfiguration().setDeltaRepairEnabled(true);
+        job.setOverwriteDestinationDocuments(true);
+
+        ObjectMapper mapper = new ObjectMapper();
+        IdentityExtractor identity = job.getJobConfiguration().getIdentityExtractor();
+        List<JsonNode> documentsToOverwrite = job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"id\":1,\"status\":\"done\"}")}, identity),
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"id\":1,\"status\":\"open\"}")}, identity));
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        job.overwriteDocuments(documentsToOverwrite, overwriteStatus);
+
+        // an update could only match the whole destination entity, the document is saved whole instead
+        Assert.assertEquals(1, job.callCounter.get());
+        Assert.assertFalse(job.requestBodyList.get(0).contains("$set"));
+        Assert.assertFalse(job.requestBodyList.get(0).contains("objectType"));
+        Assert.assertEquals(JobStatus.COMPLETED_SUCCESS, overwriteStatus.getJobStatus());
+    }
+
+    @Test
+    public void testOverwriteDocuments_RepairsInAdaptiveBatches() throws Exception {
+        TestMigrationJob job = new TestMigrationJob(null, null,
+                new String[]{"{\"errors\":[],\"matchCount\":2,\"modifiedCount\":2,\"status\":\"COMPLETE\"}"});
+        job.getJobConfiguration().setConfigurationName("adaptiveRepairs");
+        job.getJobConfiguration().setMinBatchSize(1);
+        job.getJobConfiguration().setMaxBatchSize(2);
+        job.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("id"));
+        job.getJobConfiguration().setComparisonExclusionPaths(new ArrayList<String>());
+        job.getJobConfiguration().setDeltaRepairEnabled(true);
+        job.setOverwriteDestinationDocuments(true);
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode[] sourceResults = new JsonNode[]{
+            mapper.readTree("{\"id\":1,\"status\":\"done\"}"),
+            mapper.readTree("{\"id\":2,\"status\":\"done\"}"),
+            mapper.readTree("{\"id\":3,\"status\":\"done\"}")};
+        JsonNode[] destinationResults = new JsonNode[]{
+            mapper.readTree("{\"id\":1,\"status\":\"open\"}"),
+            mapper.readTree("{\"id\":2,\"status\":\"open\"}"),
+            mapper.readTree("{\"id\":3,\"status\":\"open\"}")};
+        IdentityExtractor identity = IdentityExtractor.compile(Arrays.asList("id"));
+        List<JsonNode> documentsToOverwrite = job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(sourceResults, identity), job.getJsonNodeMap(destinationResults, identity));
+
+        job.repairDocuments(documentsToOverwrite, new OverwriteStatus());
+
+        // the same update for all three, split by the save batch size
+        Assert.assertEquals(2, job.callCounter.get());
+        Assert.assertTrue(job.requestBodyList.get(0).contains("id $in [1, 2]"));
+        Assert.assertTrue(job.requestBodyList.get(1).contains("id = 3"));
+    }
+
+    @Test
+    public void testOverwriteDocuments_FailedRepairShrinksBatchSize() throws Exception {
+        MigrationConfiguration configuration = new MigrationConfiguration();
+        configuration.setConfigurationName("shrinkingRepairs");
+        configuration.setMinBatchSize(1);
+        configuration.setMaxBatchSize(1000);
+        configuration.setDestinationIdentityFields(Arrays.asList("id"));
+        configuration.setComparisonExclusionPaths(new ArrayList<String>());
+        configuration.setDeltaRepairEnabled(true);
+        MigrationJob job = new MigrationJob(configuration) {
+            @Override
+            protected LightblueResponse callLightblue(AbstractLightblueDataRequest request) throws IOException {
+                throw new IOException("forced failure for testing");
+            }
+        };
+        job.setOverwriteDestinationDocuments(true);
+
+        ObjectMapper mapper = new ObjectMapper();
+        IdentityExtractor identity = IdentityExtractor.compile(Arrays.asList("id"));
+        List<JsonNode> documentsToOverwrite = job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"id\":1,\"status\":\"done\"}")}, identity),
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"id\":1,\"status\":\"open\"}")}, identity));
+
+        OverwriteStatus overwriteStatus = new OverwriteStatus();
+        job.repairDocuments(documentsToOverwrite, overwriteStatus);
+
+        Assert.assertEquals(1, overwriteStatus.getFailedBatchCount());
+        Assert.assertTrue(job.getOverwriteBatchSize().getBatchSize() < MigrationJob.BATCH_SIZE);
+    }
+
+    @Test
+    public void testGetDocumentsToOverwrite_ReportsInconsistencies() throws Exception {
+        final List<InconsistencyReport> reports = new ArrayList<>();
+        MigrationJob job = new MigrationJob(new MigrationConfiguration());
+        job.getJobConfiguration().setConfigurationName("config");
+        job.getJobConfiguration().setDestinationIdentityFields(Arrays.asList("key.id"));
+        job.getJobConfiguration().setComparisonExclusionPaths(new ArrayList<String>());
+        job.setInconsistencySink(new InconsistencySink() {
+            @Override
+            public void report(InconsistencyReport report) {
+                reports.add(report);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        ObjectMapper mapper = new ObjectMapper();
+        IdentityExtractor identity = job.getJobConfiguration().getIdentityExtractor();
+        job.getDocumentsToOverwrite(
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"key\":{\"id\":1},\"a\":\"x\"}")}, identity),
+                job.getJsonNodeMap(new JsonNode[]{mapper.readTree("{\"key\":{\"id\":1},\"a\":\"y\"}")}, identity));
+
+        Assert.assertEquals(1, reports.size());
+        Assert.assertEquals("config", reports.get(0).getConfigurationName());
+        Assert.assertEquals(Arrays.asList("key.id"), reports.get(0).getIdentityFields());
+        Assert.assertEquals(Arrays.asList("1"), reports.get(0).getIdentityValues());
+        Assert.assertEquals(Arrays.asList("a"), reports.get(0).getInconsistentPaths());
+    }
+
+    /**
+     * Reports a source window with the documents of singleFindResponse.json
+     * and the given count.
+     */
+    protected class RecheckTestMigrationJob extends TestMigrationJob {
+        private final int sourceDocumentCount;
+
+        public RecheckTestMigrationJob(int sourceDocumentCount) {
+            super("singleFindResponse.json", "singleFindResponse.json",
+                    new String[]{"{\"errors\":[],\"matchCount\":0,\"modifiedCount\":0,\"status\":\"COMPLETE\",\"processed\":[{}]}"});
+            this.sourceDocumentCount = sourceDocumentCount;
+        }
+
+        @Override
+        protected int countSourceDocuments() {
+            return sourceDocumentCount;
+        }
+
+        @Override
+        protected Date findMaxSourceTimestamp() {
+            return null;
+        }
+
+        @Override
+        protected Map<IdentityKey, JsonNode> findSourceIdentities() {
+            return findSourceData(null);
+        }
+    }
+
+    private MigrationJobExecution createVerifiedExecution() {
+        WindowDigest digest = new WindowDigest();
+        digest.add(IdentityKey.of("CAN"), null);
+        MigrationJobExecution verified = new MigrationJobExecution();
+        verified.setJobStatus(JobStatus.COMPLETED_SUCCESS);
+        verified.setSourceDocumentCount(digest.getDocumentCount());
+        verified.setSourceDigest(digest.getDigest());
+        return verified;
+    }
+
+    @Test
+    public void testExecuteSkipsUnchangedWindow() {
+        TestMigrationJob migrationJob = new RecheckTestMigrationJob(1);
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setIncrementalRecheckEnabled(true);
+        migrationJob.getJobExecutions().add(createVerifiedExecution());
+        migrationJob.run();
+
+        Assert.assertEquals(0, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(3, migrationJob.callCounter.get());
+        Assert.assertTrue(migrationJob.currentRun.isSkippedUnchanged());
+        Assert.assertEquals(createVerifiedExecution().getSourceDigest(), migrationJob.currentRun.getSourceDigest());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains(JobStatus.COMPLETED_SUCCESS.toString()));
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("skippedUnchanged"));
+    }
+
+    @Test
+    public void testExecuteRechecksChangedWindow() {
+        TestMigrationJob migrationJob = new RecheckTestMigrationJob(2);
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setIncrementalRecheckEnabled(true);
+        migrationJob.getJobExecutions().add(createVerifiedExecution());
+        migrationJob.run();
+
+        Assert.assertEquals(1, migrationJob.getDocumentsProcessed());
+        Assert.assertFalse(migrationJob.currentRun.isSkippedUnchanged());
+        // the window still has the same documents
+        Assert.assertEquals(createVerifiedExecution().getSourceDigest(), migrationJob.currentRun.getSourceDigest());
+        Assert.assertTrue(migrationJob.getLastRequestBody().contains("sourceDigest"));
+    }
+
+    @Test
+    public void testExecuteWithoutVerifiedExecutionChecksWindow() {
+        TestMigrationJob migrationJob = new RecheckTestMigrationJob(1);
+        configureMigrationJob(migrationJob);
+        migrationJob.getJobConfiguration().setIncrementalRecheckEnabled(true);
+        migrationJob.run();
+
+        Assert.assertEquals(1, migrationJob.getDocumentsProcessed());
+        Assert.assertEquals(1, migrationJob.currentRun.getSourceDocumentCount());
+        Assert.assertNotNull(migrationJob.currentRun.getSourceDigest());
+    }
+
     private void configureMigrationJob(MigrationJob migrationJob) {
         MigrationConfiguration jobConfiguration = new MigrationConfiguration();
         List<String> pathsToExclude = new ArrayList<>();
@@ -960,7 +2324,7 @@ public class MigrationJobTest {
                             FileUtil.readFile("migrationJobTwoExecutionsResponse.json")
             }) {
                 @Override
-                protected Map<String, JsonNode> getSourceDocuments() throws SQLException {
+                protected Map<IdentityKey, JsonNode> getSourceDocuments() throws SQLException {
                     outstandingThreadCount.getAndDecrement();
                     throw new SQLException("forced failure for testing");
                 }
@@ -1009,7 +2373,7 @@ public class MigrationJobTest {
                             FileUtil.readFile("migrationJobTwoExecutionsResponse.json")
             }) {
                 @Override
-                protected Map<String, JsonNode> getSourceDocuments() throws SQLException {
+                protected Map<IdentityKey, JsonNode> getSourceDocuments() throws SQLException {
                     outstandingThreadCount.getAndDecrement();
                     throw new SQLException("forced failure for testing");
                 }
@@ -0,0 +1,85 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class NdjsonInconsistencySinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private InconsistencyReport report(String id) {
+        InconsistencyReport report = new InconsistencyReport();
+        report.setConfigurationName("config");
+        report.setMigrationJobId("job");
+        report.setIdentityFields(Arrays.asList("id"));
+        report.setIdentityValues(Arrays.asList(id));
+        report.setInconsistentPaths(Arrays.asList("a.b", "c"));
+        return report;
+    }
+
+    private List<JsonNode> readLines(File file, boolean compressed) throws IOException {
+        List<JsonNode> lines = new ArrayList<>();
+        InputStream in = new FileInputStream(file);
+        if (compressed) {
+            in = new GZIPInputStream(in);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(mapper.readTree(line));
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testWritesOneObjectPerLine() throws Exception {
+        File directory = new File(folder.getRoot(), "reports");
+        NdjsonInconsistencySink sink = new NdjsonInconsistencySink(directory, "config-job", false, 0);
+        sink.report(report("1"));
+        sink.report(report("2"));
+        sink.close();
+
+        List<JsonNode> lines = readLines(new File(directory, "config-job-0.ndjson"), false);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("job", lines.get(0).get("migrationJobId").asText());
+        Assert.assertEquals("2", lines.get(1).get("identityValues").get(0).asText());
+        Assert.assertEquals("a.b", lines.get(1).get("inconsistentPaths").get(0).asText());
+    }
+
+    @Test
+    public void testRotatesCompressedFiles() throws Exception {
+        int lineBytes = mapper.writeValueAsBytes(report("1")).length + 1;
+        NdjsonInconsistencySink sink = new NdjsonInconsistencySink(folder.getRoot(), "config-job", true, lineBytes * 2);
+        for (int i = 1; i <= 5; i++) {
+            sink.report(report(String.valueOf(i)));
+        }
+        sink.close();
+
+        Assert.assertEquals(3, sink.getFileCount());
+        Assert.assertEquals(2, readLines(new File(folder.getRoot(), "config-job-0.ndjson.gz"), true).size());
+        Assert.assertEquals(2, readLines(new File(folder.getRoot(), "config-job-1.ndjson.gz"), true).size());
+        List<JsonNode> last = readLines(new File(folder.getRoot(), "config-job-2.ndjson.gz"), true);
+        Assert.assertEquals(1, last.size());
+        Assert.assertEquals("5", last.get(0).get("identityValues").get(0).asText());
+    }
+}
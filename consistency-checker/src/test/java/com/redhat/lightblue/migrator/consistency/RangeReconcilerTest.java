@@ -0,0 +1,84 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RangeReconcilerTest {
+
+    private Map<IdentityKey, Date> documents(long... timestamps) {
+        Map<IdentityKey, Date> documents = new LinkedHashMap<>();
+        for (int i = 0; i < timestamps.length; i++) {
+            documents.put(IdentityKey.of("id" + i), new Date(timestamps[i]));
+        }
+        return documents;
+    }
+
+    @Test
+    public void testMatchingWindowComparedOnce() {
+        Map<IdentityKey, Date> destination = new LinkedHashMap<>();
+        destination.put(IdentityKey.of("id2"), new Date(30));
+        destination.put(IdentityKey.of("id0"), new Date(10));
+        destination.put(IdentityKey.of("id1"), new Date(20));
+
+        RangeReconciler.Result result = new RangeReconciler(2, 1).reconcile(new Date(0), new Date(99),
+                documents(10, 20, 30), destination);
+
+        Assert.assertTrue(result.getDifferingRanges().isEmpty());
+        Assert.assertEquals(1, result.getComparedRangeCount());
+        Assert.assertEquals(3, result.getMatchedSourceDocuments().size());
+    }
+
+    @Test
+    public void testDescendsIntoDifferingRange() {
+        RangeReconciler.Result result = new RangeReconciler(4, 1).reconcile(new Date(0), new Date(99),
+                documents(10, 30, 60, 80), documents(10, 30, 61, 80));
+
+        Assert.assertEquals(1, result.getDifferingRanges().size());
+        RangeReconciler.Range range = result.getDifferingRanges().get(0);
+        Assert.assertEquals(new Date(50), range.getStartDate());
+        Assert.assertEquals(new Date(74), range.getEndDate());
+        Assert.assertEquals(1, range.getSourceDocumentCount());
+        Assert.assertEquals(3, result.getMatchedSourceDocuments().size());
+        Assert.assertEquals(5, result.getComparedRangeCount());
+    }
+
+    @Test
+    public void testMissingDestinationDocument() {
+        Map<IdentityKey, Date> destination = documents(10, 30, 60, 80);
+        destination.remove(IdentityKey.of("id3"));
+
+        RangeReconciler.Result result = new RangeReconciler(2, 1).reconcile(new Date(0), new Date(99),
+                documents(10, 30, 60, 80), destination);
+
+        Assert.assertEquals(1, result.getDifferingRanges().size());
+        Assert.assertEquals(new Date(75), result.getDifferingRanges().get(0).getStartDate());
+        Assert.assertEquals(new Date(99), result.getDifferingRanges().get(0).getEndDate());
+    }
+
+    @Test
+    public void testDestinationOnlyDocumentsIgnored() {
+        Map<IdentityKey, Date> destination = documents(10, 30);
+        destination.put(IdentityKey.of("extra"), new Date(90));
+
+        RangeReconciler.Result result = new RangeReconciler(2, 1).reconcile(new Date(0), new Date(99),
+                documents(10, 30), destination);
+
+        Assert.assertTrue(result.getDifferingRanges().isEmpty());
+        Assert.assertEquals(2, result.getMatchedSourceDocuments().size());
+    }
+
+    @Test
+    public void testAdjacentSmallRangesReadTogether() {
+        RangeReconciler.Result result = new RangeReconciler(4, 3).reconcile(new Date(0), new Date(99),
+                documents(10, 30, 40, 60), documents(11, 31, 40, 60));
+
+        Assert.assertEquals(1, result.getDifferingRanges().size());
+        Assert.assertEquals(new Date(0), result.getDifferingRanges().get(0).getStartDate());
+        Assert.assertEquals(new Date(49), result.getDifferingRanges().get(0).getEndDate());
+        Assert.assertEquals(3, result.getDifferingRanges().get(0).getSourceDocumentCount());
+    }
+}
@@ -0,0 +1,55 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SamplingPlanTest {
+
+    @Test
+    public void testZScore() {
+        Assert.assertEquals(1.960, SamplingPlan.zScore(0.95), 0.001);
+        Assert.assertEquals(2.576, SamplingPlan.zScore(0.99), 0.001);
+    }
+
+    @Test
+    public void testFractionSampledDeterministically() {
+        SamplingPlan plan = SamplingPlan.ofFraction(0.1);
+        SamplingPlan larger = SamplingPlan.ofFraction(0.3);
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            IdentityKey identity = IdentityKey.of("id" + i, "key");
+            if (plan.isSampled(identity)) {
+                sampled++;
+                Assert.assertTrue(SamplingPlan.ofFraction(0.1).isSampled(identity));
+                Assert.assertTrue(larger.isSampled(identity));
+            }
+        }
+        Assert.assertEquals(1000, sampled, 100);
+    }
+
+    @Test
+    public void testConfidenceSampleSize() {
+        // 385 documents for a 5% margin at 95% confidence, fewer for a small window
+        Assert.assertEquals(385, SamplingPlan.ofConfidence(0.95, 0.05, 1000000).getFraction() * 1000000, 1);
+        Assert.assertEquals(278, SamplingPlan.ofConfidence(0.95, 0.05, 1000).getFraction() * 1000, 1);
+        Assert.assertEquals(80, SamplingPlan.ofConfidence(0.95, 0.05, 100).getFraction() * 100, 1);
+        Assert.assertEquals(1, SamplingPlan.ofConfidence(0.95, 0.05, 0).getFraction(), 0);
+    }
+
+    @Test
+    public void testInterval() {
+        SamplingPlan plan = SamplingPlan.ofFraction(0.5);
+
+        double[] interval = plan.getInterval(10, 100);
+        Assert.assertEquals(0.055, interval[0], 0.001);
+        Assert.assertEquals(0.174, interval[1], 0.001);
+
+        interval = plan.getInterval(0, 100);
+        Assert.assertEquals(0, interval[0], 0);
+        Assert.assertEquals(0.037, interval[1], 0.001);
+
+        interval = plan.getInterval(0, 0);
+        Assert.assertEquals(0, interval[0], 0);
+        Assert.assertEquals(1, interval[1], 0);
+    }
+}
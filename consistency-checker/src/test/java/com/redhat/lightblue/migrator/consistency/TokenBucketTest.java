@@ -0,0 +1,129 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    /**
+     * Bucket on a clock that only moves when it sleeps.
+     */
+    private static class TestTokenBucket extends TokenBucket {
+        private long now;
+        private final List<Long> sleeps = new ArrayList<>();
+
+        TestTokenBucket(double permitsPerSecond) {
+            super(permitsPerSecond);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        @Override
+        protected void sleep(long milliseconds) {
+            sleeps.add(milliseconds);
+            now += TimeUnit.MILLISECONDS.toNanos(milliseconds);
+        }
+    }
+
+    @Test
+    public void testBurstUpToOneSecond() throws Exception {
+        TestTokenBucket bucket = new TestTokenBucket(10);
+
+        Assert.assertEquals(0, bucket.acquire(10));
+        Assert.assertEquals(100, bucket.acquire(1));
+        Assert.assertEquals(100, bucket.acquire(1));
+    }
+
+    @Test
+    public void testDebtDelaysTheNextCaller() throws Exception {
+        TestTokenBucket bucket = new TestTokenBucket(100);
+
+        // documents read are only known afterwards and may exceed the bucket
+        Assert.assertEquals(1000, bucket.acquire(200));
+        bucket.now += TimeUnit.MILLISECONDS.toNanos(500);
+        Assert.assertEquals(10, bucket.acquire(51));
+    }
+
+    @Test
+    public void testRefillsOverTime() throws Exception {
+        TestTokenBucket bucket = new TestTokenBucket(10);
+        bucket.acquire(10);
+
+        bucket.now += TimeUnit.SECONDS.toNanos(5);
+        Assert.assertEquals(0, bucket.acquire(10));
+        Assert.assertEquals(100, bucket.acquire(1));
+        Assert.assertEquals(1, bucket.sleeps.size());
+    }
+
+    @Test
+    public void testSharedByDestination() {
+        MigrationConfiguration first = new MigrationConfiguration();
+        first.setConfigurationName("first");
+        first.setDestinationEntityName("sharedDestination");
+        MigrationConfiguration second = new MigrationConfiguration();
+        second.setConfigurationName("second");
+        second.setDestinationEntityName("sharedDestination");
+
+        TokenBucket bucket = TokenBucket.forDestination(first, "writeRequests", 5);
+        Assert.assertSame(bucket, TokenBucket.forDestination(second, "writeRequests", 5));
+        Assert.assertNotSame(bucket, TokenBucket.forDestination(second, "readRequests", 5));
+        Assert.assertNull(TokenBucket.forDestination(first, "readDocuments", 0));
+    }
+
+    @Test
+    public void testSharedDestinationKeepsLowestLimit() throws Exception {
+        MigrationConfiguration fast = new MigrationConfiguration();
+        fast.setConfigurationName("fast");
+        fast.setDestinationEntityName("lowestLimitDestination");
+        MigrationConfiguration slow = new MigrationConfiguration();
+        slow.setConfigurationName("slow");
+        slow.setDestinationEntityName("lowestLimitDestination");
+
+        TokenBucket bucket = TokenBucket.forDestination(fast, "writeDocuments", 100);
+        bucket.reserve(150);
+
+        Assert.assertSame(bucket, TokenBucket.forDestination(slow, "writeDocuments", 10));
+        Assert.assertSame(bucket, TokenBucket.forDestination(fast, "writeDocuments", 100));
+        Assert.assertEquals(10, bucket.getPermitsPerSecond(), 0);
+        // the debt taken at the higher rate is still owed
+        Assert.assertTrue(bucket.reserve(0) > 0);
+    }
+
+    @Test
+    public void testSharedDestinationFollowsChangedLimits() {
+        MigrationConfiguration fast = new MigrationConfiguration();
+        fast.setConfigurationName("fast");
+        fast.setDestinationEntityName("changedLimitDestination");
+        MigrationConfiguration slow = new MigrationConfiguration();
+        slow.setConfigurationName("slow");
+        slow.setDestinationEntityName("changedLimitDestination");
+
+        TokenBucket bucket = TokenBucket.forDestination(fast, "readRequests", 100);
+        TokenBucket.forDestination(slow, "readRequests", 10);
+        Assert.assertEquals(10, bucket.getPermitsPerSecond(), 0);
+
+        // raised, but still the lowest
+        TokenBucket.forDestination(slow, "readRequests", 50);
+        Assert.assertEquals(50, bucket.getPermitsPerSecond(), 0);
+
+        // removed, leaving the other configuration's limit
+        Assert.assertNull(TokenBucket.forDestination(slow, "readRequests", 0));
+        Assert.assertEquals(100, bucket.getPermitsPerSecond(), 0);
+    }
+
+    @Test
+    public void testLowerLimitCapsTokens() throws Exception {
+        TestTokenBucket bucket = new TestTokenBucket(100);
+
+        bucket.setPermitsPerSecond(10);
+        Assert.assertEquals(0, bucket.acquire(10));
+        Assert.assertEquals(100, bucket.acquire(1));
+    }
+}
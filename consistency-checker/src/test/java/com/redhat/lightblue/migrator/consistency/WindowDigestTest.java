@@ -0,0 +1,41 @@
+package com.redhat.lightblue.migrator.consistency;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WindowDigestTest {
+
+    private WindowDigest digest(Object... identitiesAndTimestamps) {
+        WindowDigest digest = new WindowDigest();
+        for (int i = 0; i < identitiesAndTimestamps.length; i += 2) {
+            digest.add(IdentityKey.of((String) identitiesAndTimestamps[i]), (Date) identitiesAndTimestamps[i + 1]);
+        }
+        return digest;
+    }
+
+    @Test
+    public void testOrderIgnored() {
+        Assert.assertEquals(digest("a", new Date(1), "b", new Date(2)).getDigest(), digest("b", new Date(2), "a", new Date(1)).getDigest());
+    }
+
+    @Test
+    public void testChangesDetected() {
+        String digest = digest("a", new Date(1), "b", new Date(2)).getDigest();
+
+        Assert.assertNotEquals(digest, digest("a", new Date(1), "b", new Date(3)).getDigest());
+        Assert.assertNotEquals(digest, digest("a", new Date(1), "c", new Date(2)).getDigest());
+        Assert.assertNotEquals(digest, digest("a", new Date(1)).getDigest());
+        Assert.assertNotEquals(digest, digest("a", new Date(1), "b", new Date(2), "b", new Date(2)).getDigest());
+    }
+
+    @Test
+    public void testCountAndMaxTimestamp() {
+        WindowDigest digest = digest("a", new Date(5), "b", null, "c", new Date(3));
+
+        Assert.assertEquals(3, digest.getDocumentCount());
+        Assert.assertEquals(new Date(5), digest.getMaxTimestamp());
+        Assert.assertNull(new WindowDigest().getMaxTimestamp());
+    }
+}